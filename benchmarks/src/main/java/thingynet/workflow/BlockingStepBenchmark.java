@@ -0,0 +1,77 @@
+/*
+ * BlockingStepBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonList;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Throughput of single step workflows whose command blocks for 10 millis, on 100 to 2000 workers on
+ * platform or virtual threads. Virtual threads need Java 21 or later.
+ */
+@State(Scope.Benchmark)
+public class BlockingStepBenchmark extends WorkflowBenchmark {
+    private static final String NODE = "blockingStep";
+    private static final int WORKFLOWS = 10000;
+    private static final long BLOCK_MILLIS = 10;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100", "500", "2000"})
+    public int workers;
+
+    @Override
+    List<String> arguments() {
+        return singletonList("--application.threads.virtual=" + "virtual".equals(threads));
+    }
+
+    @Override
+    void prepare() {
+        register(NODE, null, BLOCK_MILLIS);
+    }
+
+    @Setup(Level.Invocation)
+    public void createWorkflows() {
+        long now = currentTimeMillis();
+        List<WorkflowRequest> requests = new ArrayList<>(WORKFLOWS);
+        for (int i = 0; i < WORKFLOWS; i++) {
+            requests.add(new WorkflowRequest(BENCHMARK_WORKFLOW, NODE, now, null, WAITING));
+        }
+        workflowService.createWorkflows(requests);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORKFLOWS)
+    public void claimAndBlock() throws Exception {
+        drain(workers, 1, 0, WORKFLOWS);
+    }
+}
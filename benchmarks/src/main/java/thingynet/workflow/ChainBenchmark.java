@@ -0,0 +1,58 @@
+/*
+ * ChainBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Time for one workflow to run a linear chain of steps end to end on one worker, with every step
+ * written back or with steps chained on the worker between checkpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+public class ChainBenchmark extends WorkflowBenchmark {
+    private static final String NODE = "chainStep";
+
+    @Param({"1", "10", "100"})
+    public int steps;
+
+    @Param({"0", "10"})
+    public int chainSteps;
+
+    @Override
+    void prepare() {
+        for (int i = 0; i < steps; i++) {
+            register(NODE + i, i + 1 < steps ? NODE + (i + 1) : null);
+        }
+    }
+
+    @Benchmark
+    public void runChain() throws Exception {
+        workflowService.createReadyNow(BENCHMARK_WORKFLOW, NODE + 0, null);
+        drain(1, 1, chainSteps, steps);
+    }
+}
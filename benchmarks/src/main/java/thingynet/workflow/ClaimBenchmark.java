@@ -0,0 +1,69 @@
+/*
+ * ClaimBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Claim throughput: single step workflows drained by 1 to N workers, claiming one or a batch at a
+ * time. Reported in workflows per second.
+ */
+@State(Scope.Benchmark)
+public class ClaimBenchmark extends WorkflowBenchmark {
+    private static final String NODE = "claimStep";
+    private static final int WORKFLOWS = 1000;
+
+    @Param({"1", "4", "16"})
+    public int workers;
+
+    @Param({"1", "50"})
+    public int batch;
+
+    @Override
+    void prepare() {
+        register(NODE, null);
+    }
+
+    @Setup(Level.Invocation)
+    public void createWorkflows() {
+        long now = currentTimeMillis();
+        List<WorkflowRequest> requests = new ArrayList<>(WORKFLOWS);
+        for (int i = 0; i < WORKFLOWS; i++) {
+            requests.add(new WorkflowRequest(BENCHMARK_WORKFLOW, NODE, now, null, WAITING));
+        }
+        workflowService.createWorkflows(requests);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORKFLOWS)
+    public void claimAndProcess() throws Exception {
+        drain(workers, batch, 0, WORKFLOWS);
+    }
+}
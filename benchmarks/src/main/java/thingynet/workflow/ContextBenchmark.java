@@ -0,0 +1,67 @@
+/*
+ * ContextBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import thingynet.value.MapValue;
+import thingynet.value.StringValue;
+import thingynet.value.Value;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Time for a two step workflow carrying a context of 100B to 1MB from creation to completion, so the
+ * cost of writing and reading the context back at every step shows up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+public class ContextBenchmark extends WorkflowBenchmark {
+    private static final String FIRST = "contextFirst";
+    private static final String LAST = "contextLast";
+
+    @Param({"100", "10000", "1000000"})
+    public int bytes;
+
+    private MapValue context;
+
+    @Override
+    void prepare() {
+        register(FIRST, LAST);
+        register(LAST, null);
+        Map<String, Value> values = new HashMap<>();
+        values.put("payload", new StringValue(StringUtils.repeat('x', bytes)));
+        context = new MapValue(values);
+    }
+
+    @Benchmark
+    public void runWithContext() throws Exception {
+        workflowService.createReadyNow(BENCHMARK_WORKFLOW, FIRST, context);
+        drain(1, 1, 0, 2);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * FanOutFanInBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Time to create a parent waiting on N children in one batch, run every child and then the parent
+ * released by the last of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+public class FanOutFanInBenchmark extends WorkflowBenchmark {
+    private static final String CHILD = "fanOutChild";
+    private static final String PARENT = "fanInParent";
+    private static final int WORKERS = 4;
+    private static final int BATCH = 50;
+
+    @Param({"10", "1000", "10000"})
+    public int children;
+
+    @Override
+    void prepare() {
+        register(CHILD, null);
+        register(PARENT, null);
+    }
+
+    @Benchmark
+    public void fanOutFanIn() throws Exception {
+        long now = currentTimeMillis();
+        WorkflowRequest parent = new WorkflowRequest(BENCHMARK_WORKFLOW, PARENT, now, null, WAITING);
+        List<WorkflowRequest> requests = new ArrayList<>(children + 1);
+        for (int i = 0; i < children; i++) {
+            WorkflowRequest child = new WorkflowRequest(BENCHMARK_WORKFLOW, CHILD, now, null, WAITING);
+            parent.dependsOn(child);
+            requests.add(child);
+        }
+        requests.add(parent);
+        workflowService.createWorkflows(requests);
+        drain(WORKERS, BATCH, 0, children + 1);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * SweepBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static thingynet.workflow.WorkflowStatus.PROCESSING;
+
+/**
+ * Cost of one monitor sweep with K commands registered, when nothing has expired and when one
+ * workflow on every node has.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+public class SweepBenchmark extends WorkflowBenchmark {
+    private static final String NODE = "sweepStep";
+
+    @Param({"10", "100", "1000"})
+    public int commands;
+
+    @Param({"false", "true"})
+    public boolean expired;
+
+    private final List<Workflow> workflows = new ArrayList<>();
+
+    @Override
+    void prepare() {
+        for (int i = 0; i < commands; i++) {
+            register(NODE + i, null);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createExpiredWorkflows() {
+        if (expired) {
+            for (int i = 0; i < commands; i++) {
+                Workflow workflow = new Workflow(BENCHMARK_WORKFLOW, NODE + i, PROCESSING, 0, null);
+                workflow.setLeaseUntil(0);
+                workflows.add(workflow);
+            }
+            workflowStore.create(workflows);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeWorkflows() {
+        workflows.forEach(workflowStore::remove);
+        workflows.clear();
+    }
+
+    @Benchmark
+    public int sweep() {
+        return workflowMonitor.sweep();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * WorkflowBenchmark.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.bson.types.ObjectId;
+import org.jongo.MongoCollection;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import thingynet.concurrent.ExecutorFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static thingynet.workflow.WorkflowConfig.MEMORY_STORE;
+
+/**
+ * Boots the application once per trial against the store under test, either the in-process store or
+ * Mongo at mongo.hosts, which may be a local stand-in. Benchmarks register their own nodes and
+ * commands, and drain the workflows they create through the same claim and process calls the workers
+ * use.
+ */
+@State(Scope.Benchmark)
+public abstract class WorkflowBenchmark {
+    static final String BENCHMARK_WORKFLOW = "Benchmark";
+    static final long CHAIN_MILLIS = 1000;
+    private static final long EMPTY_CLAIM_NANOS = 100000;
+
+    @Param({MEMORY_STORE, "mongo"})
+    public String store;
+
+    ConfigurableApplicationContext context;
+    WorkflowService workflowService;
+    WorkflowStore workflowStore;
+    WorkflowMonitor workflowMonitor;
+
+    private WorkflowCommandFactory workflowCommandFactory;
+    private WorkflowNodeCache workflowNodeCache;
+    private ExecutorFactory executorFactory;
+    private final Map<String, WorkflowCommand> commands = new HashMap<>();
+    private final AtomicInteger executed = new AtomicInteger();
+
+    @Setup
+    public void start() {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--workflow.store=" + store,
+                "--workflow.db=benchmark-workflow",
+                "--workflow.log.db=benchmark-workflow-log",
+                "--workflow.load.db=benchmark-workflow-load",
+                "--workflow.node.db=benchmark-workflow-node",
+                "--workflow.signal.remote=false"));
+        args.addAll(arguments());
+        context = SpringApplication.run(WorkflowBenchmarkConfig.class, args.toArray(new String[args.size()]));
+        workflowService = context.getBean(WorkflowService.class);
+        workflowStore = context.getBean(WorkflowStore.class);
+        workflowMonitor = context.getBean(WorkflowMonitor.class);
+        workflowCommandFactory = context.getBean(WorkflowCommandFactory.class);
+        workflowNodeCache = context.getBean(WorkflowNodeCache.class);
+        executorFactory = context.getBean(ExecutorFactory.class);
+        if (!MEMORY_STORE.equals(store)) {
+            context.getBean("workflowCollection", MongoCollection.class).remove();
+        }
+        prepare();
+    }
+
+    /**
+     * Registers the benchmark's nodes once the application is up. JMH gives no order between setup
+     * methods of a class and its superclass, so subclasses override this rather than add their own.
+     */
+    abstract void prepare();
+
+    /**
+     * @return further command line properties for the application, none by default
+     */
+    List<String> arguments() {
+        return new ArrayList<>();
+    }
+
+    @TearDown
+    public void stop() {
+        context.close();
+    }
+
+    /**
+     * Registers a command that does nothing under the node name, so the node is all engine overhead.
+     */
+    void register(String node, String next) {
+        register(node, next, 0);
+    }
+
+    /**
+     * Registers a command that sleeps for blockMillis under the node name, standing in for a step that
+     * waits on I/O.
+     */
+    void register(String node, String next, long blockMillis) {
+        commands.put(node, new StepCommand(executed, blockMillis));
+        workflowCommandFactory.setRegisteredCommands(new HashMap<>(commands));
+        workflowNodeCache.saveNode(new WorkflowNode(node, next));
+    }
+
+    /**
+     * Claims and processes workflows on the given number of threads until expected steps have run,
+     * chaining up to chainSteps steps per claim when above zero. The threads are platform threads
+     * unless the application was started with virtual threads on.
+     */
+    void drain(int workers, int batch, int chainSteps, int expected) throws Exception {
+        executed.set(0);
+        ExecutorService executor = executorFactory.executor("benchmark-worker", workers);
+        try {
+            List<Future<?>> running = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                running.add(executor.submit(() -> {
+                    ObjectId claim = new ObjectId();
+                    while (executed.get() < expected) {
+                        List<Workflow> claimed = workflowService.getWaiting(claim, batch);
+                        if (claimed.isEmpty()) {
+                            // a dependant is only released once its last dependency completes. Parked
+                            // rather than yielded, as a yielding virtual thread goes back ahead of those
+                            // woken from a step's sleep and can starve them on a single carrier
+                            LockSupport.parkNanos(EMPTY_CLAIM_NANOS);
+                        }
+                        for (Workflow workflow : claimed) {
+                            workflowService.process(workflow, chainSteps, CHAIN_MILLIS);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> worker : running) {
+                worker.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static class StepCommand implements WorkflowCommand {
+        private final AtomicInteger executed;
+        private final long blockMillis;
+
+        StepCommand(AtomicInteger executed, long blockMillis) {
+            this.executed = executed;
+            this.blockMillis = blockMillis;
+        }
+
+        @Override
+        public void execute(Workflow workflow) throws WorkflowException {
+            if (blockMillis > 0) {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            executed.incrementAndGet();
+        }
+
+        @Override
+        public long getTimeout() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * WorkflowBenchmarkConfig.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package thingynet.workflow;
+
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import thingynet.concurrent.ExecutorFactory;
+import thingynet.event.EventCollectionFactory;
+
+/**
+ * Just the workflow engine and its Mongo client, so the benchmarks measure the engine alone.
+ */
+@Configuration
+@EnableAutoConfiguration
+@ComponentScan({"thingynet.workflow", "thingynet.mongo"})
+@Import({EventCollectionFactory.class, ExecutorFactory.class})
+class WorkflowBenchmarkConfig {
+}
@@ -21,9 +21,14 @@ package thingynet;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import thingynet.concurrent.ExecutorFactory;
+import thingynet.workflow.WorkflowMonitor;
+import thingynet.workflow.WorkflowScheduler;
+import thingynet.workflow.WorkflowWorkerPool;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,34 +38,32 @@ import java.util.concurrent.Executors;
 @ComponentScan
 public class Application {
 
-    @Value("${application.pool.size}")
-    private int applicationPoolSize;
-
-//    @Autowired
-//    private WorkflowService workflowService;
-//
-//    @Autowired
-//    private WorkflowMonitor workflowMonitor;
+    @Value("${event.pool.size}")
+    private int eventPoolSize;
 
     public static void main(String[] args) throws Exception {
-        SpringApplication.run(Application.class, args);
+        ConfigurableApplicationContext context = SpringApplication.run(Application.class, args);
+        // started here rather than on startup, so contexts built by tests run no workers, scheduler or monitor of their own
+        context.getBean(WorkflowWorkerPool.class).start();
+        context.getBean(WorkflowScheduler.class).start();
+        context.getBean("monitorExecutorService", ExecutorService.class).submit(context.getBean(WorkflowMonitor.class));
     }
 
+    /**
+     * Runs event commands for {@link thingynet.event.OnEventAsyncStrategy}, on virtual threads when
+     * they are in use.
+     */
     @Bean
-    public ExecutorService workerExecutorService() {
-        ExecutorService executorService = Executors.newFixedThreadPool(applicationPoolSize);
-        System.out.println("POOL SIZE:" + applicationPoolSize);
-
-        for (int i = 0; i < applicationPoolSize; i++) {
-//            executorService.submit(workflowService);
-        }
-        return executorService;
+    public ExecutorService eventExecutorService(ExecutorFactory executorFactory) {
+        return executorFactory.executor("event", eventPoolSize);
     }
 
-    @Bean
+    /**
+     * Runs the {@link WorkflowMonitor}, interrupted on shutdown so the monitor hands back its lease.
+     */
+    @Bean(destroyMethod = "shutdownNow")
     public ExecutorService monitorExecutorService() {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-//        executorService.submit(workflowMonitor);
-        return executorService;
+        // a plain ThreadPoolExecutor, as the single thread wrapper's shutdownNow cannot be reached reflectively on Java 9+
+        return Executors.newFixedThreadPool(1);
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * ExecutorFactory.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.concurrent;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the threads that run blocking work: a virtual thread per task when application.threads.virtual
+ * is set on a JDK that has them, and named platform threads otherwise.
+ */
+@Component
+public class ExecutorFactory {
+    private static final Logger log = Logger.getLogger(ExecutorFactory.class.getName());
+
+    // Thread.ofVirtual(), Thread.Builder.name(String, long), Thread.Builder.factory() and
+    // Executors.newThreadPerTaskExecutor(ThreadFactory), or null before Java 21
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method THREAD_PER_TASK;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, threadPerTask = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        THREAD_PER_TASK = threadPerTask;
+    }
+
+    @Value("${application.threads.virtual}")
+    private boolean virtualRequested;
+
+    private boolean virtual;
+
+    @PostConstruct
+    void init() {
+        virtual = virtualRequested && isVirtualSupported();
+        if (virtualRequested && !virtual) {
+            log.warn("Virtual threads need Java 21 or later, running on platform threads");
+        }
+        log.info("Running blocking work on " + (virtual ? "virtual" : "platform") + " threads");
+    }
+
+    /**
+     * @return true when the JDK has virtual threads, whether or not they are in use
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true when blocking work runs on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return a factory for threads named name-1, name-2 and so on, virtual or platform by mode
+     */
+    public ThreadFactory threadFactory(String name) {
+        if (virtual) {
+            try {
+                return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread factory " + name, e);
+            }
+        }
+        AtomicInteger created = new AtomicInteger();
+        return runnable -> new Thread(runnable, name + "-" + created.incrementAndGet());
+    }
+
+    /**
+     * Creates an executor for blocking tasks. On virtual threads every task runs on a new thread, as
+     * virtual threads are too cheap to pool. On platform threads the executor holds at most
+     * platformThreads threads, or grows as needed when platformThreads is zero.
+     */
+    public ExecutorService executor(String name, int platformThreads) {
+        ThreadFactory threadFactory = threadFactory(name);
+        if (virtual) {
+            try {
+                return (ExecutorService) THREAD_PER_TASK.invoke(null, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor " + name, e);
+            }
+        }
+        return platformThreads > 0
+                ? Executors.newFixedThreadPool(platformThreads, threadFactory)
+                : Executors.newCachedThreadPool(threadFactory);
+    }
+}
@@ -18,9 +18,14 @@
 
 package thingynet.value;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public abstract class GenericValue<T> implements Value<T> {
     private T value;
 
+    @JsonIgnore
+    private boolean changed = true;
+
     public GenericValue() {
     }
 
@@ -34,5 +39,16 @@ public abstract class GenericValue<T> implements Value<T> {
 
     public void setValue(T value) {
         this.value = value;
+        this.changed = true;
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return changed;
+    }
+
+    @Override
+    public void clearChanges() {
+        changed = false;
     }
 }
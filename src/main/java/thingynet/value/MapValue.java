@@ -18,9 +18,27 @@
 
 package thingynet.value;
 
-import java.util.Map;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import java.util.*;
+
+/**
+ * Map of values that records which keys were put or removed since {@link #clearChanges()}, so a
+ * stored copy can be brought up to date by writing only those keys. Changes made through the map
+ * returned by {@link #getValue()} are tracked; replacing the map with {@link #setValue(Map)} marks
+ * the whole value changed.
+ */
 public class MapValue extends GenericValue<Map<String, Value>> {
+
+    @JsonIgnore
+    private final Set<String> changedKeys = new HashSet<>();
+
+    @JsonIgnore
+    private final Set<String> removedKeys = new HashSet<>();
+
+    @JsonIgnore
+    private TrackedMap tracked;
+
     public MapValue() {
         super();
     }
@@ -28,4 +46,187 @@ public class MapValue extends GenericValue<Map<String, Value>> {
     public MapValue(Map<String, Value> value) {
         super(value);
     }
+
+    /**
+     * @return the map wrapped so that changes made through it are tracked
+     */
+    @Override
+    public Map<String, Value> getValue() {
+        Map<String, Value> value = super.getValue();
+        if (value == null) {
+            return null;
+        }
+        // the wrapper is made on first use, as Jackson may set the map without going through setValue
+        if (tracked == null || tracked.map != value) {
+            tracked = new TrackedMap(value);
+        }
+        return tracked;
+    }
+
+    @Override
+    public void setValue(Map<String, Value> value) {
+        super.setValue(value instanceof TrackedMap ? ((TrackedMap) value).map : value);
+    }
+
+    @Override
+    public boolean hasChanges() {
+        if (super.hasChanges() || !changedKeys.isEmpty() || !removedKeys.isEmpty()) {
+            return true;
+        }
+        if (getValue() == null) {
+            return false;
+        }
+        for (Value<?> value : getValue().values()) {
+            if (value != null && value.hasChanges()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clearChanges() {
+        super.clearChanges();
+        changedKeys.clear();
+        removedKeys.clear();
+        if (getValue() != null) {
+            for (Value<?> value : getValue().values()) {
+                if (value != null) {
+                    value.clearChanges();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void collectChanges(String path, Map<String, Object> set, Set<String> unset) {
+        if (super.hasChanges() || !isPathSafe(changedKeys) || !isPathSafe(removedKeys)) {
+            set.put(path, this);
+            return;
+        }
+        if (getValue() == null) {
+            return;
+        }
+        for (String key : removedKeys) {
+            unset.add(path + ".value." + key);
+        }
+        for (Map.Entry<String, Value> entry : getValue().entrySet()) {
+            String entryPath = path + ".value." + entry.getKey();
+            Value<?> value = entry.getValue();
+            if (changedKeys.contains(entry.getKey())) {
+                set.put(entryPath, value);
+            } else if (value != null) {
+                value.collectChanges(entryPath, set, unset);
+            }
+        }
+    }
+
+    private static boolean isPathSafe(Set<String> keys) {
+        for (String key : keys) {
+            if (key.isEmpty() || key.contains(".") || key.startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void changed(String key) {
+        removedKeys.remove(key);
+        changedKeys.add(key);
+    }
+
+    private void removed(String key) {
+        changedKeys.remove(key);
+        removedKeys.add(key);
+    }
+
+    /**
+     * Records every put and remove made on the wrapped map, including through its entry set.
+     */
+    private class TrackedMap extends AbstractMap<String, Value> {
+        private final Map<String, Value> map;
+
+        TrackedMap(Map<String, Value> map) {
+            this.map = map;
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public Value get(Object key) {
+            return map.get(key);
+        }
+
+        @Override
+        public Value put(String key, Value value) {
+            changed(key);
+            return map.put(key, value);
+        }
+
+        @Override
+        public Value remove(Object key) {
+            if (map.containsKey(key)) {
+                removed((String) key);
+            }
+            return map.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            for (String key : map.keySet()) {
+                removed(key);
+            }
+            map.clear();
+        }
+
+        @Override
+        public Set<Entry<String, Value>> entrySet() {
+            return new AbstractSet<Entry<String, Value>>() {
+                @Override
+                public int size() {
+                    return map.size();
+                }
+
+                @Override
+                public Iterator<Entry<String, Value>> iterator() {
+                    Iterator<Entry<String, Value>> entries = map.entrySet().iterator();
+                    return new Iterator<Entry<String, Value>>() {
+                        private Entry<String, Value> last;
+
+                        @Override
+                        public boolean hasNext() {
+                            return entries.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, Value> next() {
+                            last = entries.next();
+                            return new SimpleEntry<String, Value>(last) {
+                                @Override
+                                public Value setValue(Value value) {
+                                    changed(getKey());
+                                    super.setValue(value);
+                                    return last.setValue(value);
+                                }
+                            };
+                        }
+
+                        @Override
+                        public void remove() {
+                            entries.remove();
+                            removed(last.getKey());
+                        }
+                    };
+                }
+            };
+        }
+    }
 }
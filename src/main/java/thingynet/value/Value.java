@@ -20,6 +20,9 @@ package thingynet.value;
 
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
+import java.util.Map;
+import java.util.Set;
+
 import static com.fasterxml.jackson.annotation.JsonTypeInfo.Id.CLASS;
 
 @JsonTypeInfo(use = CLASS, property = "_class", visible = true)
@@ -27,4 +30,24 @@ public interface Value<T> {
     public T getValue();
 
     public void setValue(T value);
+
+    /**
+     * @return true when the value may have changed since {@link #clearChanges()}
+     */
+    default boolean hasChanges() {
+        return true;
+    }
+
+    default void clearChanges() {
+    }
+
+    /**
+     * Adds the document paths under path that need writing to bring a stored copy of this value up to
+     * date: paths to new values in set, and paths to remove in unset.
+     */
+    default void collectChanges(String path, Map<String, Object> set, Set<String> unset) {
+        if (hasChanges()) {
+            set.put(path, this);
+        }
+    }
 }
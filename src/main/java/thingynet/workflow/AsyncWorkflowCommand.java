@@ -0,0 +1,49 @@
+/*
+ * AsyncWorkflowCommand.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Command for steps that wait on I/O. The engine hands the workflow over and goes back to claiming
+ * while the future is outstanding, then moves the workflow on when the future completes. A future
+ * failed with a {@link WorkflowException} errors the workflow with its classification. The step
+ * must still complete within the command's timeout, or the monitor hands the workflow to another
+ * worker and the late completion is ignored.
+ */
+public interface AsyncWorkflowCommand extends WorkflowCommand {
+
+    CompletableFuture<Void> executeAsync(Workflow workflow);
+
+    /**
+     * Runs the step to completion on the calling thread.
+     */
+    @Override
+    default void execute(Workflow workflow) throws WorkflowException {
+        try {
+            executeAsync(workflow).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException(WorkflowService.ERR_COMMAND, e.getMessage());
+        } catch (ExecutionException e) {
+            throw WorkflowService.toWorkflowException(e.getCause());
+        }
+    }
+}
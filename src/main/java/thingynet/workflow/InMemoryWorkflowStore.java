@@ -0,0 +1,738 @@
+/*
+ * InMemoryWorkflowStore.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.bson.types.ObjectId;
+import thingynet.value.MapValue;
+import thingynet.value.Value;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
+import thingynet.workflow.commands.WorkflowLoad;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static thingynet.workflow.WorkflowStatus.*;
+
+/**
+ * Single process store for tests, benchmarks and embedded use. Workflows free to run are kept in a
+ * set ordered by start time and moved to a set ordered by rank once they start, so a claim is a walk
+ * from the head, dependants are tracked in a reverse index
+ * so completion only touches the workflows waiting on it, and PROCESSING workflows are kept in lease
+ * order so the sweep only visits expired leases. Counts by status and name are kept as workflows are
+ * indexed and unindexed. Workflows, contexts included, are copied in and out so callers cannot
+ * change stored state behind the store's back.
+ */
+class InMemoryWorkflowStore implements WorkflowStore {
+    static final int HISTORY = 10000;
+
+    private static final Comparator<Workflow> BY_START = (a, b) -> {
+        int compare = Long.compare(a.getStart(), b.getStart());
+        return compare != 0 ? compare : a.getId().compareTo(b.getId());
+    };
+
+    private static final Comparator<Workflow> BY_RANK = (a, b) -> {
+        int compare = Long.compare(a.getRank(), b.getRank());
+        return compare != 0 ? compare : a.getId().compareTo(b.getId());
+    };
+
+    private static final Comparator<Workflow> BY_LEASE = (a, b) -> {
+        int compare = Long.compare(a.getLeaseUntil(), b.getLeaseUntil());
+        return compare != 0 ? compare : a.getId().compareTo(b.getId());
+    };
+
+    private final Map<ObjectId, Workflow> workflows = new HashMap<>();
+    private final NavigableSet<Workflow> scheduled = new TreeSet<>(BY_START);
+    private final NavigableSet<Workflow> ready = new TreeSet<>(BY_RANK);
+    private final NavigableSet<Workflow> processing = new TreeSet<>(BY_LEASE);
+    private final Map<ObjectId, Set<ObjectId>> dependents = new HashMap<>();
+    private final Map<WorkflowStatus, Long> statusCounts = new EnumMap<>(WorkflowStatus.class);
+    private final Map<String, Long> nameCounts = new TreeMap<>();
+    private long retrying;
+    private long deadLettered;
+
+    private final Map<String, String> leaseOwners = new HashMap<>();
+    private final Map<String, Long> leaseExpiries = new HashMap<>();
+
+    private final Map<String, WorkflowThrottleState> throttles = new HashMap<>();
+    private final Map<String, WorkflowSchedule> schedules = new HashMap<>();
+    private final Deque<WorkflowDeadLetter> deadLetters = new ArrayDeque<>();
+
+    private final Map<String, WorkflowNode> nodes = new HashMap<>();
+    private long nodeVersion;
+
+    private final Deque<WorkflowLog> logs = new ArrayDeque<>();
+    private final Deque<WorkflowLoad> loads = new ArrayDeque<>();
+    private final Deque<WorkflowLatencyInterval> latencies = new ArrayDeque<>();
+
+    private final Map<String, Long> members = new TreeMap<>();
+
+    private final long priorityAging;
+    private final int partitions;
+
+    InMemoryWorkflowStore(long priorityAging) {
+        this(priorityAging, 0);
+    }
+
+    InMemoryWorkflowStore(long priorityAging, int partitions) {
+        this.priorityAging = priorityAging;
+        this.partitions = partitions;
+    }
+
+    @Override
+    public synchronized void create(Workflow workflow) {
+        save(workflow);
+    }
+
+    @Override
+    public synchronized List<String> create(List<Workflow> batch) {
+        List<String> errors = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        List<Workflow> copies = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Workflow workflow = batch.get(i);
+            if (workflow.getId() == null) {
+                workflow.setId(new ObjectId());
+            }
+            if (workflows.containsKey(workflow.getId())) {
+                errors.set(i, "duplicate key " + workflow.getId());
+                continue;
+            }
+            workflow.partition(partitions);
+            Workflow copy = copy(workflow);
+            workflows.put(copy.getId(), copy);
+            copies.add(copy);
+        }
+        // the whole batch is stored before linking, so dependencies inside it are not dropped
+        for (Workflow copy : copies) {
+            index(link(copy));
+        }
+        return errors;
+    }
+
+    @Override
+    public synchronized void save(Workflow workflow) {
+        if (workflow.getId() == null) {
+            workflow.setId(new ObjectId());
+        }
+        workflow.partition(partitions);
+        Workflow previous = workflows.get(workflow.getId());
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(link(copy(workflow)));
+    }
+
+    @Override
+    public synchronized Workflow claim(long now, ToLongFunction<String> lease, Set<String> skip,
+                                       Collection<Integer> partitions) {
+        List<Workflow> claimed = claim(null, now, 1, lease, skip, partitions);
+        return claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    @Override
+    public synchronized List<Workflow> claim(ObjectId claim, long now, int batch, ToLongFunction<String> lease,
+                                             Set<String> skip, Collection<Integer> partitions) {
+        while (!scheduled.isEmpty() && scheduled.first().getStart() <= now) {
+            ready.add(scheduled.pollFirst());
+        }
+        List<Workflow> picked = new ArrayList<>(batch);
+        for (Workflow workflow : ready) {
+            if (picked.size() >= batch) {
+                break;
+            }
+            if (!skip.contains(workflow.getNode())
+                    && (partitions == null || partitions.contains(workflow.getPartition()))) {
+                picked.add(workflow);
+            }
+        }
+        List<Workflow> claimed = new ArrayList<>(picked.size());
+        for (Workflow workflow : picked) {
+            unindex(workflow);
+            workflow.setStatus(PROCESSING);
+            workflow.setUpdated(now);
+            workflow.setClaim(claim);
+            workflow.setLeaseUntil(now + lease.applyAsLong(workflow.getNode()));
+            index(workflow);
+            claimed.add(copy(workflow));
+        }
+        return claimed;
+    }
+
+    @Override
+    public synchronized boolean unclaim(Workflow workflow, long now) {
+        Workflow stored = workflows.get(workflow.getId());
+        if (stored == null || stored.getStatus() != PROCESSING || !stored.getNode().equals(workflow.getNode())
+                || stored.getRetry() != workflow.getRetry()) {
+            return false;
+        }
+        unindex(stored);
+        stored.setStatus(WAITING);
+        stored.setUpdated(now);
+        index(stored);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean activate(Workflow workflow, String node, long now) {
+        Workflow stored = workflows.get(workflow.getId());
+        if (stored == null || stored.getStatus() != PROCESSING || !node.equals(stored.getNode())
+                || stored.getRetry() != workflow.getRetry()) {
+            return false;
+        }
+        unindex(stored);
+        Workflow activated = copy(workflow);
+        activated.setStatus(WAITING);
+        activated.setUpdated(now);
+        activated.setRetry(0);
+        activated.setClaim(stored.getClaim());
+        index(link(activated));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean checkpoint(Workflow workflow, String node, long now) {
+        Workflow stored = workflows.get(workflow.getId());
+        if (stored == null || stored.getStatus() != PROCESSING || !node.equals(stored.getNode())
+                || stored.getRetry() != workflow.getRetry()) {
+            return false;
+        }
+        unindex(stored);
+        stored.setNode(workflow.getNode());
+        stored.setStart(workflow.getStart());
+        stored.setUpdated(now);
+        stored.setLeaseUntil(workflow.getLeaseUntil());
+        stored.setContext(Workflow.copy(workflow.getContext()));
+        index(stored);
+        return true;
+    }
+
+    @Override
+    public synchronized int activateOnHold(List<ObjectId> ids, long now) {
+        int activated = 0;
+        for (ObjectId id : ids) {
+            Workflow stored = workflows.get(id);
+            if (stored != null && stored.getStatus() == INITIALISING) {
+                unindex(stored);
+                stored.setStatus(WAITING);
+                stored.setUpdated(now);
+                index(stored);
+                activated++;
+            }
+        }
+        return activated;
+    }
+
+    @Override
+    public synchronized void complete(Workflow workflow, long now) {
+        Set<ObjectId> waiting = dependents.get(workflow.getId());
+        if (waiting != null) {
+            for (ObjectId id : new ArrayList<>(waiting)) {
+                Workflow dependent = workflows.get(id);
+                unindex(dependent);
+                dependent.getDependencies().removeIf(workflow.getId()::equals);
+                dependent.setPendingDependencies(dependent.getPendingDependencies() - 1);
+                dependent.setUpdated(now);
+                if (id.equals(workflow.getParent()) && dependent.getContext() instanceof MapValue) {
+                    Map<String, Value> merged = new HashMap<>();
+                    Map<String, Value> context = ((MapValue) dependent.getContext()).getValue();
+                    if (context != null) {
+                        merged.putAll(context);
+                    }
+                    merged.put(workflow.getBranch(), Workflow.copy(workflow.getContext()));
+                    dependent.setContext(new MapValue(merged));
+                }
+                index(dependent);
+            }
+        }
+        remove(workflow.getId());
+    }
+
+    @Override
+    public synchronized int join(Workflow workflow, long now) {
+        List<ObjectId> branches = new ArrayList<>();
+        for (Workflow stored : workflows.values()) {
+            if (workflow.getId().equals(stored.getParent())) {
+                branches.add(stored.getId());
+            }
+        }
+        branches.forEach(this::remove);
+        Workflow stored = workflows.get(workflow.getId());
+        if (stored != null && stored.getStatus() == PROCESSING) {
+            unindex(stored);
+            stored.getDependencies().clear();
+            stored.setPendingDependencies(0);
+            stored.setQuorum(0);
+            stored.setUpdated(now);
+            index(stored);
+        }
+        workflow.getDependencies().clear();
+        workflow.setPendingDependencies(0);
+        workflow.setQuorum(0);
+        workflow.clearChanges();
+        return branches.size();
+    }
+
+    @Override
+    public synchronized void remove(Workflow workflow) {
+        remove(workflow.getId());
+    }
+
+    @Override
+    public synchronized Map<String, Integer> sweep(long now, Function<String, WorkflowNode> nodes) {
+        List<Workflow> expired = new ArrayList<>();
+        for (Workflow workflow : processing) {
+            if (workflow.getLeaseUntil() > now) {
+                break;
+            }
+            expired.add(workflow);
+        }
+        Map<String, Integer> recovered = new HashMap<>();
+        for (Workflow workflow : expired) {
+            recovered.merge(workflow.getNode(), 1, Integer::sum);
+            WorkflowNode policy = nodes.apply(workflow.getNode());
+            if (policy != null && policy.isExhausted(workflow.getRetry())) {
+                deadLetters.addFirst(new WorkflowDeadLetter(workflow, now));
+                if (deadLetters.size() > HISTORY) {
+                    deadLetters.removeLast();
+                }
+                deadLettered++;
+                remove(workflow.getId());
+                continue;
+            }
+            unindex(workflow);
+            workflow.setStatus(WAITING);
+            workflow.setUpdated(now);
+            workflow.setRetry(workflow.getRetry() + 1);
+            if (policy != null && policy.hasRetryPolicy()) {
+                workflow.setStart(now + policy.getRetryDelay(workflow.getRetry()));
+            }
+            index(workflow);
+        }
+        return recovered;
+    }
+
+    @Override
+    public synchronized List<WorkflowDeadLetter> getDeadLetters(int limit) {
+        List<WorkflowDeadLetter> recent = new ArrayList<>(Math.min(limit, deadLetters.size()));
+        for (WorkflowDeadLetter deadLetter : deadLetters) {
+            if (recent.size() >= limit) {
+                break;
+            }
+            recent.add(deadLetter);
+        }
+        return recent;
+    }
+
+    @Override
+    public synchronized List<Workflow> getScheduled(long from, long to, int limit) {
+        List<Workflow> found = new ArrayList<>();
+        for (Workflow workflow : workflows.values()) {
+            if ((workflow.getStatus() == WAITING || workflow.getStatus() == INITIALISING)
+                    && workflow.getStart() > from && workflow.getStart() <= to) {
+                found.add(workflow);
+            }
+        }
+        found.sort(BY_START);
+        List<Workflow> scheduled = new ArrayList<>(Math.min(found.size(), limit));
+        for (Workflow workflow : found.subList(0, Math.min(found.size(), limit))) {
+            Workflow copy = new Workflow();
+            copy.setId(workflow.getId());
+            copy.setStart(workflow.getStart());
+            scheduled.add(copy);
+        }
+        return scheduled;
+    }
+
+    @Override
+    public synchronized void saveSchedule(WorkflowSchedule schedule) {
+        schedules.put(schedule.getId(), schedule);
+    }
+
+    @Override
+    public synchronized void removeSchedule(String id) {
+        schedules.remove(id);
+    }
+
+    @Override
+    public synchronized WorkflowSchedule getSchedule(String id) {
+        return schedules.get(id);
+    }
+
+    @Override
+    public synchronized List<WorkflowSchedule> getSchedules(long until) {
+        List<WorkflowSchedule> due = new ArrayList<>();
+        for (WorkflowSchedule schedule : schedules.values()) {
+            if (schedule.getNextRun() <= until) {
+                due.add(schedule);
+            }
+        }
+        return due;
+    }
+
+    @Override
+    public synchronized boolean advanceSchedule(String id, long nextRun, long followingRun, long lastRun) {
+        WorkflowSchedule schedule = schedules.get(id);
+        if (schedule == null || schedule.getNextRun() != nextRun) {
+            return false;
+        }
+        schedule.setNextRun(followingRun);
+        schedule.setLastRun(lastRun);
+        return true;
+    }
+
+    @Override
+    public synchronized long getNextLeaseExpiry() {
+        return processing.isEmpty() ? Long.MAX_VALUE : processing.first().getLeaseUntil();
+    }
+
+    @Override
+    public synchronized boolean acquireLease(String name, String owner, long now, long until) {
+        Long expiry = leaseExpiries.get(name);
+        if (expiry != null && expiry > now && !owner.equals(leaseOwners.get(name))) {
+            return false;
+        }
+        leaseOwners.put(name, owner);
+        leaseExpiries.put(name, until);
+        return true;
+    }
+
+    @Override
+    public synchronized void releaseLease(String name, String owner) {
+        if (owner.equals(leaseOwners.get(name))) {
+            leaseExpiries.put(name, 0L);
+        }
+    }
+
+    @Override
+    public synchronized List<String> renewMembership(String member, long now, long until) {
+        members.put(member, until);
+        members.values().removeIf(expiry -> expiry <= now);
+        return new ArrayList<>(members.keySet());
+    }
+
+    @Override
+    public synchronized void leaveMembership(String member) {
+        members.remove(member);
+    }
+
+    @Override
+    public synchronized boolean acquireThrottle(WorkflowNode node, long now) {
+        WorkflowThrottleState state = throttles.computeIfAbsent(node.getName(), name -> new WorkflowThrottleState(node, now));
+        if (state.isSaturated(node, now)) {
+            return false;
+        }
+        state.acquire(node, now);
+        return true;
+    }
+
+    @Override
+    public synchronized void releaseThrottle(String node, int count) {
+        WorkflowThrottleState state = throttles.get(node);
+        if (state != null) {
+            state.setHeld(Math.max(state.getHeld() - count, 0));
+        }
+    }
+
+    @Override
+    public synchronized Set<String> getSaturated(Collection<WorkflowNode> nodes, long now) {
+        Set<String> saturated = new HashSet<>();
+        for (WorkflowNode node : nodes) {
+            WorkflowThrottleState state = throttles.get(node.getName());
+            if (state != null && state.isSaturated(node, now)) {
+                saturated.add(node.getName());
+            }
+        }
+        return saturated;
+    }
+
+    @Override
+    public synchronized Map<String, Integer> reconcileThrottles(Collection<WorkflowNode> nodes) {
+        Map<String, Integer> held = new TreeMap<>();
+        for (WorkflowNode node : nodes) {
+            held.put(node.getName(), 0);
+        }
+        for (Workflow workflow : processing) {
+            held.computeIfPresent(workflow.getNode(), (node, count) -> count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : held.entrySet()) {
+            WorkflowThrottleState state = throttles.get(entry.getKey());
+            if (state != null) {
+                state.setHeld(entry.getValue());
+            }
+        }
+        return held;
+    }
+
+    @Override
+    public synchronized long getWaiting(String node) {
+        return workflows.values().stream()
+                .filter(workflow -> workflow.getStatus() == WAITING && node.equals(workflow.getNode()))
+                .count();
+    }
+
+    @Override
+    public synchronized long getReady(long now) {
+        long ready = this.ready.size();
+        for (Workflow workflow : scheduled) {
+            if (workflow.getStart() > now) {
+                break;
+            }
+            ready++;
+        }
+        return ready;
+    }
+
+    @Override
+    public synchronized WorkflowLoad getLoad(long now) {
+        long initialising = 0, waitingNoDependencies = 0, waitingWithDependencies = 0, waitingFutureStart = 0;
+        Map<Integer, Long> byPriority = new TreeMap<>();
+        for (Workflow workflow : workflows.values()) {
+            if (workflow.getStatus() == INITIALISING) {
+                initialising++;
+            } else if (workflow.getStatus() == WAITING) {
+                boolean started = workflow.getStart() <= now;
+                boolean blocked = workflow.getPendingDependencies() > 0;
+                if (started && !blocked) {
+                    waitingNoDependencies++;
+                    byPriority.merge(workflow.getPriority(), 1L, Long::sum);
+                } else if (started) {
+                    waitingWithDependencies++;
+                } else if (!blocked) {
+                    waitingFutureStart++;
+                }
+            }
+        }
+        WorkflowLoad load = new WorkflowLoad(initialising, waitingNoDependencies, waitingWithDependencies,
+                waitingFutureStart, processing.size());
+        load.setWaiting(statusCounts.getOrDefault(WAITING, 0L));
+        load.setRetrying(retrying);
+        load.setDeadLettered(deadLettered);
+        load.setWaitingByPriority(byPriority);
+        return load;
+    }
+
+    @Override
+    public synchronized WorkflowLoad getCounts(long now) {
+        WorkflowLoad load = new WorkflowLoad();
+        load.setCreated(now);
+        load.setInitialising(statusCounts.getOrDefault(INITIALISING, 0L));
+        load.setWaiting(statusCounts.getOrDefault(WAITING, 0L));
+        load.setProcessing(statusCounts.getOrDefault(PROCESSING, 0L));
+        load.setByName(new TreeMap<>(nameCounts));
+        load.setRetrying(retrying);
+        load.setDeadLettered(deadLettered);
+        return load;
+    }
+
+    @Override
+    public synchronized long reconcileCounts() {
+        // counts are kept under the same lock as the workflows, so they cannot drift
+        return 0;
+    }
+
+    @Override
+    public synchronized void saveLoad(WorkflowLoad load) {
+        append(loads, load);
+    }
+
+    @Override
+    public synchronized List<WorkflowLoad> getLoads(long from, long to) {
+        List<WorkflowLoad> found = new ArrayList<>();
+        for (WorkflowLoad load : loads) {
+            if (load.getCreated() >= from && load.getCreated() <= to) {
+                found.add(load);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void saveLogs(List<WorkflowLog> records) {
+        for (WorkflowLog log : records) {
+            append(logs, log);
+        }
+    }
+
+    @Override
+    public synchronized void saveLatencies(List<WorkflowLatencyInterval> intervals) {
+        for (WorkflowLatencyInterval interval : intervals) {
+            append(latencies, interval);
+        }
+    }
+
+    @Override
+    public synchronized List<WorkflowLatencyInterval> getLatencies(String name, String node, long from, long to) {
+        List<WorkflowLatencyInterval> overlapping = new ArrayList<>();
+        for (WorkflowLatencyInterval interval : latencies) {
+            if (Objects.equals(name, interval.getName()) && Objects.equals(node, interval.getNode())
+                    && interval.getStart() < to && interval.getEnd() > from) {
+                overlapping.add(interval);
+            }
+        }
+        return overlapping;
+    }
+
+    @Override
+    public synchronized Iterable<WorkflowNode> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    @Override
+    public synchronized WorkflowNode getNode(String name) {
+        return nodes.get(name);
+    }
+
+    @Override
+    public synchronized long saveNode(WorkflowNode node) {
+        nodes.put(node.getName(), node);
+        return ++nodeVersion;
+    }
+
+    @Override
+    public synchronized long getNodeVersion() {
+        return nodeVersion;
+    }
+
+    @Override
+    public synchronized Workflow get(ObjectId id) {
+        Workflow workflow = workflows.get(id);
+        if (workflow == null) {
+            return null;
+        }
+        // dependents live in the reverse index rather than on the stored workflow
+        Workflow copy = copy(workflow);
+        copy.getDependents().clear();
+        copy.getDependents().addAll(dependents.getOrDefault(id, Collections.emptySet()));
+        return copy;
+    }
+
+    synchronized int size() {
+        return workflows.size();
+    }
+
+    synchronized List<WorkflowLog> getLogs() {
+        return new ArrayList<>(logs);
+    }
+
+    /**
+     * Forgets everything but the node definitions, which node caches hold copies of, so tests sharing
+     * one store start clean.
+     */
+    synchronized void clear() {
+        workflows.clear();
+        scheduled.clear();
+        ready.clear();
+        processing.clear();
+        dependents.clear();
+        statusCounts.clear();
+        nameCounts.clear();
+        retrying = 0;
+        deadLettered = 0;
+        leaseOwners.clear();
+        leaseExpiries.clear();
+        throttles.clear();
+        schedules.clear();
+        deadLetters.clear();
+        logs.clear();
+        loads.clear();
+        latencies.clear();
+        members.clear();
+    }
+
+    private void remove(ObjectId id) {
+        Workflow workflow = workflows.get(id);
+        if (workflow != null) {
+            unindex(workflow);
+        }
+        dependents.remove(id);
+    }
+
+    /**
+     * Drops dependencies that have already completed, as they will never release the workflow, and
+     * counts the rest as pending. Completed dependencies still count towards a quorum.
+     */
+    private Workflow link(Workflow workflow) {
+        int dependencies = (int) workflow.getDependencies().stream().distinct().count();
+        workflow.getDependencies().removeIf(dependency ->
+                !workflows.containsKey(dependency) && !dependency.equals(workflow.getId()));
+        int pending = (int) workflow.getDependencies().stream().distinct().count();
+        if (workflow.getQuorum() > 0) {
+            pending = Math.min(workflow.getQuorum(), dependencies) - (dependencies - pending);
+        }
+        workflow.setPendingDependencies(pending);
+        return workflow;
+    }
+
+    private static Workflow copy(Workflow workflow) {
+        Workflow copy = new Workflow(workflow);
+        copy.setContext(Workflow.copy(workflow.getContext()));
+        return copy;
+    }
+
+    private void index(Workflow workflow) {
+        workflows.put(workflow.getId(), workflow);
+        count(workflow, 1);
+        if (workflow.getStatus() == WAITING && workflow.getPendingDependencies() <= 0) {
+            workflow.rank(priorityAging);
+            scheduled.add(workflow);
+        } else if (workflow.getStatus() == PROCESSING) {
+            processing.add(workflow);
+        }
+        for (ObjectId dependency : workflow.getDependencies()) {
+            dependents.computeIfAbsent(dependency, key -> new HashSet<>()).add(workflow.getId());
+        }
+    }
+
+    private void unindex(Workflow workflow) {
+        if (workflows.remove(workflow.getId()) != null) {
+            count(workflow, -1);
+        }
+        scheduled.remove(workflow);
+        ready.remove(workflow);
+        processing.remove(workflow);
+        for (ObjectId dependency : workflow.getDependencies()) {
+            Set<ObjectId> waiting = dependents.get(dependency);
+            if (waiting != null) {
+                waiting.remove(workflow.getId());
+                if (waiting.isEmpty()) {
+                    dependents.remove(dependency);
+                }
+            }
+        }
+    }
+
+    private void count(Workflow workflow, long delta) {
+        if (workflow.getStatus() != null) {
+            statusCounts.merge(workflow.getStatus(), delta, Long::sum);
+        }
+        if (workflow.getRetry() > 0) {
+            retrying += delta;
+        }
+        if (workflow.getName() != null) {
+            nameCounts.merge(workflow.getName(), delta, (count, change) -> count + change != 0 ? count + change : null);
+        }
+    }
+
+    private static <T> void append(Deque<T> history, T entry) {
+        history.addLast(entry);
+        if (history.size() > HISTORY) {
+            history.removeFirst();
+        }
+    }
+}
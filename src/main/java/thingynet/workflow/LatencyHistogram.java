@@ -0,0 +1,132 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency counts in log-linear buckets, after HdrHistogram, so a value is reported to within about 3%
+ * whatever its size.
+ */
+class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 6;
+    static final long MAX_VALUE = 1L << 40;
+    static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private static final int HALF = 1 << (SUB_BUCKET_BITS - 1);
+
+    private final long[] counts = new long[BUCKETS];
+
+    static int index(long value) {
+        if (value < 0) {
+            return 0;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        if (value < 1L << SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF + (int) (value >> shift);
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long highestValue(int index) {
+        if (index < 1 << SUB_BUCKET_BITS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    void record(long value) {
+        counts[index(value)]++;
+    }
+
+    void add(int index, long count) {
+        counts[index] += count;
+    }
+
+    void add(AtomicLongArray other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.get(i);
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+    }
+
+    /**
+     * @return the counts added since the earlier histogram, which must be an earlier total of this one
+     */
+    LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram interval = new LatencyHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            interval.counts[i] = counts[i] - (earlier != null ? earlier.counts[i] : 0);
+        }
+        return interval;
+    }
+
+    long getCount(int index) {
+        return counts[index];
+    }
+
+    long getCount() {
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    /**
+     * @return the value that percentile percent of recorded values are at or below, or 0 when empty
+     */
+    long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return getMax();
+    }
+
+    long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,945 @@
+/*
+ * MongoWorkflowStore.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.bson.types.ObjectId;
+import org.jongo.Find;
+import org.jongo.MongoCollection;
+import org.jongo.marshall.Marshaller;
+import org.jongo.marshall.jackson.JacksonMapper;
+import thingynet.value.Value;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
+import thingynet.workflow.commands.WorkflowLoad;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static thingynet.workflow.WorkflowStatus.*;
+
+class MongoWorkflowStore implements WorkflowStore {
+    private static final String READY_QUERY = "{status:#, start:{$lte:#}, pendingDependencies:{$lte:0}}";
+    private static final String READY_SKIP_QUERY = "{status:#, start:{$lte:#}, pendingDependencies:{$lte:0}, node:{$nin:#}}";
+    private static final String READY_PARTITION_QUERY = "{status:#, partition:{$in:#}, start:{$lte:#}, pendingDependencies:{$lte:0}}";
+    private static final String READY_PARTITION_SKIP_QUERY = "{status:#, partition:{$in:#}, start:{$lte:#}, pendingDependencies:{$lte:0}, node:{$nin:#}}";
+    private static final String CLAIM_QUERY = "{_id:#, status:#, start:{$lte:#}, pendingDependencies:{$lte:0}}";
+    private static final int CLAIM_ATTEMPTS = 3;
+    private static final int DUPLICATE_KEY = 11000;
+    private static final Marshaller MARSHALLER = new JacksonMapper.Builder().build().getMarshaller();
+    static final String NODE_VERSION = "version";
+
+    private final MongoCollection workflowCollection;
+    private final MongoCollection workflowLogCollection;
+    private final MongoCollection workflowLoadCollection;
+    private final MongoCollection workflowLatencyCollection;
+    private final MongoCollection workflowNodeCollection;
+    private final MongoCollection workflowNodeVersionCollection;
+    private final MongoCollection workflowLeaseCollection;
+    private final MongoCollection workflowThrottleCollection;
+    private final MongoCollection workflowScheduleCollection;
+    private final MongoCollection workflowDeadLetterCollection;
+    private final MongoCollection workflowMemberCollection;
+    private final WorkflowCounters workflowCounters;
+    private final long priorityAging;
+    private final int partitions;
+    private final WriteConcern logWriteConcern;
+
+    MongoWorkflowStore(MongoCollection workflowCollection, MongoCollection workflowLogCollection,
+                       MongoCollection workflowLoadCollection, MongoCollection workflowLatencyCollection,
+                       MongoCollection workflowNodeCollection,
+                       MongoCollection workflowNodeVersionCollection, MongoCollection workflowLeaseCollection,
+                       MongoCollection workflowThrottleCollection, MongoCollection workflowScheduleCollection,
+                       MongoCollection workflowDeadLetterCollection, MongoCollection workflowMemberCollection,
+                       WorkflowCounters workflowCounters, long priorityAging, int partitions, WriteConcern logWriteConcern) {
+        this.workflowCollection = workflowCollection;
+        this.workflowLogCollection = workflowLogCollection;
+        this.workflowLoadCollection = workflowLoadCollection;
+        this.workflowLatencyCollection = workflowLatencyCollection;
+        this.workflowNodeCollection = workflowNodeCollection;
+        this.workflowNodeVersionCollection = workflowNodeVersionCollection;
+        this.workflowLeaseCollection = workflowLeaseCollection;
+        this.workflowThrottleCollection = workflowThrottleCollection;
+        this.workflowScheduleCollection = workflowScheduleCollection;
+        this.workflowDeadLetterCollection = workflowDeadLetterCollection;
+        this.workflowMemberCollection = workflowMemberCollection;
+        this.workflowCounters = workflowCounters;
+        this.priorityAging = priorityAging;
+        this.partitions = partitions;
+        this.logWriteConcern = logWriteConcern;
+
+        workflowCollection.ensureIndex("{'status':1, 'start':1, 'pendingDependencies':1}");
+        workflowCollection.ensureIndex("{'status':1, 'rank':1, 'start':1, 'pendingDependencies':1}");
+        workflowCollection.ensureIndex("{'status':1, 'partition':1, 'rank':1, 'start':1, 'pendingDependencies':1}");
+        workflowCollection.ensureIndex("{'_id':1, 'status':1}");
+        workflowLatencyCollection.ensureIndex("{'name':1, 'node':1, 'start':1}");
+        workflowCollection.ensureIndex("{'status':1, 'leaseUntil':1}");
+        workflowCollection.ensureIndex("{'name':1}");
+        workflowCollection.ensureIndex("{'status':1, 'node':1}");
+        workflowCollection.ensureIndex("{'start':1, 'status':1}");
+        workflowScheduleCollection.ensureIndex("{'nextRun':1}");
+        workflowCollection.ensureIndex("{'retry':1}");
+        workflowCollection.ensureIndex("{'parent':1}");
+        workflowDeadLetterCollection.ensureIndex("{'deadLettered':1}");
+    }
+
+    @PostConstruct
+    void start() {
+        workflowCounters.start();
+    }
+
+    @PreDestroy
+    void stop() {
+        workflowCounters.stop();
+    }
+
+    @Override
+    public void create(Workflow workflow) {
+        if (workflow.getId() == null) {
+            workflow.setId(new ObjectId());
+        }
+        workflow.setPendingDependencies(workflow.getRequiredDependencies());
+        workflow.rank(priorityAging);
+        workflow.partition(partitions);
+        workflowCollection.save(workflow);
+        workflowCounters.added(workflow.getStatus(), workflow.getName(), 1);
+        workflowCounters.retrying(workflow.getRetry() > 0 ? 1 : 0);
+        link(workflow);
+    }
+
+    @Override
+    public List<String> create(List<Workflow> workflows) {
+        List<String> errors = new ArrayList<>(Collections.nCopies(workflows.size(), null));
+        if (workflows.isEmpty()) {
+            return errors;
+        }
+
+        // dependencies inside the batch are linked up front so they cost no extra writes
+        Map<ObjectId, Workflow> batch = new HashMap<>();
+        for (Workflow workflow : workflows) {
+            if (workflow.getId() == null) {
+                workflow.setId(new ObjectId());
+            }
+            batch.put(workflow.getId(), workflow);
+        }
+        for (Workflow workflow : workflows) {
+            workflow.setPendingDependencies(workflow.getRequiredDependencies());
+            workflow.rank(priorityAging);
+            workflow.partition(partitions);
+            for (ObjectId dependency : workflow.getDependencies()) {
+                Workflow inBatch = batch.get(dependency);
+                if (inBatch != null && !inBatch.getDependents().contains(workflow.getId())) {
+                    inBatch.getDependents().add(workflow.getId());
+                }
+            }
+        }
+
+        BulkWriteOperation insert = workflowCollection.getDBCollection().initializeUnorderedBulkOperation();
+        for (Workflow workflow : workflows) {
+            insert.insert(MARSHALLER.marshall(workflow).toDBObject());
+        }
+        try {
+            insert.execute();
+        } catch (BulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errors.set(error.getIndex(), error.getMessage());
+                batch.remove(workflows.get(error.getIndex()).getId());
+            }
+        }
+
+        // anything depending outside the batch, or on a workflow that failed to insert, links the slow way
+        for (int i = 0; i < workflows.size(); i++) {
+            Workflow workflow = workflows.get(i);
+            if (errors.get(i) == null) {
+                workflowCounters.added(workflow.getStatus(), workflow.getName(), 1);
+                workflowCounters.retrying(workflow.getRetry() > 0 ? 1 : 0);
+            }
+            if (errors.get(i) == null && !batch.keySet().containsAll(workflow.getDependencies())) {
+                link(workflow);
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public void save(Workflow workflow) {
+        if (workflow.getId() == null) {
+            create(workflow);
+            return;
+        }
+        // dependents belong to the store, so save field by field rather than replace the document
+        workflow.setPendingDependencies(workflow.getRequiredDependencies());
+        workflow.rank(priorityAging);
+        workflow.partition(partitions);
+        // the previous status, name and retry come back with the write, so the counts move without another read
+        Workflow previous = workflowCollection.findAndModify("{_id:#}", workflow.getId())
+                .upsert()
+                .projection("{status:1, name:1, retry:1}")
+                .with("{$set:{name:#, node:#, status:#, start:#, priority:#, rank:#, affinity:#, partition:#, updated:#, " +
+                                "retry:#, claim:#, leaseUntil:#, dependencies:#, pendingDependencies:#, context:#}}",
+                        workflow.getName(),
+                        workflow.getNode(),
+                        workflow.getStatus(),
+                        workflow.getStart(),
+                        workflow.getPriority(),
+                        workflow.getRank(),
+                        workflow.getAffinity(),
+                        workflow.getPartition(),
+                        workflow.getUpdated(),
+                        workflow.getRetry(),
+                        workflow.getClaim(),
+                        workflow.getLeaseUntil(),
+                        workflow.getDependencies(),
+                        workflow.getPendingDependencies(),
+                        workflow.getContext())
+                .as(Workflow.class);
+        int wasRetrying = previous != null && previous.getRetry() > 0 ? 1 : 0;
+        if (previous != null) {
+            workflowCounters.removed(previous.getStatus(), previous.getName(), 1);
+        }
+        workflowCounters.added(workflow.getStatus(), workflow.getName(), 1);
+        workflowCounters.retrying((workflow.getRetry() > 0 ? 1 : 0) - wasRetrying);
+        link(workflow);
+    }
+
+    @Override
+    public Workflow get(ObjectId id) {
+        return workflowCollection.findOne(id).as(Workflow.class);
+    }
+
+    @Override
+    public Workflow claim(long now, ToLongFunction<String> lease, Set<String> skip, Collection<Integer> partitions) {
+        if (partitions != null && partitions.isEmpty()) {
+            return null;
+        }
+        // the lease depends on the node, so pick the candidate first and claim it by id
+        for (Workflow candidate : findReady(now, skip, partitions)
+                .sort("{rank:1}")
+                .projection("{_id:1, node:1}")
+                .limit(CLAIM_ATTEMPTS)
+                .as(Workflow.class)) {
+            Workflow claimed = workflowCollection.findAndModify(CLAIM_QUERY, candidate.getId(), WAITING, now)
+                    .with("{$set:{status:#, updated:#, leaseUntil:#}}", PROCESSING, now,
+                            now + lease.applyAsLong(candidate.getNode()))
+                    .returnNew()
+                    .as(Workflow.class);
+            if (claimed != null) {
+                workflowCounters.moved(WAITING, PROCESSING, 1);
+                claimed.clearChanges();
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<Workflow> claim(ObjectId claim, long now, int batch, ToLongFunction<String> lease, Set<String> skip,
+                                Collection<Integer> partitions) {
+        if (partitions != null && partitions.isEmpty()) {
+            return emptyList();
+        }
+        Map<String, List<ObjectId>> byNode = new HashMap<>();
+        List<ObjectId> ids = new ArrayList<>(batch);
+        for (Workflow candidate : findReady(now, skip, partitions)
+                .sort("{rank:1}")
+                .projection("{_id:1, node:1}")
+                .limit(batch)
+                .as(Workflow.class)) {
+            byNode.computeIfAbsent(candidate.getNode(), node -> new ArrayList<>()).add(candidate.getId());
+            ids.add(candidate.getId());
+        }
+        if (ids.isEmpty()) {
+            return emptyList();
+        }
+
+        // one update per node in the batch, as each node leases for its own timeout
+        int updated = 0;
+        for (Map.Entry<String, List<ObjectId>> entry : byNode.entrySet()) {
+            updated += workflowCollection.update("{_id:{$in:#}, status:#, start:{$lte:#}, pendingDependencies:{$lte:0}}", entry.getValue(), WAITING, now)
+                    .multi()
+                    .with("{$set:{status:#, updated:#, claim:#, leaseUntil:#}}", PROCESSING, now, claim,
+                            now + lease.applyAsLong(entry.getKey()))
+                    .getN();
+        }
+        workflowCounters.moved(WAITING, PROCESSING, updated);
+
+        List<Workflow> claimed = new ArrayList<>(ids.size());
+        for (Workflow workflow : workflowCollection.find("{_id:{$in:#}, status:#, claim:#}", ids, PROCESSING, claim)
+                .as(Workflow.class)) {
+            workflow.clearChanges();
+            claimed.add(workflow);
+        }
+        return claimed;
+    }
+
+    private Find findReady(long now, Set<String> skip, Collection<Integer> partitions) {
+        if (partitions != null) {
+            // workers owning different partitions walk different heads of the partition index
+            return skip.isEmpty()
+                    ? workflowCollection.find(READY_PARTITION_QUERY, WAITING, partitions, now)
+                    : workflowCollection.find(READY_PARTITION_SKIP_QUERY, WAITING, partitions, now, skip);
+        }
+        return skip.isEmpty()
+                ? workflowCollection.find(READY_QUERY, WAITING, now)
+                : workflowCollection.find(READY_SKIP_QUERY, WAITING, now, skip);
+    }
+
+    @Override
+    public boolean unclaim(Workflow workflow, long now) {
+        boolean unclaimed = workflowCollection.update("{_id:#, status:#, node:#, retry:#}",
+                workflow.getId(), PROCESSING, workflow.getNode(), workflow.getRetry())
+                .with("{$set:{status:#, updated:#}}", WAITING, now)
+                .getN() > 0;
+        if (unclaimed) {
+            workflowCounters.moved(PROCESSING, WAITING, 1);
+        }
+        return unclaimed;
+    }
+
+    @Override
+    public boolean activate(Workflow workflow, String node, long now) {
+        Map<String, Object> set = new HashMap<>();
+        Set<String> unset = new HashSet<>();
+        set.put("status", WAITING);
+        set.put("updated", now);
+        set.put("retry", 0);
+        collectChanges(workflow, set, unset);
+        boolean relink = workflow.isDependenciesChanged();
+        if (relink) {
+            workflow.setPendingDependencies(workflow.getRequiredDependencies());
+            set.put("dependencies", workflow.getDependencies());
+            set.put("pendingDependencies", workflow.getPendingDependencies());
+            set.put("quorum", workflow.getQuorum());
+        }
+        boolean activated = update(workflow, node, set, unset);
+        if (activated) {
+            workflowCounters.moved(PROCESSING, WAITING, 1);
+            // the write was guarded by the retry, so a retrying workflow has just come off its retry
+            workflowCounters.retrying(workflow.getRetry() > 0 ? -1 : 0);
+        }
+        if (activated && relink) {
+            link(workflow);
+        }
+        return activated;
+    }
+
+    @Override
+    public boolean checkpoint(Workflow workflow, String node, long now) {
+        Map<String, Object> set = new HashMap<>();
+        Set<String> unset = new HashSet<>();
+        set.put("updated", now);
+        set.put("leaseUntil", workflow.getLeaseUntil());
+        collectChanges(workflow, set, unset);
+        boolean checkpointed = update(workflow, node, set, unset);
+        if (checkpointed) {
+            workflow.clearChanges();
+        }
+        return checkpointed;
+    }
+
+    /**
+     * Adds the node, schedule and context paths changed since the workflow was claimed, so steps that
+     * leave a large context alone do not rewrite it.
+     */
+    private void collectChanges(Workflow workflow, Map<String, Object> set, Set<String> unset) {
+        if (workflow.isNodeChanged()) {
+            set.put("node", workflow.getNode());
+        }
+        if (workflow.isScheduleChanged()) {
+            workflow.rank(priorityAging);
+            set.put("start", workflow.getStart());
+            set.put("priority", workflow.getPriority());
+            set.put("rank", workflow.getRank());
+        }
+        workflow.collectContextChanges(set, unset);
+    }
+
+    /**
+     * Applies the changes while the stored workflow is still PROCESSING the node with the same retry.
+     * The update is built by hand because Jongo drops the type of values nested in a map parameter.
+     */
+    private boolean update(Workflow workflow, String node, Map<String, Object> set, Set<String> unset) {
+        DBObject query = new BasicDBObject("_id", workflow.getId())
+                .append("status", PROCESSING.name())
+                .append("node", node)
+                .append("retry", workflow.getRetry());
+        BasicDBObject fields = new BasicDBObject();
+        for (Map.Entry<String, Object> entry : set.entrySet()) {
+            fields.append(entry.getKey(), toDocumentValue(entry.getValue()));
+        }
+        BasicDBObject update = new BasicDBObject("$set", fields);
+        if (!unset.isEmpty()) {
+            BasicDBObject removed = new BasicDBObject();
+            for (String path : unset) {
+                removed.append(path, "");
+            }
+            update.append("$unset", removed);
+        }
+        return workflowCollection.getDBCollection().update(query, update).getN() > 0;
+    }
+
+    private static List<DBObject> toDocuments(List<?> records) {
+        List<DBObject> documents = new ArrayList<>(records.size());
+        for (Object record : records) {
+            // the marshalled document is read only, and the driver needs to add the _id
+            BasicDBObject document = new BasicDBObject();
+            document.putAll(MARSHALLER.marshall(record).toDBObject());
+            documents.add(document);
+        }
+        return documents;
+    }
+
+    private static Object toDocumentValue(Object value) {
+        if (value instanceof Value) {
+            return MARSHALLER.marshall(value).toDBObject();
+        }
+        if (value instanceof Enum) {
+            return ((Enum) value).name();
+        }
+        return value;
+    }
+
+    @Override
+    public int activateOnHold(List<ObjectId> ids, long now) {
+        int activated = 0;
+        for (ObjectId id : ids) {
+            activated += workflowCollection.update("{_id:#, status:#}", id, INITIALISING)
+                    .with("{$set:{status:#, updated:#}}", WAITING, now)
+                    .getN();
+        }
+        workflowCounters.moved(INITIALISING, WAITING, activated);
+        return activated;
+    }
+
+    @Override
+    public void complete(Workflow workflow, long now) {
+        // the stored document is the only up to date record of who waits on this workflow
+        Workflow removed = workflowCollection.findAndModify("{_id:#}", workflow.getId())
+                .remove()
+                .as(Workflow.class);
+        if (removed != null) {
+            workflowCounters.removed(removed.getStatus(), removed.getName(), 1);
+            workflowCounters.retrying(removed.getRetry() > 0 ? -1 : 0);
+        }
+        if (removed == null || removed.getDependents().isEmpty()) {
+            return;
+        }
+        List<ObjectId> dependents = new ArrayList<>(removed.getDependents());
+        if (workflow.getParent() != null && dependents.remove(workflow.getParent())) {
+            merge(workflow, now);
+        }
+        if (!dependents.isEmpty()) {
+            workflowCollection.update("{_id:{$in:#}}", dependents)
+                    .multi()
+                    .with("{'$inc':{pendingDependencies:-1}, '$pull':{dependencies:#}, '$set':{updated:#}}", workflow.getId(), now);
+        }
+    }
+
+    /**
+     * Releases a finished branch's parent and sets the branch's context under its key in the same
+     * write, so the parent never resumes without it.
+     */
+    private void merge(Workflow branch, long now) {
+        BasicDBObject set = new BasicDBObject("updated", now)
+                .append("context.value." + branch.getBranch(), toDocumentValue(branch.getContext()));
+        DBObject update = new BasicDBObject("$inc", new BasicDBObject("pendingDependencies", -1))
+                .append("$pull", new BasicDBObject("dependencies", branch.getId()))
+                .append("$set", set);
+        workflowCollection.getDBCollection().update(new BasicDBObject("_id", branch.getParent()), update);
+    }
+
+    @Override
+    public int join(Workflow workflow, long now) {
+        int removed = 0;
+        for (Workflow branch : workflowCollection.find("{parent:#}", workflow.getId())
+                .projection("{_id:1}")
+                .as(Workflow.class)) {
+            Workflow cancelled = workflowCollection.findAndModify("{_id:#}", branch.getId())
+                    .remove()
+                    .projection("{status:1, name:1, retry:1}")
+                    .as(Workflow.class);
+            if (cancelled != null) {
+                workflowCounters.removed(cancelled.getStatus(), cancelled.getName(), 1);
+                workflowCounters.retrying(cancelled.getRetry() > 0 ? -1 : 0);
+                removed++;
+            }
+        }
+        workflowCollection.update("{_id:#, status:#}", workflow.getId(), PROCESSING)
+                .with("{$set:{dependencies:[], pendingDependencies:0, quorum:0, updated:#}}", now);
+        workflow.getDependencies().clear();
+        workflow.setPendingDependencies(0);
+        workflow.setQuorum(0);
+        workflow.clearChanges();
+        return removed;
+    }
+
+    @Override
+    public void remove(Workflow workflow) {
+        Workflow removed = workflowCollection.findAndModify("{_id:#}", workflow.getId())
+                .remove()
+                .projection("{status:1, name:1, retry:1}")
+                .as(Workflow.class);
+        if (removed != null) {
+            workflowCounters.removed(removed.getStatus(), removed.getName(), 1);
+            workflowCounters.retrying(removed.getRetry() > 0 ? -1 : 0);
+        }
+    }
+
+    @Override
+    public Map<String, Integer> sweep(long now, Function<String, WorkflowNode> nodes) {
+        // one update per node with expired leases, so recoveries can be reported by node
+        Map<String, Integer> recovered = new HashMap<>();
+        for (String node : workflowCollection.distinct("node")
+                .query("{status:#, leaseUntil:{$lte:#}}", PROCESSING, now)
+                .as(String.class)) {
+            WorkflowNode policy = nodes.apply(node);
+            int swept;
+            if (policy != null && policy.hasRetryPolicy()) {
+                swept = sweep(policy, now);
+            } else {
+                swept = workflowCollection.update("{status:#, leaseUntil:{$lte:#}, node:#, retry:{$gt:0}}", PROCESSING, now, node)
+                        .multi()
+                        .with("{'$inc':{retry:1}, '$set':{status:#, updated:#}}", WAITING, now)
+                        .getN();
+                // first retries are swept after the rest, so none is swept twice, and counted as retrying
+                int first = workflowCollection.update("{status:#, leaseUntil:{$lte:#}, node:#, retry:0}", PROCESSING, now, node)
+                        .multi()
+                        .with("{'$inc':{retry:1}, '$set':{status:#, updated:#}}", WAITING, now)
+                        .getN();
+                swept += first;
+                workflowCounters.moved(PROCESSING, WAITING, swept);
+                workflowCounters.retrying(first);
+            }
+            if (swept > 0) {
+                recovered.put(node, swept);
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * Sweeps the node's expired leases one workflow at a time, as each backs off by its own retry
+     * count and jitter. Every write is guarded by the retry read, so a worker that activates the
+     * workflow in the meantime wins.
+     */
+    private int sweep(WorkflowNode node, long now) {
+        int swept = 0;
+        for (Workflow expired : workflowCollection.find("{status:#, leaseUntil:{$lte:#}, node:#}", PROCESSING, now, node.getName())
+                .projection("{_id:1, retry:1, priority:1}")
+                .as(Workflow.class)) {
+            if (node.isExhausted(expired.getRetry())) {
+                // the dead letter is written before the workflow goes, so a failure in between loses neither
+                Workflow exhausted = workflowCollection.findOne("{_id:#, status:#, retry:#}",
+                        expired.getId(), PROCESSING, expired.getRetry())
+                        .as(Workflow.class);
+                if (exhausted == null) {
+                    continue;
+                }
+                workflowDeadLetterCollection.save(new WorkflowDeadLetter(exhausted, now));
+                if (workflowCollection.remove("{_id:#, status:#, retry:#}", expired.getId(), PROCESSING, expired.getRetry()).getN() == 0) {
+                    // a worker moved it on after the read
+                    workflowDeadLetterCollection.remove("{_id:#}", expired.getId());
+                    continue;
+                }
+                workflowCounters.removed(PROCESSING, exhausted.getName(), 1);
+                workflowCounters.retrying(exhausted.getRetry() > 0 ? -1 : 0);
+                workflowCounters.deadLettered(1);
+                swept++;
+            } else {
+                expired.setStart(now + node.getRetryDelay(expired.getRetry() + 1));
+                expired.rank(priorityAging);
+                int updated = workflowCollection.update("{_id:#, status:#, retry:#}", expired.getId(), PROCESSING, expired.getRetry())
+                        .with("{'$inc':{retry:1}, '$set':{status:#, updated:#, start:#, rank:#}}",
+                                WAITING, now, expired.getStart(), expired.getRank())
+                        .getN();
+                workflowCounters.moved(PROCESSING, WAITING, updated);
+                workflowCounters.retrying(expired.getRetry() == 0 ? updated : 0);
+                swept += updated;
+            }
+        }
+        return swept;
+    }
+
+    @Override
+    public List<WorkflowDeadLetter> getDeadLetters(int limit) {
+        List<WorkflowDeadLetter> deadLetters = new ArrayList<>();
+        for (WorkflowDeadLetter deadLetter : workflowDeadLetterCollection.find()
+                .sort("{deadLettered:-1}")
+                .limit(limit)
+                .as(WorkflowDeadLetter.class)) {
+            deadLetters.add(deadLetter);
+        }
+        return deadLetters;
+    }
+
+    @Override
+    public List<Workflow> getScheduled(long from, long to, int limit) {
+        List<Workflow> scheduled = new ArrayList<>();
+        for (Workflow workflow : workflowCollection.find("{status:{$in:#}, start:{$gt:#, $lte:#}}",
+                asList(WAITING, INITIALISING), from, to)
+                .sort("{start:1}")
+                .projection("{_id:1, start:1}")
+                .limit(limit)
+                .as(Workflow.class)) {
+            scheduled.add(workflow);
+        }
+        return scheduled;
+    }
+
+    @Override
+    public void saveSchedule(WorkflowSchedule schedule) {
+        workflowScheduleCollection.save(schedule);
+    }
+
+    @Override
+    public void removeSchedule(String id) {
+        workflowScheduleCollection.remove("{_id:#}", id);
+    }
+
+    @Override
+    public WorkflowSchedule getSchedule(String id) {
+        return workflowScheduleCollection.findOne("{_id:#}", id).as(WorkflowSchedule.class);
+    }
+
+    @Override
+    public List<WorkflowSchedule> getSchedules(long until) {
+        List<WorkflowSchedule> schedules = new ArrayList<>();
+        for (WorkflowSchedule schedule : workflowScheduleCollection.find("{nextRun:{$lte:#}}", until)
+                .as(WorkflowSchedule.class)) {
+            schedules.add(schedule);
+        }
+        return schedules;
+    }
+
+    @Override
+    public boolean advanceSchedule(String id, long nextRun, long followingRun, long lastRun) {
+        return workflowScheduleCollection.update("{_id:#, nextRun:#}", id, nextRun)
+                .with("{$set:{nextRun:#, lastRun:#}}", followingRun, lastRun)
+                .getN() > 0;
+    }
+
+    @Override
+    public long getNextLeaseExpiry() {
+        for (Workflow workflow : workflowCollection.find("{status:#}", PROCESSING)
+                .sort("{leaseUntil:1}")
+                .projection("{leaseUntil:1}")
+                .limit(1)
+                .as(Workflow.class)) {
+            return workflow.getLeaseUntil();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean acquireLease(String name, String owner, long now, long until) {
+        try {
+            // a lease held by someone else does not match, so the upsert collides on _id and fails
+            return workflowLeaseCollection.update("{_id:#, $or:[{owner:#}, {until:{$lte:#}}]}", name, owner, now)
+                    .upsert()
+                    .with("{$set:{owner:#, until:#}}", owner, until)
+                    .getN() > 0;
+        } catch (MongoException e) {
+            if (e.getCode() != DUPLICATE_KEY) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void releaseLease(String name, String owner) {
+        workflowLeaseCollection.update("{_id:#, owner:#}", name, owner).with("{$set:{until:0}}");
+    }
+
+    @Override
+    public List<String> renewMembership(String member, long now, long until) {
+        workflowMemberCollection.update("{_id:#}", member).upsert().with("{$set:{until:#}}", until);
+        workflowMemberCollection.remove("{until:{$lte:#}}", now);
+        List<String> members = new ArrayList<>(workflowMemberCollection.distinct("_id").as(String.class));
+        Collections.sort(members);
+        return members;
+    }
+
+    @Override
+    public void leaveMembership(String member) {
+        workflowMemberCollection.remove("{_id:#}", member);
+    }
+
+    @Override
+    public boolean acquireThrottle(WorkflowNode node, long now) {
+        for (int attempt = 0; attempt < CLAIM_ATTEMPTS; attempt++) {
+            WorkflowThrottleState state = workflowThrottleCollection.findOne("{_id:#}", node.getName())
+                    .as(WorkflowThrottleState.class);
+            if (state == null) {
+                state = new WorkflowThrottleState(node, now);
+            }
+            if (state.isSaturated(node, now)) {
+                return false;
+            }
+            long version = state.getVersion();
+            state.acquire(node, now);
+            try {
+                // another claim since the read bumps the version, and the first claim on a node races
+                // to insert it, so either way this attempt misses and reads again
+                if (workflowThrottleCollection.update("{_id:#, version:#}", node.getName(), version)
+                        .upsert()
+                        .with("{$inc:{held:1, version:1}, $set:{tokens:#, refilled:#}}",
+                                state.getTokens(), state.getRefilled())
+                        .getN() > 0) {
+                    return true;
+                }
+            } catch (MongoException e) {
+                if (e.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                // lost the insert to another claim
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void releaseThrottle(String node, int count) {
+        // never below zero, so a release the monitor already reconciled cannot free a slot twice
+        if (workflowThrottleCollection.update("{_id:#, held:{$gte:#}}", node, count)
+                .with("{$inc:{held:#}}", -count)
+                .getN() == 0) {
+            workflowThrottleCollection.update("{_id:#}", node).with("{$set:{held:0}}");
+        }
+    }
+
+    @Override
+    public Set<String> getSaturated(Collection<WorkflowNode> nodes, long now) {
+        Map<String, WorkflowThrottleState> states = new HashMap<>();
+        List<String> names = new ArrayList<>(nodes.size());
+        for (WorkflowNode node : nodes) {
+            names.add(node.getName());
+        }
+        for (WorkflowThrottleState state : workflowThrottleCollection.find("{_id:{$in:#}}", names)
+                .as(WorkflowThrottleState.class)) {
+            states.put(state.getNode(), state);
+        }
+        Set<String> saturated = new HashSet<>();
+        for (WorkflowNode node : nodes) {
+            WorkflowThrottleState state = states.get(node.getName());
+            if (state != null && state.isSaturated(node, now)) {
+                saturated.add(node.getName());
+            }
+        }
+        return saturated;
+    }
+
+    @Override
+    public Map<String, Integer> reconcileThrottles(Collection<WorkflowNode> nodes) {
+        Map<String, Integer> held = new TreeMap<>();
+        for (WorkflowNode node : nodes) {
+            int processing = (int) workflowCollection.count("{status:#, node:#}", PROCESSING, node.getName());
+            // left to the first claim to insert, so the version the claims compare on starts from zero
+            workflowThrottleCollection.update("{_id:#}", node.getName()).with("{$set:{held:#}}", processing);
+            held.put(node.getName(), processing);
+        }
+        return held;
+    }
+
+    @Override
+    public long getWaiting(String node) {
+        return workflowCollection.count("{status:#, node:#}", WAITING, node);
+    }
+
+    @Override
+    public long getReady(long now) {
+        return workflowCollection.count(READY_QUERY, WAITING, now);
+    }
+
+    @Override
+    public WorkflowLoad getLoad(long now) {
+        // priority levels are few, so a count per distinct level stays cheap
+        Map<Integer, Long> byPriority = new TreeMap<>();
+        for (Integer priority : workflowCollection.distinct("priority").query(READY_QUERY, WAITING, now).as(Integer.class)) {
+            byPriority.put(priority, workflowCollection.count(
+                    "{status:#, start:{$lte:#}, pendingDependencies:{$lte:0}, priority:#}", WAITING, now, priority));
+        }
+        WorkflowLoad load = new WorkflowLoad(
+                workflowCollection.count("{status:#}", INITIALISING),
+                workflowCollection.count("{status:#, start:{$lte:#}, pendingDependencies:{$lte:0}}", WAITING, now),
+                workflowCollection.count("{status:#, start:{$lte:#}, pendingDependencies:{$gt:0}}", WAITING, now),
+                workflowCollection.count("{status:#, start:{$gt:#}, pendingDependencies:{$lte:0}}", WAITING, now),
+                workflowCollection.count("{status:#}", PROCESSING)
+        );
+        load.setWaiting(workflowCollection.count("{status:#}", WAITING));
+        load.setRetrying(workflowCollection.count("{retry:{$gt:0}}"));
+        load.setDeadLettered(workflowDeadLetterCollection.count());
+        load.setWaitingByPriority(byPriority);
+        return load;
+    }
+
+    @Override
+    public WorkflowLoad getCounts(long now) {
+        Map<String, Long> byStatus = workflowCounters.get(WorkflowCounters.STATUS);
+        WorkflowLoad load = new WorkflowLoad();
+        load.setCreated(now);
+        load.setInitialising(byStatus.getOrDefault(INITIALISING.name(), 0L));
+        load.setWaiting(byStatus.getOrDefault(WAITING.name(), 0L));
+        load.setProcessing(byStatus.getOrDefault(PROCESSING.name(), 0L));
+        load.setByName(new TreeMap<>(workflowCounters.get(WorkflowCounters.NAME)));
+        Map<String, Long> byState = workflowCounters.get(WorkflowCounters.STATE);
+        load.setRetrying(byState.getOrDefault(WorkflowCounters.RETRYING, 0L));
+        load.setDeadLettered(byState.getOrDefault(WorkflowCounters.DEAD_LETTERED, 0L));
+        return load;
+    }
+
+    @Override
+    public long reconcileCounts() {
+        Map<String, Long> byStatus = new HashMap<>();
+        for (WorkflowStatus status : WorkflowStatus.values()) {
+            byStatus.put(status.name(), workflowCollection.count("{status:#}", status));
+        }
+        Map<String, Long> byName = new HashMap<>();
+        for (String name : workflowCollection.distinct("name").as(String.class)) {
+            if (name != null) {
+                byName.put(name, workflowCollection.count("{name:#}", name));
+            }
+        }
+        Map<String, Long> byState = new HashMap<>();
+        byState.put(WorkflowCounters.RETRYING, workflowCollection.count("{retry:{$gt:0}}"));
+        byState.put(WorkflowCounters.DEAD_LETTERED, workflowDeadLetterCollection.count());
+        return workflowCounters.reconcile(WorkflowCounters.STATUS, byStatus)
+                + workflowCounters.reconcile(WorkflowCounters.NAME, byName)
+                + workflowCounters.reconcile(WorkflowCounters.STATE, byState);
+    }
+
+    @Override
+    public void saveLoad(WorkflowLoad load) {
+        workflowLoadCollection.save(load);
+    }
+
+    @Override
+    public List<WorkflowLoad> getLoads(long from, long to) {
+        List<WorkflowLoad> loads = new ArrayList<>();
+        for (WorkflowLoad load : workflowLoadCollection.find("{created:{$gte:#, $lte:#}}", from, to)
+                .sort("{created:1}").as(WorkflowLoad.class)) {
+            loads.add(load);
+        }
+        return loads;
+    }
+
+    @Override
+    public void saveLogs(List<WorkflowLog> logs) {
+        workflowLogCollection.getDBCollection().insert(toDocuments(logs), logWriteConcern);
+    }
+
+    @Override
+    public void saveLatencies(List<WorkflowLatencyInterval> intervals) {
+        workflowLatencyCollection.getDBCollection().insert(toDocuments(intervals), logWriteConcern);
+    }
+
+    @Override
+    public List<WorkflowLatencyInterval> getLatencies(String name, String node, long from, long to) {
+        List<WorkflowLatencyInterval> intervals = new ArrayList<>();
+        for (WorkflowLatencyInterval interval : workflowLatencyCollection
+                .find("{name:#, node:#, start:{$lt:#}, end:{$gt:#}}", name, node, to, from)
+                .as(WorkflowLatencyInterval.class)) {
+            intervals.add(interval);
+        }
+        return intervals;
+    }
+
+    @Override
+    public Iterable<WorkflowNode> getNodes() {
+        return workflowNodeCollection.find().as(WorkflowNode.class);
+    }
+
+    @Override
+    public WorkflowNode getNode(String name) {
+        return workflowNodeCollection.findOne("{_id:#}", name).as(WorkflowNode.class);
+    }
+
+    @Override
+    public long saveNode(WorkflowNode node) {
+        workflowNodeCollection.save(node);
+        return workflowNodeVersionCollection.findAndModify("{_id:#}", NODE_VERSION)
+                .upsert()
+                .with("{$inc:{version:1}}")
+                .returnNew()
+                .as(WorkflowNodeVersion.class)
+                .version;
+    }
+
+    @Override
+    public long getNodeVersion() {
+        WorkflowNodeVersion stored = workflowNodeVersionCollection.findOne("{_id:#}", NODE_VERSION).as(WorkflowNodeVersion.class);
+        return stored != null ? stored.version : 0;
+    }
+
+    /**
+     * Records the workflow as a dependent of each of its dependencies. The workflow has already been
+     * written with one pending dependency per entry, and a dependency that is gone by now has
+     * completed and will never release it, so the pending count drops by one for each dependency that
+     * could not be linked and those entries are dropped from the list.
+     */
+    private void link(Workflow workflow) {
+        List<ObjectId> dependencies = workflow.getDependencies();
+        if (dependencies.isEmpty()) {
+            return;
+        }
+        int linked = workflowCollection.update("{_id:{$in:#}}", dependencies)
+                .multi()
+                .with("{$addToSet:{dependents:#}}", workflow.getId())
+                .getN();
+        int unlinked = linked - dependencies.size();
+        if (unlinked < 0) {
+            List<ObjectId> completed = new ArrayList<>(dependencies);
+            for (Workflow dependency : workflowCollection.find("{_id:{$in:#}, dependents:#}", dependencies, workflow.getId())
+                    .projection("{_id:1}")
+                    .as(Workflow.class)) {
+                completed.removeIf(dependency.getId()::equals);
+            }
+            workflowCollection.update("{_id:#}", workflow.getId())
+                    .with("{$inc:{pendingDependencies:#}, $pullAll:{dependencies:#}}", unlinked, completed);
+            workflow.setPendingDependencies(workflow.getPendingDependencies() + unlinked);
+            dependencies.removeAll(completed);
+        }
+    }
+
+    static class WorkflowNodeVersion {
+        @JsonProperty("_id")
+        private String id;
+
+        private long version;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * TimingWheel.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel, each level's buckets as wide as the whole level below. Items fire on the
+ * first tick at or after they are due. Not thread safe.
+ */
+class TimingWheel<T> {
+    private final long tickMillis;
+    private final int slots;
+    private final int levels;
+    // ticks covered by one bucket at each level, and by the whole wheel at the last entry
+    private final long[] spans;
+    private final List<List<List<Entry<T>>>> buckets = new ArrayList<>();
+
+    private long current;
+    private int size;
+
+    TimingWheel(long tickMillis, int slots, int levels, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = slots;
+        this.levels = levels;
+        this.spans = new long[levels + 1];
+        spans[0] = 1;
+        for (int level = 0; level < levels; level++) {
+            spans[level + 1] = spans[level] * slots;
+            List<List<Entry<T>>> wheel = new ArrayList<>(slots);
+            for (int slot = 0; slot < slots; slot++) {
+                wheel.add(new ArrayList<>());
+            }
+            buckets.add(wheel);
+        }
+        this.current = now / tickMillis;
+    }
+
+    /**
+     * @return how far ahead of the current tick an item can be added, in millis
+     */
+    long getHorizon() {
+        return (spans[levels] - 1) * tickMillis;
+    }
+
+    /**
+     * Adds an item to fire at due. An item already due fires on the next tick.
+     *
+     * @return false when due is beyond the horizon and the item was not added
+     */
+    boolean add(T item, long due) {
+        long tick = Math.max((due + tickMillis - 1) / tickMillis, current + 1);
+        if (tick - current >= spans[levels]) {
+            return false;
+        }
+        place(new Entry<>(item, tick));
+        size++;
+        return true;
+    }
+
+    /**
+     * Moves the wheel on to now, firing every item that has come due.
+     *
+     * @return the number of items fired
+     */
+    int advance(long now, Consumer<T> fire) {
+        long target = now / tickMillis;
+        if (size == 0) {
+            current = Math.max(current, target);
+            return 0;
+        }
+        int fired = 0;
+        while (current < target && size > 0) {
+            current++;
+            for (int level = levels - 1; level > 0; level--) {
+                if (current % spans[level] == 0) {
+                    List<Entry<T>> bucket = bucket(level, current);
+                    List<Entry<T>> cascading = new ArrayList<>(bucket);
+                    bucket.clear();
+                    cascading.forEach(this::place);
+                }
+            }
+            List<Entry<T>> due = bucket(0, current);
+            for (Entry<T> entry : due) {
+                fire.accept(entry.item);
+            }
+            fired += due.size();
+            size -= due.size();
+            due.clear();
+        }
+        current = Math.max(current, target);
+        return fired;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for (List<List<Entry<T>>> wheel : buckets) {
+            wheel.forEach(List::clear);
+        }
+        size = 0;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - current;
+        int level = 0;
+        while (delta >= spans[level + 1]) {
+            level++;
+        }
+        bucket(level, entry.tick).add(entry);
+    }
+
+    private List<Entry<T>> bucket(int level, long tick) {
+        return buckets.get(level).get((int) (tick / spans[level] % slots));
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long tick;
+
+        Entry(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+}
@@ -18,18 +18,25 @@
 
 package thingynet.workflow;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 import org.bson.types.ObjectId;
+import org.jongo.Mapper;
+import org.jongo.marshall.jackson.JacksonMapper;
 import thingynet.value.Value;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static java.lang.System.currentTimeMillis;
 
 public class Workflow {
+    private static final Mapper MAPPER = new JacksonMapper.Builder().build();
 
     @JsonProperty("_id")
     private ObjectId id;
@@ -42,14 +49,58 @@ public class Workflow {
 
     private long start;
 
+    private int priority;
+
+    private long rank;
+
+    // workflows sharing an affinity key hash to the same partition, and so are claimed by the same worker
+    private String affinity;
+
+    private int partition;
+
     private long updated;
 
     private int retry;
 
+    private ObjectId claim;
+
+    private long leaseUntil;
+
     private List<ObjectId> dependencies = new ArrayList<>();
 
+    private int pendingDependencies;
+
+    private List<ObjectId> dependents = new ArrayList<>();
+
+    // dependencies that must complete before the workflow is ready, 0 for all of them
+    private int quorum;
+
+    // the workflow a branch was forked from, and the key its context is merged under when it completes
+    private ObjectId parent;
+
+    private String branch;
+
     private Value context;
 
+    // what the store last held, recorded by clearChanges() so writes can leave unchanged fields out
+    @JsonIgnore
+    private boolean tracked;
+
+    @JsonIgnore
+    private String storedNode;
+
+    @JsonIgnore
+    private long storedStart;
+
+    @JsonIgnore
+    private int storedPriority;
+
+    @JsonIgnore
+    private List<ObjectId> storedDependencies;
+
+    @JsonIgnore
+    private Value storedContext;
+
     Workflow() {
     }
 
@@ -62,10 +113,37 @@ public class Workflow {
         this.updated = currentTimeMillis();
     }
 
+    Workflow(Workflow other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.node = other.node;
+        this.status = other.status;
+        this.start = other.start;
+        this.priority = other.priority;
+        this.rank = other.rank;
+        this.affinity = other.affinity;
+        this.partition = other.partition;
+        this.updated = other.updated;
+        this.retry = other.retry;
+        this.claim = other.claim;
+        this.leaseUntil = other.leaseUntil;
+        this.dependencies = new ArrayList<>(other.dependencies);
+        this.pendingDependencies = other.pendingDependencies;
+        this.dependents = new ArrayList<>(other.dependents);
+        this.quorum = other.quorum;
+        this.parent = other.parent;
+        this.branch = other.branch;
+        this.context = other.context;
+    }
+
     public ObjectId getId() {
         return this.id;
     }
 
+    void setId(ObjectId id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -94,6 +172,47 @@ public class Workflow {
         this.start = start;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    long getRank() {
+        return rank;
+    }
+
+    /**
+     * Ranks the workflow for claiming. Each priority level is worth priorityAging millis of waiting, so
+     * higher priorities go first but lower priority work that has waited long enough overtakes them.
+     */
+    void rank(long priorityAging) {
+        this.rank = start - priority * priorityAging;
+    }
+
+    public String getAffinity() {
+        return affinity;
+    }
+
+    public void setAffinity(String affinity) {
+        this.affinity = affinity;
+    }
+
+    int getPartition() {
+        return partition;
+    }
+
+    /**
+     * Hashes the affinity key into one of the partitions, or the id when there is no key so unrelated
+     * workflows spread evenly. With no partitions every workflow is in partition zero.
+     */
+    void partition(int partitions) {
+        Object key = affinity != null ? affinity : id;
+        this.partition = partitions > 0 && key != null ? Math.floorMod(key.hashCode(), partitions) : 0;
+    }
+
     public long getUpdated() {
         return this.updated;
     }
@@ -110,10 +229,73 @@ public class Workflow {
         this.retry = retry;
     }
 
+    ObjectId getClaim() {
+        return claim;
+    }
+
+    void setClaim(ObjectId claim) {
+        this.claim = claim;
+    }
+
+    long getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    void setLeaseUntil(long leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
     public List<ObjectId> getDependencies() {
         return this.dependencies;
     }
 
+    int getPendingDependencies() {
+        return pendingDependencies;
+    }
+
+    void setPendingDependencies(int pendingDependencies) {
+        this.pendingDependencies = pendingDependencies;
+    }
+
+    /**
+     * Workflows waiting on this one. Only the store maintains this list.
+     */
+    List<ObjectId> getDependents() {
+        return dependents;
+    }
+
+    int getQuorum() {
+        return quorum;
+    }
+
+    void setQuorum(int quorum) {
+        this.quorum = quorum;
+    }
+
+    /**
+     * @return the number of dependencies that must complete, the quorum when one is set
+     */
+    @JsonIgnore
+    int getRequiredDependencies() {
+        return quorum > 0 ? Math.min(quorum, dependencies.size()) : dependencies.size();
+    }
+
+    ObjectId getParent() {
+        return parent;
+    }
+
+    void setParent(ObjectId parent) {
+        this.parent = parent;
+    }
+
+    String getBranch() {
+        return branch;
+    }
+
+    void setBranch(String branch) {
+        this.branch = branch;
+    }
+
     public Value getContext() {
         return context;
     }
@@ -122,6 +304,59 @@ public class Workflow {
         this.context = context;
     }
 
+    /**
+     * Records the workflow as matching the stored document. Until this is called every field counts
+     * as changed.
+     */
+    void clearChanges() {
+        tracked = true;
+        storedNode = node;
+        storedStart = start;
+        storedPriority = priority;
+        storedDependencies = new ArrayList<>(dependencies);
+        storedContext = context;
+        if (context != null) {
+            context.clearChanges();
+        }
+    }
+
+    boolean isNodeChanged() {
+        return !tracked || !Objects.equals(node, storedNode);
+    }
+
+    /**
+     * @return true when the start or priority, and so the rank, have changed
+     */
+    boolean isScheduleChanged() {
+        return !tracked || start != storedStart || priority != storedPriority;
+    }
+
+    boolean isDependenciesChanged() {
+        return !tracked || !dependencies.equals(storedDependencies);
+    }
+
+    /**
+     * Adds the context paths that need writing under "context", or the whole context when it was
+     * replaced.
+     */
+    void collectContextChanges(Map<String, Object> set, Set<String> unset) {
+        if (!tracked || context != storedContext) {
+            set.put("context", context);
+        } else if (context != null) {
+            ((Value<?>) context).collectChanges("context", set, unset);
+        }
+    }
+
+    /**
+     * @return a deep copy of the context, so the copy can be changed without touching the original
+     */
+    static Value copy(Value context) {
+        if (context == null) {
+            return null;
+        }
+        return MAPPER.getUnmarshaller().unmarshall(MAPPER.getMarshaller().marshall(context), Value.class);
+    }
+
     public String toString() {
         return ReflectionToStringBuilder.toString(this, ToStringStyle.SHORT_PREFIX_STYLE);
     }
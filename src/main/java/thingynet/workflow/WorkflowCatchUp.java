@@ -0,0 +1,41 @@
+/*
+ * WorkflowCatchUp.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+/**
+ * What a recurring schedule does with ticks it missed while no scheduler was running, or while the
+ * scheduler was running late.
+ */
+public enum WorkflowCatchUp {
+    /**
+     * Missed ticks are dropped, and only a tick reached within workflow.schedule.grace millis of its
+     * time creates a workflow.
+     */
+    SKIP,
+
+    /**
+     * Missed ticks are coalesced into one workflow for the latest of them.
+     */
+    LATEST,
+
+    /**
+     * Every missed tick creates its own workflow, up to workflow.schedule.catchup.max at once.
+     */
+    ALL
+}
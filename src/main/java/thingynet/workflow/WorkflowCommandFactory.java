@@ -20,6 +20,7 @@ package thingynet.workflow;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -30,6 +31,9 @@ class WorkflowCommandFactory {
 
     private Map<String, WorkflowCommand> registeredCommands;
 
+    @Value("${workflow.monitor.default.timeout}")
+    private long defaultTimeout;
+
     public WorkflowCommand getCommand(String name) {
         if (registeredCommands != null) {
             return registeredCommands.get(name);
@@ -37,6 +41,15 @@ class WorkflowCommandFactory {
         return null;
     }
 
+    /**
+     * Returns how long a worker may hold a workflow on the node before the monitor takes it back, the
+     * command's own timeout when it has one and the default otherwise.
+     */
+    public long getLease(String name) {
+        WorkflowCommand command = getCommand(name);
+        return command != null && command.getTimeout() > 0 ? command.getTimeout() : defaultTimeout;
+    }
+
     public Map<String, WorkflowCommand> getRegisteredCommands() {
         return registeredCommands;
     }
@@ -19,18 +19,26 @@
 package thingynet.workflow;
 
 import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
 import org.jongo.Jongo;
 import org.jongo.MongoCollection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
 import thingynet.workflow.commands.WorkflowLoad;
 
 import java.io.IOException;
 
 @Configuration
 class WorkflowConfig {
+    static final String MEMORY_STORE = "memory";
+    static final String WORKFLOW_LEASE = "WorkflowLease";
+    static final String WORKFLOW_MEMBER = "WorkflowMember";
+    static final String WORKFLOW_COUNTER = "WorkflowCounter";
+    static final String WORKFLOW_THROTTLE = "WorkflowThrottle";
 
     @Autowired
     MongoClient mongoClient;
@@ -42,16 +50,87 @@ class WorkflowConfig {
     private String workflowLoadDb;
     @Value("${workflow.node.db}")
     private String workflowNodeDb;
+    @Value("${workflow.store}")
+    private String workflowStore;
+    @Value("${workflow.priority.aging}")
+    private long workflowPriorityAging;
+    @Value("${workflow.partitions}")
+    private int workflowPartitions;
+    @Value("${workflow.load.counter.shards}")
+    private int workflowLoadCounterShards;
+    @Value("${workflow.load.counter.flush}")
+    private long workflowLoadCounterFlush;
+    @Value("${workflow.log.write.concern}")
+    private String workflowLogWriteConcern;
+    @Value("${workflow.log.writer.async}")
+    private boolean workflowLogWriterAsync;
+    @Value("${workflow.log.writer.queue}")
+    private int workflowLogWriterQueue;
+    @Value("${workflow.log.writer.batch}")
+    private int workflowLogWriterBatch;
+    @Value("${workflow.log.writer.flush}")
+    private long workflowLogWriterFlush;
+    @Value("${workflow.log.writer.overflow}")
+    private WorkflowLogOverflow workflowLogWriterOverflow;
+    @Value("${workflow.log.writer.sample}")
+    private int workflowLogWriterSample;
+
+    @Autowired
+    GaugeService gaugeService;
+
+    @Bean
+    public WorkflowStore workflowStore() throws IOException {
+        if (MEMORY_STORE.equals(workflowStore)) {
+            return new InMemoryWorkflowStore(workflowPriorityAging, workflowPartitions);
+        }
+        return new MongoWorkflowStore(workflowCollection(), workflowLogCollection(), workflowLoadCollection(),
+                workflowLatencyCollection(), workflowNodeCollection(), workflowNodeVersionCollection(), workflowLeaseCollection(),
+                workflowThrottleCollection(), workflowScheduleCollection(), workflowDeadLetterCollection(),
+                workflowMemberCollection(),
+                new WorkflowCounters(workflowCounterCollection(), workflowLoadCounterShards, workflowLoadCounterFlush),
+                workflowPriorityAging, workflowPartitions, WriteConcern.valueOf(workflowLogWriteConcern));
+    }
+
+    @Bean
+    public WorkflowLogWriter workflowLogWriter() throws IOException {
+        return new WorkflowLogWriter(workflowStore(), gaugeService, workflowLogWriterAsync, workflowLogWriterQueue,
+                workflowLogWriterBatch, workflowLogWriterFlush, workflowLogWriterOverflow, workflowLogWriterSample);
+    }
 
     @Bean
     public MongoCollection workflowCollection() throws IOException {
         Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
-        MongoCollection collection = jongo.getCollection(Workflow.class.getSimpleName());
-        collection.ensureIndex("{'status':1, 'start':1, 'dependencies':1}");
-        collection.ensureIndex("{'_id':1, 'status':1}");
-        collection.ensureIndex("{'dependencies':1}");
-        collection.ensureIndex("{'node':1, 'status':1, 'updated':1}");
-        return collection;
+        return jongo.getCollection(Workflow.class.getSimpleName());
+    }
+
+    @Bean
+    public MongoCollection workflowLeaseCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
+        return jongo.getCollection(WORKFLOW_LEASE);
+    }
+
+    @Bean
+    public MongoCollection workflowMemberCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
+        return jongo.getCollection(WORKFLOW_MEMBER);
+    }
+
+    @Bean
+    public MongoCollection workflowThrottleCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
+        return jongo.getCollection(WORKFLOW_THROTTLE);
+    }
+
+    @Bean
+    public MongoCollection workflowScheduleCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
+        return jongo.getCollection(WorkflowSchedule.class.getSimpleName());
+    }
+
+    @Bean
+    public MongoCollection workflowDeadLetterCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowDb));
+        return jongo.getCollection(WorkflowDeadLetter.class.getSimpleName());
     }
 
     @Bean
@@ -66,9 +145,27 @@ class WorkflowConfig {
         return jongo.getCollection(WorkflowLoad.class.getSimpleName());
     }
 
+    @Bean
+    public MongoCollection workflowCounterCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowLoadDb));
+        return jongo.getCollection(WORKFLOW_COUNTER);
+    }
+
+    @Bean
+    public MongoCollection workflowLatencyCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowLogDb));
+        return jongo.getCollection(WorkflowLatencyInterval.class.getSimpleName());
+    }
+
     @Bean
     public MongoCollection workflowNodeCollection() throws IOException {
         Jongo jongo = new Jongo(mongoClient.getDB(workflowNodeDb));
         return jongo.getCollection(WorkflowNode.class.getSimpleName());
     }
+
+    @Bean
+    public MongoCollection workflowNodeVersionCollection() throws IOException {
+        Jongo jongo = new Jongo(mongoClient.getDB(workflowNodeDb));
+        return jongo.getCollection(MongoWorkflowStore.WorkflowNodeVersion.class.getSimpleName());
+    }
 }
@@ -0,0 +1,237 @@
+/*
+ * WorkflowCounters.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.mongodb.MongoException;
+import org.apache.log4j.Logger;
+import org.jongo.MongoCollection;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Workflow counts by status, by name and of retrying and dead lettered workflows, kept in sharded
+ * counter documents. Transitions add to deltas held in process, which a background thread writes to
+ * a random shard once per flush interval, so counts lag by up to a flush interval per process and
+ * {@link #reconcile} corrects lost deltas.
+ */
+class WorkflowCounters implements Runnable {
+    private static final Logger log = Logger.getLogger(WorkflowCounters.class.getName());
+
+    static final String STATUS = "status";
+    static final String NAME = "name";
+    static final String STATE = "state";
+    static final String RETRYING = "retrying";
+    static final String DEAD_LETTERED = "deadLettered";
+
+    private final MongoCollection counterCollection;
+    private final int shards;
+    private final long flushMillis;
+
+    private final ConcurrentMap<String, AtomicLong> statusDeltas = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> nameDeltas = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> stateDeltas = new ConcurrentHashMap<>();
+    private final ReentrantLock flushing = new ReentrantLock();
+
+    // differences seen by the last reconcile of each type, applied only if the next one agrees
+    private final Map<String, Map<String, Long>> differences = new HashMap<>();
+
+    private Thread thread;
+
+    WorkflowCounters(MongoCollection counterCollection, int shards, long flushMillis) {
+        this.counterCollection = counterCollection;
+        this.shards = shards;
+        this.flushMillis = flushMillis;
+
+        counterCollection.ensureIndex("{'type':1, 'key':1}");
+    }
+
+    void added(WorkflowStatus status, String name, long count) {
+        add(statusDeltas, status != null ? status.name() : null, count);
+        add(nameDeltas, name, count);
+    }
+
+    void removed(WorkflowStatus status, String name, long count) {
+        added(status, name, -count);
+    }
+
+    void moved(WorkflowStatus from, WorkflowStatus to, long count) {
+        if (count != 0) {
+            add(statusDeltas, from.name(), -count);
+            add(statusDeltas, to.name(), count);
+        }
+    }
+
+    /**
+     * Counts workflows going onto a retry, or coming off one when count is negative.
+     */
+    void retrying(long count) {
+        add(stateDeltas, RETRYING, count);
+    }
+
+    void deadLettered(long count) {
+        add(stateDeltas, DEAD_LETTERED, count);
+    }
+
+    void start() {
+        thread = new Thread(this, WorkflowCounters.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        thread.interrupt();
+        flush();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(flushMillis);
+                try {
+                    flush();
+                } catch (MongoException e) {
+                    log.warn("Failed to flush workflow counts, will retry", e);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // stopping
+        }
+    }
+
+    /**
+     * Writes the deltas held in process. Deltas that fail to write are kept for the next flush.
+     */
+    void flush() {
+        flushing.lock();
+        try {
+            int shard = ThreadLocalRandom.current().nextInt(shards);
+            flush(STATUS, statusDeltas, shard);
+            flush(NAME, nameDeltas, shard);
+            flush(STATE, stateDeltas, shard);
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    /**
+     * @return the counts for the type summed over every shard, including this process's unflushed deltas
+     */
+    Map<String, Long> get(String type) {
+        Map<String, Long> counts = new HashMap<>();
+        // held so a flush cannot move a delta into the shards between reading the two
+        flushing.lock();
+        try {
+            for (WorkflowCounter counter : counterCollection.find("{type:#}", type).as(WorkflowCounter.class)) {
+                counts.merge(counter.key, counter.count, Long::sum);
+            }
+            for (Map.Entry<String, AtomicLong> delta : deltas(type).entrySet()) {
+                counts.merge(delta.getKey(), delta.getValue().get(), Long::sum);
+            }
+        } finally {
+            flushing.unlock();
+        }
+        counts.values().removeIf(count -> count == 0);
+        return counts;
+    }
+
+    /**
+     * Brings the stored counts for the type in line with the actual counts by adding the difference to
+     * shard zero. Actual and stored are not read at the same moment, and other processes hold deltas
+     * they have not flushed, so a difference is only applied once two reconciles in a row agree on it.
+     *
+     * @return the total drift corrected
+     */
+    synchronized long reconcile(String type, Map<String, Long> actual) {
+        Map<String, Long> stored = get(type);
+        Set<String> keys = new HashSet<>(stored.keySet());
+        keys.addAll(actual.keySet());
+        Map<String, Long> previous = differences.getOrDefault(type, new HashMap<>());
+        Map<String, Long> seen = new HashMap<>();
+        long drift = 0;
+        for (String key : keys) {
+            long difference = actual.getOrDefault(key, 0L) - stored.getOrDefault(key, 0L);
+            if (difference == 0) {
+                continue;
+            }
+            if (previous.getOrDefault(key, 0L) == difference) {
+                increment(type, key, 0, difference);
+                drift += Math.abs(difference);
+            } else {
+                seen.put(key, difference);
+            }
+        }
+        differences.put(type, seen);
+        if (drift > 0) {
+            log.info("Corrected " + type + " counts drifted by " + drift);
+        }
+        return drift;
+    }
+
+    private ConcurrentMap<String, AtomicLong> deltas(String type) {
+        if (STATUS.equals(type)) {
+            return statusDeltas;
+        }
+        return NAME.equals(type) ? nameDeltas : stateDeltas;
+    }
+
+    private void add(ConcurrentMap<String, AtomicLong> deltas, String key, long delta) {
+        if (key != null && delta != 0) {
+            deltas.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+        }
+    }
+
+    private void flush(String type, ConcurrentMap<String, AtomicLong> deltas, int shard) {
+        for (Map.Entry<String, AtomicLong> entry : deltas.entrySet()) {
+            long delta = entry.getValue().getAndSet(0);
+            if (delta != 0) {
+                try {
+                    increment(type, entry.getKey(), shard, delta);
+                } catch (MongoException e) {
+                    entry.getValue().addAndGet(delta);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void increment(String type, String key, int shard, long delta) {
+        counterCollection.update("{_id:#}", type + ":" + shard + ":" + key)
+                .upsert()
+                .with("{$set:{type:#, key:#}, $inc:{count:#}}", type, key, delta);
+    }
+
+    static class WorkflowCounter {
+        @JsonProperty("_id")
+        private String id;
+
+        private String type;
+        private String key;
+        private long count;
+    }
+}
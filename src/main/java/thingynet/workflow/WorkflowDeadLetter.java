@@ -0,0 +1,92 @@
+/*
+ * WorkflowDeadLetter.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.bson.types.ObjectId;
+import thingynet.value.Value;
+
+/**
+ * A workflow that kept timing out on its node until it ran out of attempts, kept with its context so
+ * it can be looked into and recreated by hand. Workflows that were waiting on it stay blocked.
+ */
+public class WorkflowDeadLetter {
+    @JsonProperty("_id")
+    private ObjectId id;
+
+    private String name;
+    private String node;
+    private long start;
+    private int priority;
+    private int attempts;
+    private long deadLettered;
+    private Value context;
+
+    WorkflowDeadLetter() {
+    }
+
+    WorkflowDeadLetter(Workflow workflow, long now) {
+        this.id = workflow.getId();
+        this.name = workflow.getName();
+        this.node = workflow.getNode();
+        this.start = workflow.getStart();
+        this.priority = workflow.getPriority();
+        this.attempts = workflow.getRetry() + 1;
+        this.deadLettered = now;
+        this.context = workflow.getContext();
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getDeadLettered() {
+        return deadLettered;
+    }
+
+    public Value getContext() {
+        return context;
+    }
+
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * WorkflowLatencyRecorder.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Workflow latencies kept in memory as histograms per name and node, striped by thread, and saved as
+ * one {@link WorkflowLatencyInterval} every workflow.latency.flush seconds.
+ */
+@Component
+public class WorkflowLatencyRecorder implements Runnable {
+    private static final Logger log = Logger.getLogger(WorkflowLatencyRecorder.class.getName());
+
+    // the processor count rounded up to a power of two
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private final ConcurrentMap<Key, AtomicLongArray[]> histograms = new ConcurrentHashMap<>();
+
+    // totals as of the last flush, only touched while flushing
+    private final Map<Key, LatencyHistogram> flushed = new HashMap<>();
+    private long flushedAt = currentTimeMillis();
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Value("${workflow.latency.flush}")
+    private long flushSeconds;
+
+    private Thread thread;
+
+    @PostConstruct
+    void start() {
+        thread = new Thread(this, WorkflowLatencyRecorder.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    void stop() {
+        thread.interrupt();
+        flush(currentTimeMillis());
+    }
+
+    public void record(String name, String node, long latency) {
+        Key key = new Key(name, node);
+        AtomicLongArray[] stripes = histograms.get(key);
+        if (stripes == null) {
+            stripes = histograms.computeIfAbsent(key, k -> newStripes());
+        }
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(LatencyHistogram.index(latency));
+    }
+
+    /**
+     * Merges the latencies saved for the name and node in intervals overlapping from to to.
+     */
+    public WorkflowLatencyInterval getLatency(String name, String node, long from, long to) {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (WorkflowLatencyInterval interval : workflowStore.getLatencies(name, node, from, to)) {
+            for (int i = 0; i < interval.getBuckets().size(); i++) {
+                merged.add(interval.getBuckets().get(i), interval.getCounts().get(i));
+            }
+        }
+        return toInterval(name, node, from, to, merged);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(flushSeconds * 1000);
+                try {
+                    flush(currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("Failed to flush workflow latencies", e);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // stopping
+        }
+    }
+
+    /**
+     * Saves one interval per name and node with latencies recorded since the last flush.
+     */
+    synchronized void flush(long now) {
+        List<WorkflowLatencyInterval> intervals = new ArrayList<>();
+        for (Map.Entry<Key, AtomicLongArray[]> entry : histograms.entrySet()) {
+            LatencyHistogram total = new LatencyHistogram();
+            for (AtomicLongArray counts : entry.getValue()) {
+                total.add(counts);
+            }
+            LatencyHistogram interval = total.since(flushed.put(entry.getKey(), total));
+            if (interval.getCount() > 0) {
+                Key key = entry.getKey();
+                intervals.add(toInterval(key.name, key.node, flushedAt, now, interval));
+            }
+        }
+        flushedAt = now;
+        if (!intervals.isEmpty()) {
+            workflowStore.saveLatencies(intervals);
+        }
+    }
+
+    private static AtomicLongArray[] newStripes() {
+        AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+        return stripes;
+    }
+
+    private static WorkflowLatencyInterval toInterval(String name, String node, long start, long end,
+                                                      LatencyHistogram histogram) {
+        WorkflowLatencyInterval interval = new WorkflowLatencyInterval(name, node, start, end);
+        interval.setCount(histogram.getCount());
+        interval.setP50(histogram.getValueAtPercentile(50));
+        interval.setP90(histogram.getValueAtPercentile(90));
+        interval.setP99(histogram.getValueAtPercentile(99));
+        interval.setP999(histogram.getValueAtPercentile(99.9));
+        interval.setMax(histogram.getMax());
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            if (histogram.getCount(i) > 0) {
+                interval.getBuckets().add(i);
+                interval.getCounts().add(histogram.getCount(i));
+            }
+        }
+        return interval;
+    }
+
+    private static final class Key {
+        private final String name;
+        private final String node;
+
+        Key(String name, String node) {
+            this.name = name;
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(name, other.name) && Objects.equals(node, other.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, node);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * WorkflowLogOverflow.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+/**
+ * What {@link WorkflowLogWriter} does with a record when its queue is full.
+ */
+public enum WorkflowLogOverflow {
+    /**
+     * The writing thread waits for room.
+     */
+    BLOCK,
+    /**
+     * The oldest queued record is dropped to make room.
+     */
+    DROP_OLDEST,
+    /**
+     * One record in every workflow.log.writer.sample is kept by dropping the oldest, the rest are
+     * dropped, so a storm still leaves a sample of itself in the log.
+     */
+    SAMPLE
+}
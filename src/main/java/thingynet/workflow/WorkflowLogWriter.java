@@ -0,0 +1,207 @@
+/*
+ * WorkflowLogWriter.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Takes workflow log records off the worker threads onto a bounded queue, which a single writer thread
+ * saves in bulk. With async off every record is saved on the calling thread.
+ */
+public class WorkflowLogWriter implements Runnable {
+    private static final Logger log = Logger.getLogger(WorkflowLogWriter.class.getName());
+
+    static final String DROPPED_GAUGE = "workflow.log.dropped";
+    static final String FLUSH_GAUGE = "workflow.log.flush.duration";
+
+    private final WorkflowStore workflowStore;
+    private final GaugeService gaugeService;
+    private final BlockingDeque<WorkflowLog> queue;
+    private final int batch;
+    private final long flushMillis;
+    private final WorkflowLogOverflow overflow;
+    private final int sample;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Thread thread;
+
+    WorkflowLogWriter(WorkflowStore workflowStore, GaugeService gaugeService, boolean async, int capacity, int batch,
+                      long flushMillis, WorkflowLogOverflow overflow, int sample) {
+        this.workflowStore = workflowStore;
+        this.gaugeService = gaugeService;
+        this.queue = async ? new LinkedBlockingDeque<>(capacity) : null;
+        this.batch = batch;
+        this.flushMillis = flushMillis;
+        this.overflow = overflow;
+        this.sample = Math.max(sample, 1);
+    }
+
+    @PostConstruct
+    void start() {
+        if (queue != null) {
+            thread = new Thread(this, WorkflowLogWriter.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(flushMillis);
+        }
+        flush();
+    }
+
+    public void write(WorkflowLog record) {
+        if (queue == null) {
+            save(singletonList(record));
+            return;
+        }
+        pending.incrementAndGet();
+        switch (overflow) {
+            case BLOCK:
+                try {
+                    queue.putLast(record);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped(1);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offerLast(record)) {
+                    if (queue.pollFirst() != null) {
+                        dropped(1);
+                    }
+                }
+                break;
+            case SAMPLE:
+                if (queue.offerLast(record)) {
+                    break;
+                }
+                if (overflowed.incrementAndGet() % sample == 0 && queue.pollFirst() != null) {
+                    dropped(1);
+                    if (queue.offerLast(record)) {
+                        break;
+                    }
+                }
+                dropped(1);
+                break;
+        }
+    }
+
+    /**
+     * Saves everything queued so far and waits for any batch the writer thread is part way through.
+     */
+    public void flush() throws InterruptedException {
+        if (queue == null) {
+            return;
+        }
+        List<WorkflowLog> records = new ArrayList<>(batch);
+        while (queue.drainTo(records, batch) > 0) {
+            save(records);
+            records.clear();
+        }
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                pending.wait(flushMillis);
+            }
+        }
+    }
+
+    /**
+     * @return the number of records dropped on overflow or lost to a failed save
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        List<WorkflowLog> records = new ArrayList<>(batch);
+        try {
+            while (true) {
+                records.add(queue.takeFirst());
+                long deadline = currentTimeMillis() + flushMillis;
+                while (records.size() < batch) {
+                    queue.drainTo(records, batch - records.size());
+                    long wait = deadline - currentTimeMillis();
+                    if (records.size() >= batch || wait <= 0) {
+                        break;
+                    }
+                    WorkflowLog next = queue.pollFirst(wait, MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    records.add(next);
+                }
+                save(records);
+                records.clear();
+            }
+        } catch (InterruptedException ie) {
+            // stopping, whatever is still queued is saved by stop()
+        } finally {
+            if (!records.isEmpty()) {
+                save(records);
+            }
+        }
+    }
+
+    private void save(List<WorkflowLog> records) {
+        long start = currentTimeMillis();
+        try {
+            workflowStore.saveLogs(records);
+            gaugeService.submit(FLUSH_GAUGE, currentTimeMillis() - start);
+            done(records.size());
+        } catch (RuntimeException e) {
+            log.error("Failed to save " + records.size() + " workflow log records", e);
+            dropped(records.size());
+        }
+    }
+
+    private void dropped(int records) {
+        gaugeService.submit(DROPPED_GAUGE, dropped.addAndGet(records));
+        done(records);
+    }
+
+    private void done(int records) {
+        if (queue != null && pending.addAndGet(-records) <= 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * WorkflowMetrics.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes the engine's hot path to the actuator metrics endpoint, as a timer.* gauge of the latest
+ * duration in millis and a counter of the same name.
+ */
+@Component
+class WorkflowMetrics {
+    static final String CLAIM = "workflow.claim";
+    static final String CLAIM_EMPTY = "workflow.claim.empty";
+    static final String ACTIVATE = "workflow.activate";
+    static final String COMPLETE = "workflow.complete";
+    static final String ERROR = "workflow.error";
+    static final String RETRY = "workflow.retry";
+    static final String IN_FLIGHT = "workflow.service.inflight";
+    static final String ASYNC_IN_FLIGHT = "workflow.service.async.inflight";
+    static final String SCHEDULE_CREATED = "workflow.schedule.created";
+    static final String SCHEDULE_MISSED = "workflow.schedule.missed";
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    @Autowired
+    private CounterService counterService;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // running totals for sizing the worker pool, which reads them without going through the actuator
+    private final LongAdder claims = new LongAdder();
+    private final LongAdder emptyClaims = new LongAdder();
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder stepMillis = new LongAdder();
+
+    static String execute(String node) {
+        return "workflow.node." + node + ".execute";
+    }
+
+    static String timeout(String node) {
+        return "workflow.node." + node + ".timeout";
+    }
+
+    static String throttled(String node) {
+        return "workflow.node." + node + ".throttled";
+    }
+
+    static String forked(String node) {
+        return "workflow.node." + node + ".forked";
+    }
+
+    static String held(String node) {
+        return "workflow.node." + node + ".held";
+    }
+
+    static String waiting(String node) {
+        return "workflow.node." + node + ".waiting";
+    }
+
+    void claimed(long millis, int claimed) {
+        time(CLAIM, millis);
+        claims.increment();
+        if (claimed == 0) {
+            emptyClaims.increment();
+            counterService.increment(CLAIM_EMPTY);
+        }
+    }
+
+    void retried(Workflow workflow) {
+        if (workflow.getRetry() > 0) {
+            counterService.increment(RETRY);
+        }
+    }
+
+    void executed(String node, long millis) {
+        time(execute(node), millis);
+        steps.increment();
+        stepMillis.add(millis);
+    }
+
+    void activated(long millis) {
+        time(ACTIVATE, millis);
+    }
+
+    void completed(long millis) {
+        time(COMPLETE, millis);
+    }
+
+    void failed(long millis) {
+        time(ERROR, millis);
+    }
+
+    void recovered(Map<String, Integer> byNode) {
+        for (Map.Entry<String, Integer> entry : byNode.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                counterService.increment(timeout(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Counts a claim that skipped the throttled node, or lost the race for its last slot or token.
+     */
+    void claimThrottled(String node) {
+        counterService.increment(throttled(node));
+    }
+
+    void throttleState(String node, int held, long waiting) {
+        gaugeService.submit(held(node), held);
+        gaugeService.submit(waiting(node), waiting);
+    }
+
+    /**
+     * Counts the branches a fork node started.
+     */
+    void forked(String node, int branches) {
+        for (int i = 0; i < branches; i++) {
+            counterService.increment(forked(node));
+        }
+    }
+
+    /**
+     * Counts the workflows a schedule created for its ticks, and the ticks it skipped or coalesced.
+     */
+    void scheduled(int created, int missed) {
+        for (int i = 0; i < created; i++) {
+            counterService.increment(SCHEDULE_CREATED);
+        }
+        for (int i = 0; i < missed; i++) {
+            counterService.increment(SCHEDULE_MISSED);
+        }
+    }
+
+    /**
+     * Counts a worker as busy until the matching {@link #finished()}.
+     */
+    void started() {
+        gaugeService.submit(IN_FLIGHT, inFlight.incrementAndGet());
+    }
+
+    void finished() {
+        gaugeService.submit(IN_FLIGHT, inFlight.decrementAndGet());
+    }
+
+    void asyncInFlight(int steps) {
+        gaugeService.submit(ASYNC_IN_FLIGHT, steps);
+    }
+
+    long getClaims() {
+        return claims.sum();
+    }
+
+    long getEmptyClaims() {
+        return emptyClaims.sum();
+    }
+
+    long getSteps() {
+        return steps.sum();
+    }
+
+    long getStepMillis() {
+        return stepMillis.sum();
+    }
+
+    private void time(String name, long millis) {
+        gaugeService.submit("timer." + name, millis);
+        counterService.increment(name);
+    }
+}
@@ -18,33 +18,75 @@
 
 package thingynet.workflow;
 
-import org.jongo.MongoCollection;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.stereotype.Service;
 
 import java.util.Map;
 
 import static java.lang.System.currentTimeMillis;
 import static java.lang.Thread.sleep;
-import static thingynet.workflow.WorkflowStatus.PROCESSING;
-import static thingynet.workflow.WorkflowStatus.WAITING;
 
+/**
+ * Recovers workflows whose lease has run out, after their node's backoff or to the dead letters once
+ * out of attempts. Only the monitor holding the leader lease sweeps, and it also reconciles the
+ * workflow counts and throttle slots.
+ */
 @Service
 public class WorkflowMonitor implements Runnable {
-    private final MongoCollection workflowCollection;
+    private static final Logger log = Logger.getLogger(WorkflowMonitor.class.getName());
+
+    static final String MONITOR_LEASE = "workflowMonitor";
+    static final String LEADER_GAUGE = "workflow.monitor.leader";
+    static final String SWEEP_GAUGE = "workflow.monitor.sweep.duration";
+    static final String DRIFT_GAUGE = "workflow.load.drift";
+
+    private final String owner = new ObjectId().toString();
+    private final WorkflowStore workflowStore;
     private final Map<String, WorkflowCommand> commands;
+    private final WorkflowSignal workflowSignal;
 
     @Value("${workflow.monitor.sleep}")
     private long workflowMonitorSleep;
 
-    @Value("${workflow.monitor.default.timeout}")
-    private long defaultTimeout;
+    @Value("${workflow.monitor.sleep.max}")
+    private long workflowMonitorSleepMax;
+
+    @Value("${workflow.monitor.lease}")
+    private long workflowMonitorLease;
+
+    @Value("${workflow.load.reconcile}")
+    private long workflowLoadReconcile;
 
     @Autowired
-    public WorkflowMonitor(WorkflowCommandFactory workflowCommandFactory, MongoCollection workflowCollection) {
-        this.workflowCollection = workflowCollection;
+    private GaugeService gaugeService;
+
+    @Value("${workflow.throttle.reconcile}")
+    private long workflowThrottleReconcile;
+
+    @Autowired
+    private WorkflowMetrics workflowMetrics;
+
+    @Autowired
+    private WorkflowThrottle workflowThrottle;
+
+    @Autowired
+    private WorkflowNodeCache workflowNodeCache;
+
+    private volatile boolean leader;
+    private long leaseUntil;
+    private long reconcileAt;
+    private long reconcileThrottlesAt;
+
+    @Autowired
+    public WorkflowMonitor(WorkflowCommandFactory workflowCommandFactory, WorkflowStore workflowStore,
+                           WorkflowSignal workflowSignal) {
+        this.workflowStore = workflowStore;
         this.commands = workflowCommandFactory.getRegisteredCommands();
+        this.workflowSignal = workflowSignal;
     }
 
     @Override
@@ -52,23 +94,110 @@ public class WorkflowMonitor implements Runnable {
         if (commands != null && !commands.isEmpty()) {
             try {
                 while (true) {
-                    commands.keySet().forEach(this::timeout);
-                    sleep(workflowMonitorSleep);
+                    long sleep = workflowMonitorLease / 3;
+                    try {
+                        long now = currentTimeMillis();
+                        if (lead(now)) {
+                            sweep();
+                            reconcile(currentTimeMillis());
+                            reconcileThrottles(currentTimeMillis());
+                            now = currentTimeMillis();
+                            sleep = Math.min(getSleep(now), Math.max(getRenewal() - now, workflowMonitorSleep));
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Workflow monitor failed, will retry", e);
+                        sleep = workflowMonitorSleep;
+                    }
+                    sleep(sleep);
                 }
             } catch (InterruptedException ie) {
                 // ignored
+            } finally {
+                resign();
             }
         }
     }
 
-    void timeout(String node) {
-        WorkflowCommand command = commands.get(node);
-        if (command != null) {
-            long millis = currentTimeMillis();
-            long timeout = millis - (command.getTimeout() > 0 ? command.getTimeout() : defaultTimeout);
-            workflowCollection.update("{node:#, status:#, updated:{$lte:#}}", node, PROCESSING, timeout)
-                    .with("{'$inc':{retry:1}, '$set':{status:#, updated:#}}", WAITING, millis);
+    /**
+     * Takes or renews the leader lease once a third of it has run, so a leader that misses a heartbeat
+     * still holds the lease, and a standby that finds it expired takes over.
+     *
+     * @return true while this monitor is the leader
+     */
+    boolean lead(long now) {
+        if (!leader || now >= getRenewal()) {
+            boolean held = workflowStore.acquireLease(MONITOR_LEASE, owner, now, now + workflowMonitorLease);
+            if (held != leader) {
+                log.info(held ? "Monitor " + owner + " took the leader lease" : "Monitor " + owner + " lost the leader lease");
+            }
+            leader = held;
+            leaseUntil = held ? now + workflowMonitorLease : 0;
+            gaugeService.submit(LEADER_GAUGE, held ? 1 : 0);
         }
+        return leader;
     }
 
+    void resign() {
+        if (leader) {
+            workflowStore.releaseLease(MONITOR_LEASE, owner);
+            leader = false;
+            leaseUntil = 0;
+            gaugeService.submit(LEADER_GAUGE, 0);
+        }
+    }
+
+    boolean isLeader() {
+        return leader;
+    }
+
+    int sweep() {
+        long started = currentTimeMillis();
+        Map<String, Integer> recovered = workflowStore.sweep(started, workflowNodeCache::getNode);
+        gaugeService.submit(SWEEP_GAUGE, currentTimeMillis() - started);
+        workflowMetrics.recovered(recovered);
+        workflowThrottle.recovered(recovered);
+        int total = recovered.values().stream().mapToInt(Integer::intValue).sum();
+        if (total > 0) {
+            workflowSignal.signal();
+        }
+        return total;
+    }
+
+    /**
+     * Corrects drift in the workflow counts once the reconcile interval has passed.
+     *
+     * @return the drift corrected, or -1 when it was not yet time to reconcile
+     */
+    long reconcile(long now) {
+        if (now < reconcileAt) {
+            return -1;
+        }
+        reconcileAt = now + workflowLoadReconcile;
+        long drift = workflowStore.reconcileCounts();
+        gaugeService.submit(DRIFT_GAUGE, drift);
+        return drift;
+    }
+
+    /**
+     * Corrects the slots held on throttled nodes once the throttle reconcile interval has passed.
+     *
+     * @return true when it was time to reconcile
+     */
+    boolean reconcileThrottles(long now) {
+        if (now < reconcileThrottlesAt) {
+            return false;
+        }
+        reconcileThrottlesAt = now + workflowThrottleReconcile;
+        workflowThrottle.reconcile();
+        return true;
+    }
+
+    long getSleep(long now) {
+        long untilNextExpiry = workflowStore.getNextLeaseExpiry() - now;
+        return Math.max(workflowMonitorSleep, Math.min(untilNextExpiry, workflowMonitorSleepMax));
+    }
+
+    private long getRenewal() {
+        return leaseUntil - workflowMonitorLease * 2 / 3;
+    }
 }
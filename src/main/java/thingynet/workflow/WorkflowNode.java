@@ -18,9 +18,14 @@
 
 package thingynet.workflow;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 import org.jongo.marshall.jackson.oid.Id;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
 import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 
 public class WorkflowNode {
@@ -31,6 +36,28 @@ public class WorkflowNode {
     // next in node or 'null' if end of node
     private String next;
 
+    // nodes a fork starts a parallel branch at, one branch each, rejoining the workflow at next
+    private List<String> branches = new ArrayList<>();
+
+    // branches a fork waits for before moving on to next, 0 for all of them
+    private int quorum;
+
+    // most workflows processing the node at once across the cluster, 0 for no limit
+    private int maxConcurrency;
+
+    // workflows claimed on the node per second across the cluster, 0 for no limit
+    private double rateLimit;
+
+    // claims the rate limit lets through at once after the node has been idle
+    private int rateBurst;
+
+    // attempts at the node before a workflow that keeps timing out is dead lettered, 0 for no limit
+    private int maxAttempts;
+
+    // wait before the first retry after a timeout, doubling with each retry up to the maximum
+    private long retryBackoff;
+    private long retryBackoffMax;
+
     public WorkflowNode() {
     }
 
@@ -55,6 +82,122 @@ public class WorkflowNode {
         this.name = name;
     }
 
+    public List<String> getBranches() {
+        return branches;
+    }
+
+    public void setBranches(List<String> branches) {
+        this.branches = branches;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    public void setQuorum(int quorum) {
+        this.quorum = quorum;
+    }
+
+    /**
+     * @return true when the node starts parallel branches rather than running a command
+     */
+    @JsonIgnore
+    public boolean isFork() {
+        return branches != null && !branches.isEmpty();
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * @return the burst, at least one token so a rate below one per second still lets claims through
+     */
+    public int getRateBurst() {
+        return Math.max(rateBurst, 1);
+    }
+
+    public void setRateBurst(int rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    public long getRetryBackoffMax() {
+        return retryBackoffMax;
+    }
+
+    public void setRetryBackoffMax(long retryBackoffMax) {
+        this.retryBackoffMax = retryBackoffMax;
+    }
+
+    /**
+     * @return true when timeouts on the node are retried with a backoff or a limit
+     */
+    @JsonIgnore
+    public boolean hasRetryPolicy() {
+        return maxAttempts > 0 || retryBackoff > 0;
+    }
+
+    /**
+     * @return true when a workflow that has timed out retry times already has no attempts left
+     */
+    boolean isExhausted(int retry) {
+        return maxAttempts > 0 && retry + 1 >= maxAttempts;
+    }
+
+    /**
+     * Works out the wait before the given retry: the backoff doubled for every retry before it, capped
+     * at the maximum, of which a random half is taken off so that workflows that timed out together
+     * do not all come back together.
+     */
+    long getRetryDelay(int retry) {
+        if (retryBackoff <= 0) {
+            return 0;
+        }
+        long max = retryBackoffMax > 0 ? retryBackoffMax : Long.MAX_VALUE;
+        long backoff = retryBackoff;
+        for (int i = 1; i < retry && backoff < max; i++) {
+            backoff = backoff > max / 2 ? max : backoff * 2;
+        }
+        backoff = Math.min(backoff, max);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * @return true when claims on the node are capped by concurrency or rate
+     */
+    @JsonIgnore
+    public boolean isThrottled() {
+        return maxConcurrency > 0 || rateLimit > 0;
+    }
+
     public String toString() {
         return ReflectionToStringBuilder.toString(this, SHORT_PREFIX_STYLE);
     }
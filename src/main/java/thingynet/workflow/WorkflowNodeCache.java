@@ -0,0 +1,142 @@
+/*
+ * WorkflowNodeCache.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * In-process cache of workflow node definitions. All nodes are loaded at startup and served from a
+ * concurrent map. Nodes saved through {@link #saveNode(WorkflowNode)} bump a shared version stamp,
+ * and every instance reloads its nodes when it sees the stamp move. Names missing from the map are
+ * read through to the store, so a newly saved node is picked up without a reload. Nodes with a
+ * concurrency or rate limit are also kept in a list of their own, so claims can check just those.
+ * <p>
+ * Only saveNode moves the stamp, so a node edited straight in the collection is not reloaded until the
+ * next saveNode from any instance or a restart.
+ */
+@Component
+public class WorkflowNodeCache {
+    private static final Logger log = Logger.getLogger(WorkflowNodeCache.class.getName());
+
+    private volatile ConcurrentMap<String, WorkflowNode> nodes = new ConcurrentHashMap<>();
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Value("${workflow.node.cache.refresh}")
+    private long refreshMillis;
+
+    private volatile List<WorkflowNode> throttled = new ArrayList<>();
+
+    private volatile long version;
+
+    private volatile long lastRefresh;
+
+    @PostConstruct
+    void load() {
+        version = workflowStore.getNodeVersion();
+        // built aside and swapped in, so readers never see a half loaded cache
+        ConcurrentMap<String, WorkflowNode> loaded = new ConcurrentHashMap<>();
+        for (WorkflowNode node : workflowStore.getNodes()) {
+            loaded.put(node.getName(), node);
+        }
+        nodes = loaded;
+        findThrottled();
+        lastRefresh = currentTimeMillis();
+        log.info("Loaded " + nodes.size() + " workflow nodes at version " + version);
+    }
+
+    public WorkflowNode getNode(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (currentTimeMillis() - lastRefresh >= refreshMillis) {
+            refresh();
+        }
+        WorkflowNode node = nodes.get(name);
+        if (node == null) {
+            node = workflowStore.getNode(name);
+            if (node != null) {
+                nodes.put(name, node);
+                findThrottled();
+            }
+        }
+        return node;
+    }
+
+    public void saveNode(WorkflowNode node) {
+        long stored = workflowStore.saveNode(node);
+        nodes.put(node.getName(), node);
+        findThrottled();
+        // only skip the next reload when nobody else changed a node in the meantime
+        if (stored == version + 1) {
+            version = stored;
+        }
+    }
+
+    /**
+     * @return the nodes with a concurrency or rate limit
+     */
+    public List<WorkflowNode> getThrottledNodes() {
+        if (currentTimeMillis() - lastRefresh >= refreshMillis) {
+            refresh();
+        }
+        return throttled;
+    }
+
+    /**
+     * @return true when the named node has a concurrency or rate limit
+     */
+    public boolean isThrottled(String name) {
+        WorkflowNode node = getNode(name);
+        return node != null && node.isThrottled();
+    }
+
+    private void findThrottled() {
+        List<WorkflowNode> found = new ArrayList<>();
+        for (WorkflowNode node : nodes.values()) {
+            if (node.isThrottled()) {
+                found.add(node);
+            }
+        }
+        throttled = unmodifiableList(found);
+    }
+
+    /**
+     * Reloads every node when the shared version stamp has moved since the last load.
+     */
+    void refresh() {
+        lastRefresh = currentTimeMillis();
+        if (workflowStore.getNodeVersion() != version) {
+            load();
+        }
+    }
+}
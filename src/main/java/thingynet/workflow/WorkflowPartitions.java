@@ -0,0 +1,165 @@
+/*
+ * WorkflowPartitions.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
+/**
+ * Shares the workflow.partitions partitions between the live instances by rendezvous hashing, and an
+ * instance's share between its workers, so workflows with the same affinity key go to the same worker.
+ */
+@Component
+public class WorkflowPartitions {
+    private static final Logger log = Logger.getLogger(WorkflowPartitions.class.getName());
+
+    static final String OWNED_GAUGE = "workflow.partitions.owned";
+
+    private final String member = new ObjectId().toString();
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    @Value("${workflow.partitions}")
+    private int workflowPartitions;
+
+    @Value("${workflow.partitions.heartbeat}")
+    private long workflowPartitionsHeartbeat;
+
+    @Value("${workflow.partitions.expiry}")
+    private long workflowPartitionsExpiry;
+
+    // null until the first refresh, when workers claim from every partition
+    private volatile List<Integer> owned;
+    private List<String> members = emptyList();
+
+    boolean isEnabled() {
+        return workflowPartitions > 0;
+    }
+
+    long getHeartbeat() {
+        return workflowPartitionsHeartbeat;
+    }
+
+    String getMember() {
+        return member;
+    }
+
+    /**
+     * Renews this instance's membership and reassigns the partitions when the members have changed.
+     */
+    synchronized void refresh(long now) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<String> live = workflowStore.renewMembership(member, now, now + workflowPartitionsExpiry);
+        if (owned != null && live.equals(members)) {
+            return;
+        }
+        members = live;
+        owned = assign(member, members, workflowPartitions);
+        gaugeService.submit(OWNED_GAUGE, owned.size());
+        log.info("Instance " + member + " owns " + owned.size() + " of " + workflowPartitions + " partitions among "
+                + members.size() + " members");
+    }
+
+    /**
+     * Gives up this instance's membership, so the others take over its partitions on their next refresh.
+     */
+    synchronized void leave() {
+        if (isEnabled() && owned != null) {
+            workflowStore.leaveMembership(member);
+            owned = null;
+            members = emptyList();
+        }
+    }
+
+    /**
+     * @return the partitions the worker claims from, striped across the instance's workers, or null to
+     * claim from any partition when partitioning is off or not yet assigned
+     */
+    List<Integer> getPartitions(int worker, int workers) {
+        List<Integer> owned = this.owned;
+        if (owned == null || workers <= 1) {
+            return owned;
+        }
+        if (owned.isEmpty()) {
+            return emptyList();
+        }
+        if (owned.size() < workers) {
+            // more workers than partitions, so workers share them rather than sit idle
+            return singletonList(owned.get(worker % owned.size()));
+        }
+        List<Integer> partitions = new ArrayList<>(owned.size() / workers + 1);
+        for (int i = worker; i < owned.size(); i += workers) {
+            partitions.add(owned.get(i));
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the partitions where the member has the highest weight of all the members
+     */
+    static List<Integer> assign(String member, List<String> members, int partitions) {
+        List<Integer> owned = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            String owner = null;
+            long highest = Long.MIN_VALUE;
+            for (String candidate : members) {
+                long weight = weight(candidate, partition);
+                if (owner == null || weight > highest || (weight == highest && candidate.compareTo(owner) < 0)) {
+                    owner = candidate;
+                    highest = weight;
+                }
+            }
+            if (member.equals(owner)) {
+                owned.add(partition);
+            }
+        }
+        return Collections.unmodifiableList(owned);
+    }
+
+    /**
+     * Mixes the member and partition with the 64 bit murmur finaliser, as String.hashCode alone leaves
+     * members with similar ids winning the same partitions.
+     */
+    static long weight(String member, int partition) {
+        long hash = member.hashCode() * 0x9E3779B97F4A7C15L + partition;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
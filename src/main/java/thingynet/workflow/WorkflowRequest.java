@@ -0,0 +1,105 @@
+/*
+ * WorkflowRequest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.bson.types.ObjectId;
+import thingynet.value.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One workflow to create through {@link WorkflowService#createWorkflows(java.util.Collection)}. A
+ * request can wait on other requests in the same batch as well as on workflows that already exist.
+ */
+public class WorkflowRequest {
+    private final String name;
+    private final String node;
+    private final long start;
+    private final Value context;
+    private final WorkflowStatus status;
+    private int priority;
+    private String affinity;
+    private final List<WorkflowRequest> batchDependencies = new ArrayList<>();
+    private final List<ObjectId> dependencies = new ArrayList<>();
+
+    public WorkflowRequest(String name, String node, long start, Value context, WorkflowStatus status) {
+        this.name = name;
+        this.node = node;
+        this.start = start;
+        this.context = context;
+        this.status = status;
+    }
+
+    public WorkflowRequest withPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public WorkflowRequest withAffinity(String affinity) {
+        this.affinity = affinity;
+        return this;
+    }
+
+    public WorkflowRequest dependsOn(WorkflowRequest dependency) {
+        batchDependencies.add(dependency);
+        return this;
+    }
+
+    public WorkflowRequest dependsOn(ObjectId dependency) {
+        dependencies.add(dependency);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public Value getContext() {
+        return context;
+    }
+
+    public WorkflowStatus getStatus() {
+        return status;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getAffinity() {
+        return affinity;
+    }
+
+    List<WorkflowRequest> getBatchDependencies() {
+        return batchDependencies;
+    }
+
+    List<ObjectId> getDependencies() {
+        return dependencies;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * WorkflowResult.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Outcome of one {@link WorkflowRequest} in a bulk create: the workflow when it was created, the
+ * reason otherwise.
+ */
+public class WorkflowResult {
+    private final WorkflowRequest request;
+    private final Workflow workflow;
+    private final String error;
+
+    WorkflowResult(WorkflowRequest request, Workflow workflow, String error) {
+        this.request = request;
+        this.workflow = workflow;
+        this.error = error;
+    }
+
+    public WorkflowRequest getRequest() {
+        return request;
+    }
+
+    public Workflow getWorkflow() {
+        return workflow;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isCreated() {
+        return error == null;
+    }
+
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, SHORT_PREFIX_STYLE);
+    }
+}
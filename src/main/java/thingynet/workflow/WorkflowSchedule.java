@@ -0,0 +1,213 @@
+/*
+ * WorkflowSchedule.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import thingynet.value.Value;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A recurring workflow, ticking on a cron expression, a fixed rate or an interval counted from when
+ * the last tick fired.
+ */
+public class WorkflowSchedule {
+    @JsonProperty("_id")
+    private String id;
+
+    private String name;
+    private String node;
+    private Value context;
+    private int priority;
+
+    // six field cron expression, seconds first
+    private String cron;
+    private String timeZone;
+    private long rate;
+    private long interval;
+
+    private WorkflowCatchUp catchUp = WorkflowCatchUp.LATEST;
+
+    // time of the next tick, and of the last tick a workflow was created for
+    private long nextRun;
+    private long lastRun;
+
+    @JsonIgnore
+    private CronSequenceGenerator sequence;
+
+    WorkflowSchedule() {
+    }
+
+    private WorkflowSchedule(String id, String name, String node, Value context) {
+        this.id = id;
+        this.name = name;
+        this.node = node;
+        this.context = context;
+    }
+
+    /**
+     * Ticks at the times the cron expression matches, in the default time zone unless one is set.
+     */
+    public static WorkflowSchedule cron(String id, String name, String node, Value context, String cron) {
+        WorkflowSchedule schedule = new WorkflowSchedule(id, name, node, context);
+        schedule.cron = cron;
+        return schedule;
+    }
+
+    /**
+     * Ticks every rate millis from the first tick.
+     */
+    public static WorkflowSchedule fixedRate(String id, String name, String node, Value context, long rate) {
+        WorkflowSchedule schedule = new WorkflowSchedule(id, name, node, context);
+        schedule.rate = rate;
+        return schedule;
+    }
+
+    /**
+     * Ticks interval millis after the last tick fired, so a late tick pushes the ones after it back.
+     * The workflow a tick created may still be running when the next tick fires.
+     */
+    public static WorkflowSchedule interval(String id, String name, String node, Value context, long interval) {
+        WorkflowSchedule schedule = new WorkflowSchedule(id, name, node, context);
+        schedule.interval = interval;
+        return schedule;
+    }
+
+    public WorkflowSchedule withPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public WorkflowSchedule withTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+        this.sequence = null;
+        return this;
+    }
+
+    public WorkflowSchedule withCatchUp(WorkflowCatchUp catchUp) {
+        this.catchUp = catchUp;
+        return this;
+    }
+
+    /**
+     * Sets the first tick, which otherwise is the first one after the schedule is saved. Fixed rate
+     * ticks are counted from it.
+     */
+    public WorkflowSchedule startingAt(long nextRun) {
+        this.nextRun = nextRun;
+        return this;
+    }
+
+    /**
+     * @return the first tick after the given time
+     */
+    long next(long after) {
+        if (cron != null) {
+            if (sequence == null) {
+                sequence = new CronSequenceGenerator(cron, timeZone != null ? TimeZone.getTimeZone(timeZone) : TimeZone.getDefault());
+            }
+            return sequence.next(new Date(after)).getTime();
+        }
+        if (rate > 0) {
+            // counted from the current tick, so however late it is asked the answer stays on the grid
+            return after < nextRun ? nextRun : nextRun + ((after - nextRun) / rate + 1) * rate;
+        }
+        return after + interval;
+    }
+
+    /**
+     * Checks the schedule has exactly one way of ticking.
+     *
+     * @throws IllegalArgumentException when it has none or more than one
+     */
+    void validate() {
+        int ways = (cron != null ? 1 : 0) + (rate > 0 ? 1 : 0) + (interval > 0 ? 1 : 0);
+        if (id == null || ways != 1) {
+            throw new IllegalArgumentException("Workflow schedule " + id + " needs an id and one of cron, rate or interval");
+        }
+        if (cron != null) {
+            next(0);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public Value getContext() {
+        return context;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getCron() {
+        return cron;
+    }
+
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public WorkflowCatchUp getCatchUp() {
+        return catchUp;
+    }
+
+    public long getNextRun() {
+        return nextRun;
+    }
+
+    void setNextRun(long nextRun) {
+        this.nextRun = nextRun;
+    }
+
+    public long getLastRun() {
+        return lastRun;
+    }
+
+    void setLastRun(long lastRun) {
+        this.lastRun = lastRun;
+    }
+
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * WorkflowScheduler.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * Signals workers as future dated workflows and recurring {@link WorkflowSchedules} come due, from a
+ * {@link TimingWheel} refilled by the instance holding the scheduler lease.
+ */
+@Service
+public class WorkflowScheduler implements Runnable {
+    private static final Logger log = Logger.getLogger(WorkflowScheduler.class.getName());
+
+    static final String SCHEDULER_LEASE = "workflowScheduler";
+    static final String SCHEDULED_GAUGE = "workflow.scheduler.scheduled";
+
+    private final String owner = new ObjectId().toString();
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Autowired
+    private WorkflowSchedules workflowSchedules;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    @Value("${workflow.scheduler.tick}")
+    private long workflowSchedulerTick;
+
+    @Value("${workflow.scheduler.slots}")
+    private int workflowSchedulerSlots;
+
+    @Value("${workflow.scheduler.levels}")
+    private int workflowSchedulerLevels;
+
+    @Value("${workflow.scheduler.window}")
+    private long workflowSchedulerWindow;
+
+    @Value("${workflow.scheduler.batch}")
+    private int workflowSchedulerBatch;
+
+    @Value("${workflow.scheduler.lease}")
+    private long workflowSchedulerLease;
+
+    private TimingWheel<ObjectId> wheel;
+    private volatile boolean leader;
+    private long leaseUntil;
+    private long loadedUntil;
+    private long refillAt;
+    private volatile Thread thread;
+
+    @PostConstruct
+    void init() {
+        wheel = new TimingWheel<>(workflowSchedulerTick, workflowSchedulerSlots, workflowSchedulerLevels, currentTimeMillis());
+        if (workflowSchedulerWindow > wheel.getHorizon()) {
+            log.warn("Scheduler window " + workflowSchedulerWindow + " is beyond the wheel horizon " + wheel.getHorizon());
+            workflowSchedulerWindow = wheel.getHorizon();
+        }
+    }
+
+    /**
+     * Runs the scheduler on its own thread. Called from Application.main, so contexts built by tests
+     * schedule nothing of their own.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, WorkflowScheduler.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Started workflow scheduler " + owner);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        Thread stopping;
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+            stopping = thread;
+            thread = null;
+        }
+        stopping.interrupt();
+        stopping.join();
+        log.info("Stopped workflow scheduler " + owner);
+    }
+
+    @Override
+    public void run() {
+        try {
+            // checked as well as interrupts, as the driver can swallow an interrupt while stopping
+            while (thread == Thread.currentThread()) {
+                try {
+                    long now = currentTimeMillis();
+                    if (lead(now) && now >= refillAt) {
+                        refill(now);
+                    }
+                    fire(currentTimeMillis());
+                    workflowSchedules.fire(currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("Workflow scheduler failed, will retry", e);
+                }
+                synchronized (this) {
+                    // woken early when a local workflow is scheduled
+                    boolean ticking = wheel.size() > 0 || workflowSchedules.size() > 0;
+                    wait(ticking ? workflowSchedulerTick : workflowSchedulerLease / 3);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // ignored
+        } finally {
+            resign();
+        }
+    }
+
+    /**
+     * Adds a workflow this instance has scheduled, when it starts within the wheel's horizon.
+     */
+    public void schedule(Workflow workflow) {
+        if (workflow.getStart() > currentTimeMillis()) {
+            synchronized (this) {
+                if (wheel.add(workflow.getId(), workflow.getStart())) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes or renews the scheduler lease once a third of it has run.
+     *
+     * @return true while this scheduler is the one refilling
+     */
+    boolean lead(long now) {
+        if (!leader || now >= leaseUntil - workflowSchedulerLease * 2 / 3) {
+            boolean held = workflowStore.acquireLease(SCHEDULER_LEASE, owner, now, now + workflowSchedulerLease);
+            if (held && !leader) {
+                log.info("Scheduler " + owner + " took the scheduler lease");
+                loadedUntil = now;
+                refillAt = now;
+            } else if (!held && leader) {
+                log.info("Scheduler " + owner + " lost the scheduler lease");
+            }
+            leader = held;
+            leaseUntil = held ? now + workflowSchedulerLease : 0;
+        }
+        return leader;
+    }
+
+    void resign() {
+        if (leader) {
+            workflowStore.releaseLease(SCHEDULER_LEASE, owner);
+            leader = false;
+            leaseUntil = 0;
+        }
+    }
+
+    /**
+     * Loads the workflows starting between what was loaded last and the end of the window. When a
+     * whole batch comes back the next refill carries on from the last start loaded straight away,
+     * otherwise once half the window has passed.
+     *
+     * @return the number of workflows loaded
+     */
+    int refill(long now) {
+        long until = now + workflowSchedulerWindow;
+        List<Workflow> scheduled = workflowStore.getScheduled(Math.max(loadedUntil, now), until, workflowSchedulerBatch);
+        workflowSchedules.refill(until);
+        synchronized (this) {
+            for (Workflow workflow : scheduled) {
+                wheel.add(workflow.getId(), workflow.getStart());
+            }
+            gaugeService.submit(SCHEDULED_GAUGE, wheel.size());
+        }
+        if (scheduled.size() >= workflowSchedulerBatch) {
+            // workflows sharing the last start fire on the same tick, so skipping the rest of them loses nothing
+            loadedUntil = scheduled.get(scheduled.size() - 1).getStart();
+            refillAt = now;
+        } else {
+            loadedUntil = until;
+            refillAt = now + workflowSchedulerWindow / 2;
+        }
+        return scheduled.size();
+    }
+
+    /**
+     * Fires every workflow due by now with a single signal.
+     *
+     * @return the number of workflows fired
+     */
+    int fire(long now) {
+        int fired;
+        synchronized (this) {
+            fired = wheel.advance(now, id -> {
+                if (log.isDebugEnabled()) {
+                    log.debug("Workflow " + id + " is due");
+                }
+            });
+        }
+        if (fired > 0) {
+            workflowSignal.signal();
+        }
+        return fired;
+    }
+
+    boolean isLeader() {
+        return leader;
+    }
+
+    synchronized int getScheduled() {
+        return wheel.size();
+    }
+
+    synchronized void clear() {
+        wheel.clear();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * WorkflowSchedules.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.System.currentTimeMillis;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Recurring workflows, stored one document per schedule and moved on to their next tick with a compare
+ * and set, so only one scheduler creates each tick's workflows.
+ */
+@Component
+public class WorkflowSchedules {
+    private static final Logger log = Logger.getLogger(WorkflowSchedules.class.getName());
+
+    // most ticks worked through in one go before jumping straight to the next tick after now
+    static final int MAX_TICKS = 1000000;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Autowired
+    private WorkflowMetrics workflowMetrics;
+
+    @Value("${workflow.scheduler.tick}")
+    private long workflowSchedulerTick;
+
+    @Value("${workflow.scheduler.slots}")
+    private int workflowSchedulerSlots;
+
+    @Value("${workflow.scheduler.levels}")
+    private int workflowSchedulerLevels;
+
+    @Value("${workflow.schedule.grace}")
+    private long workflowScheduleGrace;
+
+    @Value("${workflow.schedule.catchup.max}")
+    private int workflowScheduleCatchUpMax;
+
+    private TimingWheel<String> wheel;
+
+    // the tick each schedule on the wheel was added for, so a refill does not add it again
+    private final Map<String, Long> loaded = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        wheel = new TimingWheel<>(workflowSchedulerTick, workflowSchedulerSlots, workflowSchedulerLevels, currentTimeMillis());
+    }
+
+    /**
+     * Saves the schedule, starting from its first tick after now unless it was given one.
+     *
+     * @throws IllegalArgumentException when the schedule has no id or not exactly one of cron, rate or interval
+     */
+    public void saveSchedule(WorkflowSchedule schedule) {
+        schedule.validate();
+        if (schedule.getNextRun() == 0) {
+            schedule.setNextRun(schedule.next(currentTimeMillis()));
+        }
+        workflowStore.saveSchedule(schedule);
+        load(schedule.getId(), schedule.getNextRun());
+    }
+
+    public void removeSchedule(String id) {
+        workflowStore.removeSchedule(id);
+    }
+
+    public WorkflowSchedule getSchedule(String id) {
+        return workflowStore.getSchedule(id);
+    }
+
+    /**
+     * Loads every schedule ticking no later than until.
+     *
+     * @return the number of schedules due by until
+     */
+    int refill(long until) {
+        List<WorkflowSchedule> due = workflowStore.getSchedules(until);
+        for (WorkflowSchedule schedule : due) {
+            load(schedule.getId(), schedule.getNextRun());
+        }
+        return due.size();
+    }
+
+    /**
+     * Runs every schedule whose tick has come by now.
+     *
+     * @return the number of workflows created
+     */
+    int fire(long now) {
+        List<String> due = new ArrayList<>();
+        synchronized (this) {
+            wheel.advance(now, due::add);
+            due.forEach(loaded::remove);
+        }
+        int created = 0;
+        for (String id : due) {
+            try {
+                created += run(id, now);
+            } catch (RuntimeException e) {
+                // the schedule stays on its tick, so the next refill retries it
+                log.error("Failed to run workflow schedule " + id, e);
+            }
+        }
+        if (created > 0) {
+            workflowSignal.signal();
+        }
+        return created;
+    }
+
+    synchronized int size() {
+        return wheel.size();
+    }
+
+    synchronized void clear() {
+        wheel.clear();
+        loaded.clear();
+    }
+
+    /**
+     * Creates the workflows for the schedule's ticks up to now, as its catch up policy allows, and
+     * moves it on to its next tick.
+     *
+     * @return the number of workflows created
+     */
+    int run(String id, long now) {
+        WorkflowSchedule schedule = workflowStore.getSchedule(id);
+        if (schedule == null) {
+            return 0;
+        }
+        if (schedule.getNextRun() > now) {
+            // edited, or another scheduler moved it on
+            load(id, schedule.getNextRun());
+            return 0;
+        }
+
+        // the latest ticks up to now, keeping no more than the catch up policy could create
+        Deque<Long> ticks = new ArrayDeque<>();
+        long tick = schedule.getNextRun();
+        int missed = 0;
+        for (int seen = 0; tick <= now && seen < MAX_TICKS; seen++) {
+            ticks.addLast(tick);
+            if (ticks.size() > workflowScheduleCatchUpMax) {
+                ticks.removeFirst();
+                missed++;
+            }
+            tick = schedule.getInterval() > 0 ? Long.MAX_VALUE : schedule.next(tick);
+        }
+        long latest = ticks.getLast();
+        long following = schedule.getInterval() > 0 ? now + schedule.getInterval() : schedule.next(Math.max(latest, now));
+
+        List<Long> runs = new ArrayList<>(ticks);
+        if (schedule.getCatchUp() == WorkflowCatchUp.SKIP) {
+            runs = now - latest <= workflowScheduleGrace ? runs.subList(runs.size() - 1, runs.size()) : new ArrayList<>();
+        } else if (schedule.getCatchUp() == WorkflowCatchUp.LATEST) {
+            runs = runs.subList(runs.size() - 1, runs.size());
+        }
+        missed += ticks.size() - runs.size();
+
+        long lastRun = runs.isEmpty() ? schedule.getLastRun() : latest;
+        if (!workflowStore.advanceSchedule(id, schedule.getNextRun(), following, lastRun)) {
+            return 0;
+        }
+        load(id, following);
+
+        List<Workflow> workflows = new ArrayList<>(runs.size());
+        for (long run : runs) {
+            Workflow workflow = new Workflow(schedule.getName(), schedule.getNode(), WAITING, run, schedule.getContext());
+            workflow.setPriority(schedule.getPriority());
+            workflows.add(workflow);
+        }
+        workflowStore.create(workflows);
+        workflowMetrics.scheduled(workflows.size(), missed);
+        return workflows.size();
+    }
+
+    private synchronized void load(String id, long nextRun) {
+        Long current = loaded.get(id);
+        if ((current == null || current != nextRun) && wheel.add(id, nextRun)) {
+            loaded.put(id, nextRun);
+        }
+    }
+}
@@ -18,46 +18,189 @@
 
 package thingynet.workflow;
 
+import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
-import org.jongo.MongoCollection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import thingynet.value.MapValue;
 import thingynet.value.Value;
 
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
 import static java.lang.System.currentTimeMillis;
-import static java.lang.Thread.sleep;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static thingynet.workflow.WorkflowStatus.*;
 
 @Service
 public class WorkflowService implements Runnable {
+    private static final Logger log = Logger.getLogger(WorkflowService.class.getName());
 
     static final String WORKFLOW_COMMAND_FACTORY_RETURNED_NULL = "Workflow command factory returned null";
     static final String WORKFLOW_NODE_MISSING = "Workflow node missing";
+    static final String FORK_NEEDS_MAP_CONTEXT = "Fork needs a map context to merge branches into";
 
     static final String ERR_NODE = "Workflow Vertex Error";
     static final String ERR_COMMAND = "Workflow Command Error";
 
+    static final String DEPENDENCY_NOT_IN_BATCH = "Dependency not in batch";
+
     @org.springframework.beans.factory.annotation.Value("${workflow.service.sleep}")
     private long workflowServiceSleep;
 
-    @Autowired
-    private MongoCollection workflowCollection;
+    @org.springframework.beans.factory.annotation.Value("${workflow.service.claim.batch}")
+    private int workflowServiceClaimBatch;
+
+    @org.springframework.beans.factory.annotation.Value("${workflow.service.chain.steps}")
+    private int workflowServiceChainSteps;
+
+    @org.springframework.beans.factory.annotation.Value("${workflow.service.chain.millis}")
+    private long workflowServiceChainMillis;
+
+    @org.springframework.beans.factory.annotation.Value("${workflow.service.async.max}")
+    private int workflowServiceAsyncMax;
 
     @Autowired
-    private MongoCollection workflowLogCollection;
+    private WorkflowStore workflowStore;
 
     @Autowired
-    private MongoCollection workflowNodeCollection;
+    private WorkflowNodeCache workflowNodeCache;
 
     @Autowired
     private WorkflowCommandFactory workflowCommandFactory;
 
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Autowired
+    private WorkflowLogWriter workflowLogWriter;
+
+    @Autowired
+    private WorkflowMetrics workflowMetrics;
+
+    @Autowired
+    private WorkflowThrottle workflowThrottle;
+
+    @Autowired
+    private WorkflowScheduler workflowScheduler;
+
+    private Semaphore asyncSteps;
+
+    @PostConstruct
+    void init() {
+        asyncSteps = new Semaphore(workflowServiceAsyncMax);
+    }
+
     public Workflow createWorkflow(String name, String node, long start, Value context, WorkflowStatus status) {
+        return createWorkflow(name, node, start, context, status, 0);
+    }
+
+    /**
+     * Creates a workflow with a priority. Higher priorities are claimed first, and lower priorities
+     * gain a level for every workflow.priority.aging millis they have waited.
+     */
+    public Workflow createWorkflow(String name, String node, long start, Value context, WorkflowStatus status,
+                                   int priority) {
+        return createWorkflow(name, node, start, context, status, priority, null);
+    }
+
+    /**
+     * Creates a workflow with a priority and an affinity key. Workflows with the same key land in the
+     * same partition, so they are claimed by the same worker while partition ownership holds.
+     */
+    public Workflow createWorkflow(String name, String node, long start, Value context, WorkflowStatus status,
+                                   int priority, String affinity) {
         Workflow workflow = new Workflow(name, node, status, start, context);
-        workflowCollection.save(workflow);
+        workflow.setPriority(priority);
+        workflow.setAffinity(affinity);
+        if (status == PROCESSING) {
+            workflow.setLeaseUntil(workflow.getUpdated() + workflowCommandFactory.getLease(node));
+        }
+        workflowStore.create(workflow);
+        if (status == WAITING && start <= workflow.getUpdated()) {
+            workflowSignal.signal();
+        } else if (status != PROCESSING) {
+            workflowScheduler.schedule(workflow);
+        }
         return workflow;
     }
 
+    /**
+     * Creates every requested workflow in one bulk insert. Requests may depend on other requests in
+     * the same batch, so a whole fan-out/fan-in structure can be created at once. A request whose
+     * batch dependency is missing from the batch is not created.
+     *
+     * @return one result per request, in request order
+     */
+    public List<WorkflowResult> createWorkflows(Collection<WorkflowRequest> requests) {
+        Map<WorkflowRequest, Workflow> workflows = new IdentityHashMap<>();
+        for (WorkflowRequest request : requests) {
+            Workflow workflow = new Workflow(request.getName(), request.getNode(), request.getStatus(), request.getStart(),
+                    request.getContext());
+            workflow.setId(new ObjectId());
+            workflow.setPriority(request.getPriority());
+            workflow.setAffinity(request.getAffinity());
+            if (request.getStatus() == PROCESSING) {
+                workflow.setLeaseUntil(workflow.getUpdated() + workflowCommandFactory.getLease(request.getNode()));
+            }
+            workflows.put(request, workflow);
+        }
+
+        WorkflowResult[] results = new WorkflowResult[requests.size()];
+        List<Workflow> batch = new ArrayList<>(requests.size());
+        List<Integer> positions = new ArrayList<>(requests.size());
+        List<WorkflowRequest> batched = new ArrayList<>(requests.size());
+        int position = 0;
+        for (WorkflowRequest request : requests) {
+            Workflow workflow = workflows.get(request);
+            if (addDependencies(workflow, request, workflows)) {
+                batch.add(workflow);
+                batched.add(request);
+                positions.add(position);
+            } else {
+                results[position] = new WorkflowResult(request, null, DEPENDENCY_NOT_IN_BATCH);
+            }
+            position++;
+        }
+
+        List<String> errors = workflowStore.create(batch);
+        boolean ready = false;
+        for (int i = 0; i < batch.size(); i++) {
+            Workflow workflow = batch.get(i);
+            String error = errors.get(i);
+            results[positions.get(i)] = new WorkflowResult(batched.get(i), error == null ? workflow : null, error);
+            ready |= error == null && workflow.getStatus() == WAITING && workflow.getPendingDependencies() <= 0
+                    && workflow.getStart() <= workflow.getUpdated();
+            if (error == null && workflow.getStatus() != PROCESSING) {
+                workflowScheduler.schedule(workflow);
+            }
+        }
+        if (ready) {
+            workflowSignal.signal();
+        }
+        return Arrays.asList(results);
+    }
+
+    private static boolean addDependencies(Workflow workflow, WorkflowRequest request, Map<WorkflowRequest, Workflow> batch) {
+        Set<ObjectId> dependencies = new LinkedHashSet<>(request.getDependencies());
+        for (WorkflowRequest dependency : request.getBatchDependencies()) {
+            Workflow inBatch = batch.get(dependency);
+            if (inBatch == null) {
+                return false;
+            }
+            dependencies.add(inBatch.getId());
+        }
+        workflow.getDependencies().addAll(dependencies);
+        return true;
+    }
+
     public Workflow createReadyNow(String name, String node, Value context) {
         return createWorkflow(name, node, currentTimeMillis(), context, WAITING);
     }
@@ -76,98 +219,416 @@ public class WorkflowService implements Runnable {
 
     public void saveChanges(Workflow workflow) {
         workflow.setUpdated(currentTimeMillis());
-        workflowCollection.save(workflow);
+        workflowStore.save(workflow);
     }
 
     public void activateOnHoldDependencies(Workflow workflow) {
-        for (ObjectId dependency : workflow.getDependencies()) {
-            workflowCollection.update("{_id:#, status:#}", dependency, INITIALISING)
-                    .with("{$set:{status:#, updated:#}}", WAITING, currentTimeMillis());
+        if (workflowStore.activateOnHold(workflow.getDependencies(), currentTimeMillis()) > 0) {
+            workflowSignal.signal();
         }
     }
 
     @Override
     public void run() {
+        work(() -> false, () -> null);
+    }
+
+    /**
+     * Claims and processes workflows until stopped says to stop, checked between workflows, or the
+     * thread is interrupted. A failed cycle is logged and the worker carries on after a pause.
+     * Workflows claimed but not yet started are handed back on the way out, so other workers pick
+     * them up straight away rather than once their leases run out.
+     * <p>
+     * Each claim goes to the partitions supplied at the time first, null meaning any partition, and
+     * to any partition once those have nothing ready.
+     */
+    void work(BooleanSupplier stopped, Supplier<Collection<Integer>> partitions) {
+        Deque<Workflow> claimed = new ArrayDeque<>();
         try {
-            while (true) {
-                Workflow workflow = getWaiting();
-                if (workflow != null) {
-                    process(workflow);
-                } else {
-                    sleep(workflowServiceSleep);
+            while (!stopped.getAsBoolean() && !Thread.currentThread().isInterrupted()) {
+                long seen = workflowSignal.getGeneration();
+                try {
+                    if (claimed.isEmpty()) {
+                        // a fresh token per cycle, so reading back a claim never matches an earlier batch
+                        Collection<Integer> stripe = partitions.get();
+                        claimed.addAll(getWaiting(new ObjectId(), workflowServiceClaimBatch, stripe));
+                        if (claimed.isEmpty() && stripe != null) {
+                            // nothing left in the stripe, so help with the rest rather than idle
+                            claimed.addAll(getWaiting(new ObjectId(), workflowServiceClaimBatch, null));
+                        }
+                    }
+                    Workflow workflow = claimed.poll();
+                    if (workflow != null && !renew(workflow, currentTimeMillis())) {
+                        continue;
+                    }
+                    if (workflow != null) {
+                        workflowMetrics.started();
+                        try {
+                            process(workflow, workflowServiceChainSteps, workflowServiceChainMillis);
+                        } finally {
+                            workflowMetrics.finished();
+                        }
+                    } else {
+                        // park until work is signalled, polling again only as a safety net
+                        workflowSignal.await(seen, workflowServiceSleep);
+                    }
+                } catch (RuntimeException e) {
+                    // anything the failure left claimed is swept once its lease runs out
+                    log.error("Workflow worker failed, will retry", e);
+                    workflowSignal.await(seen, workflowServiceSleep);
                 }
             }
         } catch (InterruptedException ie) {
             // ignored
+        } finally {
+            handBack(claimed);
+        }
+    }
+
+    /**
+     * Extends the lease of a buffered workflow once less than half of it is left, so it cannot expire
+     * while its step runs.
+     *
+     * @return false when the monitor has already swept the workflow and it is no longer this worker's
+     */
+    boolean renew(Workflow workflow, long now) {
+        long lease = workflowCommandFactory.getLease(workflow.getNode());
+        if (workflow.getLeaseUntil() - now >= lease / 2) {
+            return true;
+        }
+        workflow.setLeaseUntil(now + lease);
+        return workflowStore.checkpoint(workflow, workflow.getNode(), now);
+    }
+
+    private void handBack(Collection<Workflow> claimed) {
+        long now = currentTimeMillis();
+        int handedBack = 0;
+        for (Workflow workflow : claimed) {
+            if (workflowStore.unclaim(workflow, now)) {
+                workflowThrottle.release(workflow.getNode());
+                handedBack++;
+            }
+        }
+        if (handedBack > 0) {
+            workflowSignal.signal();
+        }
+    }
+
+    /**
+     * Hands back a workflow whose step did not start, saving the nodes it chained through first so
+     * they are not run again.
+     */
+    private void handBack(Workflow workflow, String stored) {
+        long now = currentTimeMillis();
+        if (!workflow.getNode().equals(stored) && !workflowStore.checkpoint(workflow, stored, now)) {
+            // the claim was lost, and the monitor has handed the workflow on
+            return;
+        }
+        if (workflowStore.unclaim(workflow, now)) {
+            workflowThrottle.release(stored);
+            workflowSignal.signal();
         }
     }
 
     Workflow getWaiting() {
-        long millis = currentTimeMillis();
-        return workflowCollection.findAndModify("{status:#, start:{$lte:#}, dependencies:{$size:0}}", WAITING, millis)
-                .with("{status:#, updated:#}", PROCESSING, millis)
-                .returnNew()
-                .as(Workflow.class);
+        List<Workflow> claimed = getWaiting(null, 1);
+        return claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    /**
+     * Claims up to batch waiting workflows in one cycle and tags them with the claim token. Candidates
+     * lost to another worker between the find and the update are dropped, so only workflows that were
+     * actually claimed under the token are returned. A batch of one claims without a token.
+     * <p>
+     * Throttled nodes that are saturated are skipped by the claim, and a workflow claimed on a
+     * throttled node that has since run out of slots or tokens is handed straight back.
+     */
+    List<Workflow> getWaiting(ObjectId claim, int batch) {
+        return getWaiting(claim, batch, null);
+    }
+
+    /**
+     * Claims as {@link #getWaiting(ObjectId, int)} from the partitions only, or any partition when null.
+     */
+    List<Workflow> getWaiting(ObjectId claim, int batch, Collection<Integer> partitions) {
+        long started = currentTimeMillis();
+        Set<String> saturated = workflowThrottle.getSaturated(started);
+        List<Workflow> claimed;
+        if (batch <= 1) {
+            Workflow workflow = workflowStore.claim(started, workflowCommandFactory::getLease, saturated, partitions);
+            claimed = workflow != null ? singletonList(workflow) : emptyList();
+        } else {
+            claimed = workflowStore.claim(claim, started, batch, workflowCommandFactory::getLease, saturated, partitions);
+        }
+        List<Workflow> admitted = new ArrayList<>(claimed.size());
+        for (Workflow workflow : claimed) {
+            if (workflowThrottle.acquire(workflow, started)) {
+                admitted.add(workflow);
+            } else {
+                workflowStore.unclaim(workflow, started);
+            }
+        }
+        workflowMetrics.claimed(currentTimeMillis() - started, admitted.size());
+        admitted.forEach(workflowMetrics::retried);
+        return admitted;
     }
 
     void process(Workflow workflow) {
+        process(workflow, 0, 0);
+    }
+
+    /**
+     * Runs the workflow's current node. With chaining on (chainSteps above zero), when the next node is
+     * ready now and the step added no dependencies, the same worker runs it straight away instead of
+     * writing the workflow back as WAITING and claiming it again. Progress is checkpointed every
+     * chainSteps steps, after chainMillis, or when the lease would not cover the next step; each
+     * checkpoint extends the lease. A crash mid-chain reruns the steps since the last checkpoint.
+     * Chains never run on or into a throttled node, as its slot is taken and given back at the claim.
+     */
+    void process(Workflow workflow, int chainSteps, long chainMillis) {
+        // the node last written for the workflow, which guards every write back
+        String stored = workflow.getNode();
+        long checkpointed = currentTimeMillis();
+        int steps = 0;
+        if (workflow.getQuorum() > 0) {
+            // resumed at a join once a quorum of its branches finished, so the rest are not needed
+            workflowStore.join(workflow, checkpointed);
+        }
         try {
-            WorkflowNode node = getNode(workflow.getNode());
-            if (node != null && node.getName() != null) {
+            while (true) {
+                WorkflowNode node = workflowNodeCache.getNode(workflow.getNode());
+                if (node == null || node.getName() == null) {
+                    error(workflow, stored, ERR_NODE, WORKFLOW_NODE_MISSING);
+                    return;
+                }
+
+                if (node.isFork()) {
+                    fork(workflow, stored, node);
+                    return;
+                }
 
                 WorkflowCommand command = workflowCommandFactory.getCommand(node.getName());
-                if (command != null) {
+                if (command instanceof AsyncWorkflowCommand) {
+                    processAsync(workflow, stored, node, (AsyncWorkflowCommand) command);
+                    return;
+                }
+                if (command == null) {
+                    error(workflow, stored, ERR_COMMAND, WORKFLOW_COMMAND_FACTORY_RETURNED_NULL);
+                    return;
+                }
 
-                    command.execute(workflow);
+                long executed = currentTimeMillis();
+                command.execute(workflow);
+                long now = currentTimeMillis();
+                workflowMetrics.executed(node.getName(), now - executed);
+                advance(workflow, node);
 
-                    if (node.getName().equals(workflow.getNode())) {
-                        workflow.setNode(node.getNext());
-                    }
+                if (chainSteps <= 0 || workflow.getNode() == null || workflow.getStart() > now
+                        || !workflow.getDependencies().isEmpty() || node.isThrottled()
+                        || workflowNodeCache.isThrottled(workflow.getNode())) {
+                    next(workflow, stored);
+                    return;
+                }
 
-                    if (workflow.getNode() == null) {
-                        completed(workflow);
-                    } else {
-                        activate(workflow, node);
+                long lease = workflowCommandFactory.getLease(workflow.getNode());
+                if (++steps >= chainSteps || now - checkpointed >= chainMillis || now + lease > workflow.getLeaseUntil()) {
+                    workflow.setLeaseUntil(now + chainMillis + lease);
+                    if (!workflowStore.checkpoint(workflow, stored, now)) {
+                        // the monitor has handed the workflow to another worker
+                        return;
                     }
+                    stored = workflow.getNode();
+                    checkpointed = now;
+                    steps = 0;
+                }
+            }
+        } catch (WorkflowException e) {
+            error(workflow, stored, e.getClassification(), e.getMessage());
+        }
+    }
 
+    /**
+     * Starts one branch per branch node, each a workflow of its own with a copy of the context, and
+     * moves the workflow on to the fork's next node to wait for them there. The branches are created
+     * on hold and only released once the workflow is waiting on them, so none can finish before its
+     * result has somewhere to go. Each finished branch merges its context into the workflow's map
+     * context under its branch node's name, and the workflow resumes once all of them, or the
+     * fork's quorum, have finished. A branch that fails is removed like any other workflow, so a fork
+     * that must survive failed branches needs a quorum.
+     * <p>
+     * A fork without a next node starts its branches independently and completes.
+     */
+    private void fork(Workflow workflow, String stored, WorkflowNode node) {
+        long now = currentTimeMillis();
+        boolean join = node.getNext() != null;
+        Value context = workflow.getContext() != null ? workflow.getContext() : new MapValue(new HashMap<>());
+        if (join && !(context instanceof MapValue)) {
+            error(workflow, stored, ERR_NODE, FORK_NEEDS_MAP_CONTEXT);
+            return;
+        }
+        if (join && ((MapValue) context).getValue() == null) {
+            ((MapValue) context).setValue(new HashMap<>());
+        }
+        workflow.setContext(context);
+
+        List<Workflow> branches = new ArrayList<>(node.getBranches().size());
+        Map<String, Integer> keys = new HashMap<>();
+        for (String start : node.getBranches()) {
+            Workflow branch = new Workflow(workflow.getName(), start, join ? INITIALISING : WAITING, now, Workflow.copy(context));
+            branch.setId(new ObjectId());
+            branch.setPriority(workflow.getPriority());
+            // no affinity, so the branches spread over partitions and run in parallel
+            if (join) {
+                branch.setParent(workflow.getId());
+                branch.setBranch(branchKey(start, keys.merge(start, 1, Integer::sum) - 1));
+            }
+            branches.add(branch);
+        }
+        List<String> errors = workflowStore.create(branches);
+        List<ObjectId> created = new ArrayList<>(branches.size());
+        for (int i = 0; i < branches.size(); i++) {
+            if (errors.get(i) == null) {
+                created.add(branches.get(i).getId());
+            } else {
+                log.error("Failed to fork " + branches.get(i).getNode() + " from workflow " + workflow.getId() + ": " + errors.get(i));
+            }
+        }
+        workflowMetrics.forked(node.getName(), created.size());
+        if (!join) {
+            completed(workflow, stored);
+            return;
+        }
+
+        workflow.getDependencies().addAll(created);
+        workflow.setQuorum(node.getQuorum());
+        workflow.setNode(node.getNext());
+        if (workflowStore.activate(workflow, stored, now)) {
+            workflowThrottle.release(stored);
+            workflowStore.activateOnHold(created, now);
+            workflowSignal.signal();
+        } else {
+            // the monitor has handed the workflow to another worker, which forks again
+            for (Workflow branch : branches) {
+                workflowStore.remove(branch);
+            }
+        }
+    }
+
+    /**
+     * @return the key a branch merges under: its start node, numbered after the first when a fork
+     * starts several branches at the same node, with dots swapped out so the key is one path element
+     */
+    static String branchKey(String start, int occurrence) {
+        String key = start.replace('.', '_').replace('$', '_');
+        return occurrence > 0 ? key + "-" + occurrence : key;
+    }
+
+    /**
+     * Starts an async step and returns without waiting for it, so the worker can claim more work. The
+     * workflow moves on from whichever thread completes the future. Once workflow.service.async.max
+     * steps are in flight the worker waits here for up to workflow.service.sleep, and hands the
+     * workflow back if no step finishes in time or it is interrupted, so a retired or shut down worker
+     * is not held up.
+     */
+    private void processAsync(Workflow workflow, String stored, WorkflowNode node, AsyncWorkflowCommand command) {
+        boolean permitted = false;
+        try {
+            permitted = asyncSteps.tryAcquire(workflowServiceSleep, MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!permitted) {
+            handBack(workflow, stored);
+            return;
+        }
+        workflowMetrics.asyncInFlight(getAsyncInFlight());
+        long started = currentTimeMillis();
+        CompletableFuture<Void> step;
+        try {
+            step = command.executeAsync(workflow);
+        } catch (RuntimeException e) {
+            asyncSteps.release();
+            workflowMetrics.asyncInFlight(getAsyncInFlight());
+            error(workflow, stored, ERR_COMMAND, e.getMessage());
+            return;
+        }
+        step.whenComplete((ignored, failure) -> {
+            workflowMetrics.executed(node.getName(), currentTimeMillis() - started);
+            try {
+                if (failure == null) {
+                    advance(workflow, node);
+                    next(workflow, stored);
                 } else {
-                    error(workflow, ERR_COMMAND, WORKFLOW_COMMAND_FACTORY_RETURNED_NULL);
+                    WorkflowException e = toWorkflowException(failure);
+                    error(workflow, stored, e.getClassification(), e.getMessage());
                 }
-            } else {
-                error(workflow, ERR_NODE, WORKFLOW_NODE_MISSING);
+            } catch (RuntimeException e) {
+                // the lease runs out and the monitor retries the step
+                log.error("Failed to move workflow " + workflow.getId() + " on from " + node.getName(), e);
+            } finally {
+                asyncSteps.release();
+                workflowMetrics.asyncInFlight(getAsyncInFlight());
             }
-        } catch (WorkflowException e) {
-            error(workflow, e.getClassification(), e.getMessage());
+        });
+    }
+
+    /**
+     * @return the number of async steps started but not yet completed
+     */
+    int getAsyncInFlight() {
+        return workflowServiceAsyncMax - asyncSteps.availablePermits();
+    }
+
+    static WorkflowException toWorkflowException(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof WorkflowException) {
+            return (WorkflowException) cause;
         }
+        return new WorkflowException(ERR_COMMAND, cause.getMessage());
     }
 
-    private WorkflowNode getNode(String name) {
-        return workflowNodeCollection.findOne("{_id:#}", name).as(WorkflowNode.class);
+    private static void advance(Workflow workflow, WorkflowNode node) {
+        if (node.getName().equals(workflow.getNode())) {
+            workflow.setNode(node.getNext());
+        }
     }
 
-    private void completed(Workflow workflow) {
-        workflowCollection.update("{dependencies:#}", workflow.getId())
-                .multi()
-                .with("{'$pull': {dependencies:#}}, '$set':{updated:#}}", workflow.getId(), currentTimeMillis());
-        workflowCollection.remove(workflow.getId());
+    private void next(Workflow workflow, String stored) {
+        if (workflow.getNode() == null) {
+            completed(workflow, stored);
+        } else {
+            activate(workflow, stored);
+        }
     }
 
-    private void activate(Workflow workflow, WorkflowNode node) {
-        workflowCollection.update(
-                "{_id:#, status:#, node:#, retry:#}", workflow.getId(), PROCESSING, node.getName(), workflow.getRetry())
-                .with("{'$set':{node:#, status:#, start:#, updated:#, retry:0, context:#, dependencies:#}}",
-                        workflow.getNode(),
-                        WAITING,
-                        workflow.getStart(),
-                        currentTimeMillis(),
-                        workflow.getContext(),
-                        workflow.getDependencies()
-                );
+    private void completed(Workflow workflow, String stored) {
+        long started = currentTimeMillis();
+        workflowStore.complete(workflow, started);
+        workflowThrottle.release(stored);
+        workflowMetrics.completed(currentTimeMillis() - started);
+        workflowSignal.signal();
+    }
+
+    private void activate(Workflow workflow, String stored) {
+        long started = currentTimeMillis();
+        // a workflow the monitor has already recovered had its slot given back by the monitor
+        if (workflowStore.activate(workflow, stored, started)) {
+            workflowThrottle.release(stored);
+        }
+        long now = currentTimeMillis();
+        workflowMetrics.activated(now - started);
+        if (workflow.getStart() <= now) {
+            workflowSignal.signal();
+        } else {
+            workflowScheduler.schedule(workflow);
+        }
     }
 
-    private void error(Workflow workflow, String errorCode, String message) {
-        WorkflowError workflowError = new WorkflowError(workflow, errorCode, message);
-        workflowLogCollection.save(workflowError);
-        workflowCollection.remove(workflow.getId());
+    private void error(Workflow workflow, String stored, String errorCode, String message) {
+        long started = currentTimeMillis();
+        workflowLogWriter.write(new WorkflowError(workflow, errorCode, message));
+        workflowStore.remove(workflow);
+        workflowThrottle.release(stored);
+        workflowMetrics.failed(currentTimeMillis() - started);
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * WorkflowSignal.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.jongo.MongoCollection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import thingynet.event.Event;
+import thingynet.event.EventCollectionFactory;
+import thingynet.event.EventListener;
+import thingynet.event.TransientEventHandler;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * "Work available" notifier for idle workers. Signals wake workers in this JVM immediately and, when
+ * workflow.signal.remote is on, are published to a capped collection that every instance tails so
+ * idle workers elsewhere in the cluster wake as well, at most once per workflow.signal.remote.interval.
+ * <p>
+ * Workers park on a lock rather than a monitor, as a virtual thread waiting on a monitor holds on to
+ * its carrier thread, and a few thousand idle virtual workers would hold all of them.
+ */
+@Component
+public class WorkflowSignal {
+    static final String WORKFLOW_SIGNAL_EVENT = "workflowSignal";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition signalled = lock.newCondition();
+    private long generation;
+    private final AtomicLong published = new AtomicLong();
+
+    @Autowired
+    private EventCollectionFactory eventCollectionFactory;
+
+    @Value("${workflow.signal.remote}")
+    private boolean remote;
+
+    @Value("${workflow.signal.remote.interval}")
+    private long remoteInterval;
+
+    @Value("${workflow.signal.db}")
+    private String signalDb;
+
+    @Value("${workflow.signal.queue.name}")
+    private String signalQueueName;
+
+    @Value("${workflow.signal.queue.size}")
+    private long signalQueueSize;
+
+    @Value("${workflow.signal.queue.poll}")
+    private long signalQueuePoll;
+
+    private MongoCollection signalCollection;
+
+    private EventListener signalListener;
+
+    @PostConstruct
+    void start() {
+        if (remote) {
+            signalCollection = eventCollectionFactory.create(signalDb, signalQueueName, signalQueueSize);
+            signalListener = new EventListener(signalCollection, new TransientEventHandler(event -> wake()), signalQueuePoll);
+            Thread thread = new Thread(signalListener, WorkflowSignal.class.getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (signalListener != null) {
+            signalListener.stop();
+        }
+    }
+
+    public void signal() {
+        wake();
+        if (signalCollection != null && publish(currentTimeMillis())) {
+            signalCollection.insert(new Event(WORKFLOW_SIGNAL_EVENT, null));
+        }
+    }
+
+    /**
+     * @return true when no signal has been published within the interval, so this one should be
+     */
+    boolean publish(long now) {
+        long last = published.get();
+        return now - last >= remoteInterval && published.compareAndSet(last, now);
+    }
+
+    void wake() {
+        lock.lock();
+        try {
+            generation++;
+            signalled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getGeneration() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks the caller until the generation moves past the one it last saw or the timeout elapses.
+     * Passing the generation read before polling closes the gap where a signal arrives between an
+     * empty poll and the call to await.
+     */
+    void await(long seen, long timeout) throws InterruptedException {
+        long deadline = currentTimeMillis() + timeout;
+        lock.lock();
+        try {
+            long remaining = timeout;
+            while (generation == seen && remaining > 0) {
+                signalled.await(remaining, MILLISECONDS);
+                remaining = deadline - currentTimeMillis();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * WorkflowStore.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.bson.types.ObjectId;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
+import thingynet.workflow.commands.WorkflowLoad;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * Storage behind the workflow engine. Every state transition the engine makes goes through this
+ * interface, so the engine runs unchanged against Mongo or entirely in memory.
+ */
+public interface WorkflowStore {
+
+    void create(Workflow workflow);
+
+    /**
+     * Inserts the workflows as one unordered batch, so a failed insert does not stop the rest.
+     * Workflows in the batch may depend on each other.
+     *
+     * @return one entry per workflow, null when it was inserted and the reason when it was not
+     */
+    List<String> create(List<Workflow> workflows);
+
+    void save(Workflow workflow);
+
+    /**
+     * @return the stored workflow, or null when there is none with the id
+     */
+    Workflow get(ObjectId id);
+
+    /**
+     * Claims the next ready workflow, moving it to PROCESSING with a lease running until now plus the
+     * lease for its node, or returns null when nothing is ready.
+     */
+    default Workflow claim(long now, ToLongFunction<String> lease) {
+        return claim(now, lease, emptySet());
+    }
+
+    /**
+     * Claims the next ready workflow on any node but the skipped ones, which are left WAITING.
+     */
+    default Workflow claim(long now, ToLongFunction<String> lease, Set<String> skip) {
+        return claim(now, lease, skip, null);
+    }
+
+    /**
+     * Claims the next ready workflow in one of the partitions, on any node but the skipped ones. Null
+     * partitions claims from any partition, and no partitions claims nothing.
+     */
+    Workflow claim(long now, ToLongFunction<String> lease, Set<String> skip, Collection<Integer> partitions);
+
+    /**
+     * Claims up to batch ready workflows under the claim token, leasing each for its node's lease. Only
+     * workflows actually claimed are returned.
+     */
+    default List<Workflow> claim(ObjectId claim, long now, int batch, ToLongFunction<String> lease) {
+        return claim(claim, now, batch, lease, emptySet());
+    }
+
+    /**
+     * Claims up to batch ready workflows on any node but the skipped ones, which are left WAITING.
+     */
+    default List<Workflow> claim(ObjectId claim, long now, int batch, ToLongFunction<String> lease, Set<String> skip) {
+        return claim(claim, now, batch, lease, skip, null);
+    }
+
+    /**
+     * Claims up to batch ready workflows in the partitions, as {@link #claim(long, ToLongFunction, Set, Collection)}.
+     */
+    List<Workflow> claim(ObjectId claim, long now, int batch, ToLongFunction<String> lease, Set<String> skip,
+                         Collection<Integer> partitions);
+
+    /**
+     * Hands a claimed workflow straight back to WAITING without counting a retry, for a claim that lost
+     * the race for a throttled node's last slot or token. Guarded like {@link #activate}.
+     *
+     * @return true when the stored workflow was updated
+     */
+    boolean unclaim(Workflow workflow, long now);
+
+    /**
+     * Moves a processed workflow back to WAITING with its new node, start, context and dependencies.
+     * The write only applies while the stored workflow is still PROCESSING the given node with the same
+     * retry count, so a worker that lost its claim to the monitor cannot overwrite the retry.
+     *
+     * @return true when the stored workflow was updated
+     */
+    boolean activate(Workflow workflow, String node, long now);
+
+    /**
+     * Saves the progress of a workflow the worker is still processing: its node, start, context and
+     * leaseUntil are written but it stays PROCESSING. Guarded like {@link #activate}, where node is the
+     * node last written for the workflow.
+     *
+     * @return true when the stored workflow was updated
+     */
+    boolean checkpoint(Workflow workflow, String node, long now);
+
+    /**
+     * Moves the INITIALISING workflows among the ids to WAITING.
+     *
+     * @return the number of workflows activated
+     */
+    int activateOnHold(List<ObjectId> ids, long now);
+
+    /**
+     * Removes a finished workflow and releases every workflow waiting on it. A finished branch also
+     * has its context merged into its parent's context under its branch key.
+     */
+    void complete(Workflow workflow, long now);
+
+    /**
+     * Ends a PROCESSING workflow's wait at a join once it has resumed: branches forked from it that
+     * have not finished are removed, and its dependencies and quorum are cleared.
+     *
+     * @return the number of branches removed
+     */
+    int join(Workflow workflow, long now);
+
+    /**
+     * Removes a failed workflow. Workflows waiting on it stay blocked.
+     */
+    void remove(Workflow workflow);
+
+    /**
+     * Returns every PROCESSING workflow whose lease has expired to WAITING and increments its retry
+     * count.
+     *
+     * @return the number of workflows recovered by node
+     */
+    default Map<String, Integer> sweep(long now) {
+        return sweep(now, node -> null);
+    }
+
+    /**
+     * Sweeps expired leases as above, except that workflows on a node with a retry policy start again
+     * only after the node's backoff, and are moved to the dead letters with their context once they
+     * have no attempts left.
+     *
+     * @return the number of workflows recovered or dead lettered by node
+     */
+    Map<String, Integer> sweep(long now, Function<String, WorkflowNode> nodes);
+
+    /**
+     * @return up to limit dead letters, the most recent first
+     */
+    List<WorkflowDeadLetter> getDeadLetters(int limit);
+
+    /**
+     * Finds WAITING and INITIALISING workflows starting after from and no later than to, in start order,
+     * with only their id and start read.
+     *
+     * @return up to limit workflows
+     */
+    List<Workflow> getScheduled(long from, long to, int limit);
+
+    /**
+     * Saves the recurring schedule, replacing any with the same id.
+     */
+    void saveSchedule(WorkflowSchedule schedule);
+
+    void removeSchedule(String id);
+
+    WorkflowSchedule getSchedule(String id);
+
+    /**
+     * @return the schedules whose next tick is no later than until
+     */
+    List<WorkflowSchedule> getSchedules(long until);
+
+    /**
+     * Moves the schedule on from its next tick, only while no other scheduler has moved it since.
+     *
+     * @return true when the schedule was moved on
+     */
+    boolean advanceSchedule(String id, long nextRun, long followingRun, long lastRun);
+
+    /**
+     * @return the earliest lease expiry among PROCESSING workflows, or Long.MAX_VALUE when none are held
+     */
+    long getNextLeaseExpiry();
+
+    /**
+     * Takes or renews the named lease for the owner until the given time. Another owner can only take
+     * the lease once it has expired.
+     *
+     * @return true when the owner holds the lease
+     */
+    boolean acquireLease(String name, String owner, long now, long until);
+
+    /**
+     * Gives up the named lease if the owner still holds it, so another owner can take it at once.
+     */
+    void releaseLease(String name, String owner);
+
+    /**
+     * Marks the member live until the given time and drops members that have expired.
+     *
+     * @return the ids of the live members, in order
+     */
+    List<String> renewMembership(String member, long now, long until);
+
+    /**
+     * Removes the member at once rather than waiting for it to expire.
+     */
+    void leaveMembership(String member);
+
+    /**
+     * Takes one of the node's concurrency slots and one of its rate tokens if both are free.
+     *
+     * @return true when the slot and token were taken
+     */
+    boolean acquireThrottle(WorkflowNode node, long now);
+
+    /**
+     * Gives back count of the node's concurrency slots.
+     */
+    void releaseThrottle(String node, int count);
+
+    /**
+     * @return the names of the nodes that have no free slot or token at now
+     */
+    Set<String> getSaturated(Collection<WorkflowNode> nodes, long now);
+
+    /**
+     * Sets the slots held on each node to the workflows actually PROCESSING it, correcting slots lost by
+     * workers that died holding them.
+     *
+     * @return the slots held by node after the correction
+     */
+    Map<String, Integer> reconcileThrottles(Collection<WorkflowNode> nodes);
+
+    /**
+     * @return the number of workflows WAITING on the node, ready or not
+     */
+    long getWaiting(String node);
+
+    /**
+     * @return the number of workflows ready to claim at now
+     */
+    long getReady(long now);
+
+    /**
+     * Counts workflows by readiness with queries over the workflows, so its cost grows with the queue.
+     */
+    WorkflowLoad getLoad(long now);
+
+    /**
+     * Reads the counts kept up to date as workflows move between states, so its cost does not grow
+     * with the queue. Only the per status totals, the retry and dead letter counts and
+     * {@link WorkflowLoad#getByName()} are filled in.
+     */
+    WorkflowLoad getCounts(long now);
+
+    /**
+     * Recounts workflows by status and by name, retrying workflows and dead letters, and corrects the
+     * kept counts to match. Counts kept apart from the workflows may only be corrected once the same
+     * difference is seen twice.
+     *
+     * @return the total drift corrected
+     */
+    long reconcileCounts();
+
+    void saveLoad(WorkflowLoad load);
+
+    /**
+     * @return the loads saved from from to to inclusive, oldest first
+     */
+    List<WorkflowLoad> getLoads(long from, long to);
+
+    /**
+     * Inserts the records in one bulk write.
+     */
+    void saveLogs(List<WorkflowLog> logs);
+
+    void saveLatencies(List<WorkflowLatencyInterval> intervals);
+
+    /**
+     * @return the latency intervals for the name and node that overlap from to to
+     */
+    List<WorkflowLatencyInterval> getLatencies(String name, String node, long from, long to);
+
+    Iterable<WorkflowNode> getNodes();
+
+    WorkflowNode getNode(String name);
+
+    /**
+     * Saves the node definition and bumps the node version.
+     *
+     * @return the node version after the save
+     */
+    long saveNode(WorkflowNode node);
+
+    long getNodeVersion();
+}
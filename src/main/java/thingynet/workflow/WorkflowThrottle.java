@@ -0,0 +1,107 @@
+/*
+ * WorkflowThrottle.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * Enforces the concurrency and rate limits of throttled nodes when workflows are claimed. Nodes
+ * without limits cost nothing.
+ */
+@Component
+class WorkflowThrottle {
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowNodeCache workflowNodeCache;
+
+    @Autowired
+    private WorkflowMetrics workflowMetrics;
+
+    /**
+     * @return the names of the throttled nodes claims should skip at now
+     */
+    Set<String> getSaturated(long now) {
+        List<WorkflowNode> nodes = workflowNodeCache.getThrottledNodes();
+        if (nodes.isEmpty()) {
+            return emptySet();
+        }
+        Set<String> saturated = workflowStore.getSaturated(nodes, now);
+        saturated.forEach(workflowMetrics::claimThrottled);
+        return saturated;
+    }
+
+    /**
+     * Takes a slot and a token for a workflow just claimed on its node. Another worker may have taken
+     * the last of either since the claim query ran, in which case the workflow must be handed back.
+     *
+     * @return true when the workflow may run
+     */
+    boolean acquire(Workflow workflow, long now) {
+        WorkflowNode node = workflowNodeCache.getNode(workflow.getNode());
+        if (node == null || !node.isThrottled() || workflowStore.acquireThrottle(node, now)) {
+            return true;
+        }
+        workflowMetrics.claimThrottled(node.getName());
+        return false;
+    }
+
+    /**
+     * Gives back the slot a workflow held on the node it was claimed on.
+     */
+    void release(String node) {
+        if (workflowNodeCache.isThrottled(node)) {
+            workflowStore.releaseThrottle(node, 1);
+        }
+    }
+
+    /**
+     * Gives back the slots held by workflows the monitor recovered from expired leases.
+     */
+    void recovered(Map<String, Integer> byNode) {
+        for (Map.Entry<String, Integer> entry : byNode.entrySet()) {
+            if (workflowNodeCache.isThrottled(entry.getKey())) {
+                workflowStore.releaseThrottle(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Corrects the slots held on every throttled node and publishes how many workflows each holds and
+     * has waiting.
+     */
+    void reconcile() {
+        List<WorkflowNode> nodes = workflowNodeCache.getThrottledNodes();
+        if (nodes.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : workflowStore.reconcileThrottles(nodes).entrySet()) {
+            workflowMetrics.throttleState(entry.getKey(), entry.getValue(), workflowStore.getWaiting(entry.getKey()));
+        }
+    }
+}
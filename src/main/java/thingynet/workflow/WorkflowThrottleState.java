@@ -0,0 +1,99 @@
+/*
+ * WorkflowThrottleState.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The slots held and rate tokens left on a throttled node, shared by every worker in the cluster and
+ * updated with a compare and set on version.
+ */
+class WorkflowThrottleState {
+    @JsonProperty("_id")
+    private String node;
+
+    private int held;
+    private double tokens;
+    private long refilled;
+    private long version;
+
+    WorkflowThrottleState() {
+    }
+
+    /**
+     * A node nothing has been claimed on yet, with no slots held and a full burst of tokens.
+     */
+    WorkflowThrottleState(WorkflowNode node, long now) {
+        this.node = node.getName();
+        this.tokens = node.getRateBurst();
+        this.refilled = now;
+    }
+
+    /**
+     * @return the tokens available at now, refilled at the node's rate up to its burst
+     */
+    double getTokens(WorkflowNode node, long now) {
+        if (node.getRateLimit() <= 0) {
+            return Double.MAX_VALUE;
+        }
+        double refill = Math.max(now - refilled, 0) * node.getRateLimit() / 1000;
+        return Math.min(tokens + refill, node.getRateBurst());
+    }
+
+    /**
+     * @return true when another claim on the node would exceed its concurrency or rate
+     */
+    boolean isSaturated(WorkflowNode node, long now) {
+        return (node.getMaxConcurrency() > 0 && held >= node.getMaxConcurrency()) || getTokens(node, now) < 1;
+    }
+
+    /**
+     * Takes a slot and a token for one claim at now.
+     */
+    void acquire(WorkflowNode node, long now) {
+        tokens = node.getRateLimit() > 0 ? getTokens(node, now) - 1 : 0;
+        refilled = now;
+        held++;
+        version++;
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    int getHeld() {
+        return held;
+    }
+
+    void setHeld(int held) {
+        this.held = held;
+    }
+
+    double getTokens() {
+        return tokens;
+    }
+
+    long getRefilled() {
+        return refilled;
+    }
+
+    long getVersion() {
+        return version;
+    }
+}
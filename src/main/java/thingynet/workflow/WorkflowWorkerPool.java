@@ -0,0 +1,283 @@
+/*
+ * WorkflowWorkerPool.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Service;
+import thingynet.concurrent.ExecutorFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Runs the workflow workers, resizing the pool every workflow.pool.resize millis between
+ * workflow.pool.min and workflow.pool.max, or workflow.pool.virtual.max on virtual threads.
+ */
+@Service
+public class WorkflowWorkerPool {
+    private static final Logger log = Logger.getLogger(WorkflowWorkerPool.class.getName());
+
+    static final String WORKERS_GAUGE = "workflow.pool.workers";
+
+    // claims finding work at or above this rate may grow the pool, below the lower rate shrink it
+    static final double GROW_HIT_RATE = 0.9;
+    static final double SHRINK_HIT_RATE = 0.5;
+
+    @Autowired
+    private WorkflowService workflowService;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowMetrics workflowMetrics;
+
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    @Autowired
+    private ExecutorFactory executorFactory;
+
+    @Autowired
+    private WorkflowPartitions workflowPartitions;
+
+    @Value("${workflow.pool.min}")
+    private int workflowPoolMin;
+
+    @Value("${workflow.pool.max}")
+    private int workflowPoolMax;
+
+    @Value("${workflow.pool.virtual.max}")
+    private int workflowPoolVirtualMax;
+
+    @Value("${workflow.pool.resize}")
+    private long workflowPoolResize;
+
+    @Value("${workflow.pool.shutdown}")
+    private long workflowPoolShutdown;
+
+    private final List<Worker> workers = new ArrayList<>();
+    // read by the workers on every claim to stripe the partitions
+    private volatile int workerCount;
+    private ExecutorService executor;
+    private ScheduledExecutorService sizer;
+
+    private long claims;
+    private long emptyClaims;
+    private long steps;
+    private long stepMillis;
+
+    /**
+     * Starts the minimum number of workers and the resizing.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = executorFactory.executor("workflow-worker", 0);
+        sizer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, WorkflowWorkerPool.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        sample();
+        if (workflowPartitions.isEnabled()) {
+            // owned before the first claim, so the workers never start out claiming everything
+            workflowPartitions.refresh(currentTimeMillis());
+            long heartbeat = workflowPartitions.getHeartbeat();
+            sizer.scheduleWithFixedDelay(this::refreshPartitions, heartbeat, heartbeat, MILLISECONDS);
+        }
+        resize(workflowPoolMin);
+        sizer.scheduleWithFixedDelay(this::adjust, workflowPoolResize, workflowPoolResize, MILLISECONDS);
+        log.info("Started " + workflowPoolMin + " workflow workers, up to " + getMax());
+    }
+
+    /**
+     * Retires every worker and waits for them to finish what they are running.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        ExecutorService stopping;
+        synchronized (this) {
+            if (executor == null) {
+                return;
+            }
+            sizer.shutdownNow();
+            resize(0);
+            stopping = executor;
+            executor = null;
+        }
+        long deadline = currentTimeMillis() + workflowPoolShutdown;
+        stopping.shutdown();
+        if (!stopping.awaitTermination(workflowPoolShutdown, MILLISECONDS)) {
+            log.warn("Interrupting workflow workers still running after " + workflowPoolShutdown + " millis");
+            stopping.shutdownNow();
+        }
+        while (workflowService.getAsyncInFlight() > 0 && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        workflowPartitions.leave();
+        log.info("Stopped workflow workers");
+    }
+
+    private int getMax() {
+        return executorFactory.isVirtual() ? workflowPoolVirtualMax : workflowPoolMax;
+    }
+
+    synchronized int getWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * Resizes the pool from what the claims and steps since the last adjustment saw.
+     */
+    void adjust() {
+        try {
+            long[] sampled = sample();
+            long interval = sampled[0];
+            double hitRate = interval > 0 ? (double) (interval - sampled[1]) / interval : 1;
+            double stepTime = sampled[2] > 0 ? (double) sampled[3] / sampled[2] : 0;
+            long backlog = workflowStore.getReady(currentTimeMillis());
+            synchronized (this) {
+                if (executor != null) {
+                    resize(size(workers.size(), backlog, hitRate, stepTime, workflowPoolResize, workflowPoolMin, getMax()));
+                }
+            }
+        } catch (RuntimeException e) {
+            // the pool keeps its size until the next adjustment
+            log.error("Failed to resize the workflow worker pool", e);
+        }
+    }
+
+    private void refreshPartitions() {
+        try {
+            workflowPartitions.refresh(currentTimeMillis());
+        } catch (RuntimeException e) {
+            // the workers keep the partitions they have until the next heartbeat
+            log.error("Failed to refresh the workflow partitions", e);
+        }
+    }
+
+    /**
+     * Works out the workers wanted for the next interval. With a backlog and claims finding work, the
+     * pool grows by the workers needed to clear the backlog in one interval at the given step time,
+     * at most doubling at once. While more than half the claims come back empty it shrinks by a
+     * quarter, and in between it holds, so it settles rather than swings. No claims at all means every
+     * worker spent the interval in a step, which counts as every claim finding work.
+     */
+    static int size(int current, long backlog, double hitRate, double stepMillis, long interval, int min, int max) {
+        int size = current;
+        if (backlog > 0 && hitRate >= GROW_HIT_RATE) {
+            long needed = (long) Math.ceil(backlog * Math.max(stepMillis, 1) / interval);
+            size = (int) Math.min((long) current + Math.min(needed, Math.max(current, 1)), Integer.MAX_VALUE);
+        } else if (hitRate < SHRINK_HIT_RATE) {
+            size = current - Math.max(current / 4, 1);
+        }
+        return Math.max(min, Math.min(max, size));
+    }
+
+    /**
+     * Starts or retires workers to reach size, always retiring the most recently started.
+     */
+    private void resize(int size) {
+        if (size == workers.size()) {
+            return;
+        }
+        while (workers.size() < size) {
+            Worker worker = new Worker(workers.size());
+            workers.add(worker);
+            executor.submit(worker);
+        }
+        boolean retired = false;
+        while (workers.size() > size) {
+            workers.remove(workers.size() - 1).retired = true;
+            retired = true;
+        }
+        if (retired) {
+            // parked workers notice they are retired on waking, and only this JVM's need waking
+            workflowSignal.wake();
+        }
+        workerCount = workers.size();
+        gaugeService.submit(WORKERS_GAUGE, workers.size());
+        if (log.isDebugEnabled()) {
+            log.debug("Resized the workflow worker pool to " + workers.size());
+        }
+    }
+
+    /**
+     * Replaces a worker that stopped without being retired, so the pool keeps the size it was given.
+     */
+    private synchronized void exited(Worker worker) {
+        int position = workers.indexOf(worker);
+        if (position < 0 || executor == null) {
+            return;
+        }
+        log.warn("Restarting workflow worker " + worker.index + ", which stopped without being retired");
+        Worker replacement = new Worker(worker.index);
+        workers.set(position, replacement);
+        executor.submit(replacement);
+    }
+
+    /**
+     * @return the claims, empty claims, steps and step millis since the last sample
+     */
+    private long[] sample() {
+        long[] sampled = {
+                workflowMetrics.getClaims() - claims,
+                workflowMetrics.getEmptyClaims() - emptyClaims,
+                workflowMetrics.getSteps() - steps,
+                workflowMetrics.getStepMillis() - stepMillis};
+        claims += sampled[0];
+        emptyClaims += sampled[1];
+        steps += sampled[2];
+        stepMillis += sampled[3];
+        return sampled;
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private volatile boolean retired;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                workflowService.work(() -> retired, () -> workflowPartitions.getPartitions(index, workerCount));
+            } finally {
+                exited(this);
+            }
+        }
+    }
+}
@@ -18,22 +18,22 @@
 
 package thingynet.workflow.commands;
 
-import org.jongo.MongoCollection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import thingynet.workflow.Workflow;
 import thingynet.workflow.WorkflowCommand;
 import thingynet.workflow.WorkflowException;
+import thingynet.workflow.WorkflowLatencyRecorder;
 
 @Component
 public class WorkflowLatencyCommand implements WorkflowCommand {
 
     @Autowired
-    private MongoCollection workflowLogCollection;
+    private WorkflowLatencyRecorder workflowLatencyRecorder;
 
     @Override
     public void execute(Workflow workflow) throws WorkflowException {
-        workflowLogCollection.save(new WorkflowLatency(workflow));
+        workflowLatencyRecorder.record(workflow.getName(), workflow.getNode(), workflow.getUpdated() - workflow.getStart());
     }
 
     @Override
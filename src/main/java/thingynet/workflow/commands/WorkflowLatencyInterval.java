@@ -0,0 +1,158 @@
+/*
+ * WorkflowLatencyInterval.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow.commands;
+
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
+
+/**
+ * Latencies recorded for one workflow name and node between start and end, as percentiles plus the
+ * non-empty histogram buckets, so intervals can be merged into percentiles over any range.
+ */
+public class WorkflowLatencyInterval {
+    private String name;
+    private String node;
+    private long start;
+    private long end;
+    private long count;
+    private long p50;
+    private long p90;
+    private long p99;
+    private long p999;
+    private long max;
+    private List<Integer> buckets = new ArrayList<>();
+    private List<Long> counts = new ArrayList<>();
+
+    public WorkflowLatencyInterval() {
+    }
+
+    public WorkflowLatencyInterval(String name, String node, long start, long end) {
+        this.name = name;
+        this.node = node;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public void setP50(long p50) {
+        this.p50 = p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public void setP90(long p90) {
+        this.p90 = p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public void setP99(long p99) {
+        this.p99 = p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public void setP999(long p999) {
+        this.p999 = p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public void setMax(long max) {
+        this.max = max;
+    }
+
+    /**
+     * @return the indexes of the non-empty histogram buckets, matching {@link #getCounts()}
+     */
+    public List<Integer> getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(List<Integer> buckets) {
+        this.buckets = buckets;
+    }
+
+    public List<Long> getCounts() {
+        return counts;
+    }
+
+    public void setCounts(List<Long> counts) {
+        this.counts = counts;
+    }
+
+    public String toString() {
+        return ReflectionToStringBuilder.toString(this, SHORT_PREFIX_STYLE);
+    }
+}
@@ -20,6 +20,9 @@ package thingynet.workflow.commands;
 
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 import static org.apache.commons.lang3.builder.ToStringStyle.SHORT_PREFIX_STYLE;
 
 public class WorkflowLoad {
@@ -28,7 +31,12 @@ public class WorkflowLoad {
     private long waitingNoDependencies;
     private long waitingWithDependencies;
     private long waitingFutureStart;
+    private long waiting;
     private long processing;
+    private long retrying;
+    private long deadLettered;
+    private Map<Integer, Long> waitingByPriority = new TreeMap<>();
+    private Map<String, Long> byName = new TreeMap<>();
 
     public WorkflowLoad() {
     }
@@ -82,6 +90,18 @@ public class WorkflowLoad {
         this.waitingFutureStart = waitingFutureStart;
     }
 
+    /**
+     * Every WAITING workflow, however it is held up. Snapshots built from the workflow counters fill in
+     * this total rather than the breakdown.
+     */
+    public long getWaiting() {
+        return waiting;
+    }
+
+    public void setWaiting(long waiting) {
+        this.waiting = waiting;
+    }
+
     public long getProcessing() {
         return processing;
     }
@@ -90,6 +110,50 @@ public class WorkflowLoad {
         this.processing = processing;
     }
 
+    /**
+     * Workflows on a retry after timing out, whatever their status.
+     */
+    public long getRetrying() {
+        return retrying;
+    }
+
+    public void setRetrying(long retrying) {
+        this.retrying = retrying;
+    }
+
+    /**
+     * Workflows moved to the dead letters after running out of attempts.
+     */
+    public long getDeadLettered() {
+        return deadLettered;
+    }
+
+    public void setDeadLettered(long deadLettered) {
+        this.deadLettered = deadLettered;
+    }
+
+    /**
+     * Ready workflows, those counted by {@link #getWaitingNoDependencies()}, broken down by priority.
+     */
+    public Map<Integer, Long> getWaitingByPriority() {
+        return waitingByPriority;
+    }
+
+    public void setWaitingByPriority(Map<Integer, Long> waitingByPriority) {
+        this.waitingByPriority = waitingByPriority;
+    }
+
+    /**
+     * Workflows of every status by workflow name.
+     */
+    public Map<String, Long> getByName() {
+        return byName;
+    }
+
+    public void setByName(Map<String, Long> byName) {
+        this.byName = byName;
+    }
+
     public String toString() {
         return ReflectionToStringBuilder.toString(null, SHORT_PREFIX_STYLE);
     }
@@ -18,36 +18,24 @@
 
 package thingynet.workflow.commands;
 
-import org.jongo.MongoCollection;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import thingynet.workflow.Workflow;
 import thingynet.workflow.WorkflowCommand;
 import thingynet.workflow.WorkflowException;
+import thingynet.workflow.WorkflowStore;
 
 import static java.lang.System.currentTimeMillis;
-import static thingynet.workflow.WorkflowStatus.*;
 
 @Component
 public class WorkflowLoadCommand implements WorkflowCommand {
 
     @Autowired
-    private MongoCollection workflowCollection;
-
-    @Autowired
-    private MongoCollection workflowLoadCollection;
+    private WorkflowStore workflowStore;
 
     @Override
     public void execute(Workflow workflow) throws WorkflowException {
-        long now = currentTimeMillis();
-        WorkflowLoad log = new WorkflowLoad(
-                workflowCollection.count("{status:#}", INITIALISING),
-                workflowCollection.count("{status:#, start:{$lte:#}, dependencies:{$size:0}}", WAITING, now),
-                workflowCollection.count("{status:#, start:{$lte:#}, dependencies:{$not: {$size:0}}}", WAITING, now),
-                workflowCollection.count("{status:#, start:{$gt:#}, dependencies:{$size:0}}", WAITING, now),
-                workflowCollection.count("{status:#}", PROCESSING)
-        );
-        workflowLoadCollection.save(log);
+        workflowStore.saveLoad(workflowStore.getCounts(currentTimeMillis()));
     }
 
     @Override
@@ -0,0 +1,66 @@
+/*
+ * ExecutorFactoryTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.concurrent;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ExecutorFactoryTestConfig.class)
+public class ExecutorFactoryTest {
+
+    @Autowired
+    private ExecutorFactory executorFactory;
+
+    @Test
+    public void executorShouldRunOnNamedPlatformThreadsByDefault() throws Exception {
+        ExecutorService executor = executorFactory.executor("test", 2);
+        try {
+            String name = executor.submit(() -> Thread.currentThread().getName()).get();
+
+            assertThat(executorFactory.isVirtual(), is(false));
+            assertThat(name, startsWith("test-"));
+            assertThat(executor, instanceOf(ThreadPoolExecutor.class));
+            assertThat(((ThreadPoolExecutor) executor).getMaximumPoolSize(), is(2));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void executorShouldGrowAsNeededWithoutAPlatformThreadLimit() {
+        ExecutorService executor = executorFactory.executor("test", 0);
+        try {
+            assertThat(((ThreadPoolExecutor) executor).getMaximumPoolSize(), is(Integer.MAX_VALUE));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * ExecutorFactoryVirtualTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.concurrent;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.ExecutorService;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs only on Java 21 and later, where virtual threads exist.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = ExecutorFactoryVirtualTest.VirtualConfig.class)
+@IntegrationTest("application.threads.virtual=true")
+public class ExecutorFactoryVirtualTest {
+
+    // a context of its own, as test contexts are shared by configuration whatever their properties
+    @Configuration
+    static class VirtualConfig extends ExecutorFactoryTestConfig {
+    }
+
+    @Autowired
+    private ExecutorFactory executorFactory;
+
+    @Before
+    public void before() {
+        assumeTrue(ExecutorFactory.isVirtualSupported());
+    }
+
+    @Test
+    public void executorShouldRunEachTaskOnANewNamedVirtualThread() throws Exception {
+        ExecutorService executor = executorFactory.executor("test", 2);
+        try {
+            Thread first = executor.submit(Thread::currentThread).get();
+            Thread second = executor.submit(Thread::currentThread).get();
+
+            assertThat(executorFactory.isVirtual(), is(true));
+            assertThat(isVirtual(first), is(true));
+            assertThat(first.getName(), startsWith("test-"));
+            assertThat(second, is(not(sameInstance(first))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+}
@@ -28,10 +28,12 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import thingynet.Application;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
-import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @SpringApplicationConfiguration(classes = Application.class)
@@ -84,7 +86,7 @@ public class MapValueTest {
 
         valueCollection.save(doc);
 
-        Map map = mapValue.getValue();
+        Map<String, Value> map = mapValue.getValue();
         map.put(KEY_1, BOOLEAN_VALUE);
         map.put(KEY_2, LONG_VALUE);
         valueCollection.update("{_id:#}", doc.getId()).with("{'$set':{value:#}}", mapValue);
@@ -99,4 +101,42 @@ public class MapValueTest {
         assertThat(key2Value.getValue(), is(LONG_VALUE.getValue()));
     }
 
+    @Test
+    public void collectChangesShouldOnlyListKeysChangedSinceClear() {
+        mapValue.clearChanges();
+        mapValue.getValue().put(KEY_1, LONG_VALUE);
+        mapValue.getValue().remove(KEY_2);
+
+        Map<String, Object> set = new HashMap<>();
+        Set<String> unset = new HashSet<>();
+        mapValue.collectChanges("context", set, unset);
+
+        assertThat(set.size(), is(1));
+        assertThat(set.get("context.value." + KEY_1), is((Object) LONG_VALUE));
+        assertThat(unset, contains("context.value." + KEY_2));
+    }
+
+    @Test
+    public void collectChangesShouldWriteWholeValueWhenMapIsReplaced() {
+        mapValue.clearChanges();
+        mapValue.setValue(new HashMap<>());
+
+        Map<String, Object> set = new HashMap<>();
+        mapValue.collectChanges("context", set, new HashSet<>());
+
+        assertThat(set.get("context"), is((Object) mapValue));
+    }
+
+    @Test
+    public void hasChangesShouldSeeChangesToNestedValues() {
+        StringValue nested = new StringValue("nested");
+        mapValue.getValue().put(KEY_1, nested);
+        mapValue.clearChanges();
+        assertThat(mapValue.hasChanges(), is(false));
+
+        nested.setValue("changed");
+
+        assertThat(mapValue.hasChanges(), is(true));
+    }
+
 }
@@ -0,0 +1,449 @@
+/*
+ * InMemoryWorkflowStoreTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import thingynet.value.MapValue;
+import thingynet.value.StringValue;
+import thingynet.workflow.commands.WorkflowLoad;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowStatus.*;
+
+public class InMemoryWorkflowStoreTest {
+    private static final String TEST_WORKFLOW = "In Memory Test";
+    private static final String FIRST_NODE = "firstNode";
+    private static final String NEXT_NODE = "nextNode";
+    private static final long NOW = 1000;
+    private static final long LEASE_MILLIS = 10;
+    private static final String LEASE_NAME = "lease";
+    private static final long AGING = 100;
+    private static final ToLongFunction<String> LEASE = node -> FIRST_NODE.equals(node) ? LEASE_MILLIS : 2 * LEASE_MILLIS;
+
+    private InMemoryWorkflowStore store;
+
+    @Before
+    public void before() {
+        store = new InMemoryWorkflowStore(AGING);
+    }
+
+    @Test
+    public void claimShouldReturnReadyWorkflowsInStartOrder() {
+        Workflow later = create(WAITING, NOW - 10);
+        Workflow earlier = create(WAITING, NOW - 20);
+        create(WAITING, NOW + 10);
+        create(INITIALISING, NOW - 30);
+
+        ObjectId claim = new ObjectId();
+        List<Workflow> claimed = store.claim(claim, NOW, 10, LEASE);
+
+        assertThat(claimed.size(), is(2));
+        assertThat(claimed.get(0).getId(), is(earlier.getId()));
+        assertThat(claimed.get(1).getId(), is(later.getId()));
+        assertThat(store.get(earlier.getId()).getStatus(), is(PROCESSING));
+        assertThat(store.get(earlier.getId()).getClaim(), is(claim));
+        assertThat(store.claim(NOW, LEASE), nullValue());
+    }
+
+    @Test
+    public void claimShouldPreferHigherPriorityUntilLowerPriorityHasAged() {
+        Workflow low = create(WAITING, NOW - AGING + 1);
+        Workflow high = createWithPriority(NOW, 1);
+        Workflow aged = create(WAITING, NOW - AGING - 1);
+
+        List<Workflow> claimed = store.claim(new ObjectId(), NOW, 3, LEASE);
+
+        assertThat(claimed.get(0).getId(), is(aged.getId()));
+        assertThat(claimed.get(1).getId(), is(high.getId()));
+        assertThat(claimed.get(2).getId(), is(low.getId()));
+    }
+
+    @Test
+    public void claimShouldHandOutACopyOfTheContext() {
+        Workflow workflow = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, new MapValue(new HashMap<>()));
+        store.create(workflow);
+
+        Workflow claimed = store.claim(NOW, LEASE);
+        ((MapValue) claimed.getContext()).getValue().put("changed", new StringValue("in place"));
+
+        assertThat(((MapValue) store.get(workflow.getId()).getContext()).getValue().isEmpty(), is(true));
+    }
+
+    @Test
+    public void completeShouldReleaseDependants() {
+        Workflow dependency = create(WAITING, NOW);
+        Workflow dependant = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        dependant.getDependencies().add(dependency.getId());
+        store.create(dependant);
+
+        Workflow claimed = store.claim(NOW, LEASE);
+        assertThat(claimed.getId(), is(dependency.getId()));
+        assertThat(store.claim(NOW, LEASE), nullValue());
+
+        store.complete(claimed, NOW);
+
+        assertThat(store.get(dependency.getId()), nullValue());
+        assertThat(store.claim(NOW, LEASE).getId(), is(dependant.getId()));
+    }
+
+    @Test
+    public void completeShouldMergeBranchesIntoTheirParentUntilItsQuorumJoins() {
+        Workflow parent = new Workflow(TEST_WORKFLOW, FIRST_NODE, PROCESSING, NOW, new MapValue(new HashMap<>()));
+        store.create(parent);
+        Workflow first = branch(parent, "first");
+        Workflow second = branch(parent, "second");
+        parent.getDependencies().addAll(asList(first.getId(), second.getId()));
+        parent.setQuorum(1);
+        parent.setNode(NEXT_NODE);
+        assertThat(store.activate(parent, FIRST_NODE, NOW), is(true));
+
+        Workflow claimed = store.claim(NOW, LEASE);
+        assertThat(claimed.getId(), is(first.getId()));
+        claimed.setContext(new StringValue("result"));
+        store.complete(claimed, NOW);
+
+        Workflow joined = store.claim(NOW, LEASE);
+        assertThat(joined.getId(), is(parent.getId()));
+        assertThat(((MapValue) joined.getContext()).getValue().get("first").getValue(), is("result"));
+        assertThat(store.join(joined, NOW), is(1));
+        assertThat(store.get(second.getId()), nullValue());
+        assertThat(store.get(parent.getId()).getDependencies(), is(empty()));
+    }
+
+    @Test
+    public void saveShouldNotWaitOnDependenciesThatHaveAlreadyCompleted() {
+        Workflow dependency = create(WAITING, NOW);
+        store.complete(store.claim(NOW, LEASE), NOW);
+
+        Workflow dependant = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        dependant.getDependencies().add(dependency.getId());
+        store.create(dependant);
+
+        assertThat(store.get(dependant.getId()).getDependencies().size(), is(0));
+        assertThat(store.claim(NOW, LEASE).getId(), is(dependant.getId()));
+    }
+
+    @Test
+    public void createShouldLinkDependenciesWithinTheBatch() {
+        Workflow child = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        child.setId(new ObjectId());
+        Workflow parent = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        parent.getDependencies().add(child.getId());
+
+        assertThat(store.create(asList(parent, child)), is(asList((String) null, null)));
+
+        assertThat(store.get(parent.getId()).getPendingDependencies(), is(1));
+        Workflow claimed = store.claim(NOW, LEASE);
+        assertThat(claimed.getId(), is(child.getId()));
+        store.complete(claimed, NOW);
+        assertThat(store.claim(NOW, LEASE).getId(), is(parent.getId()));
+    }
+
+    @Test
+    public void activateShouldBeIgnoredOnceTheMonitorHasTimedOutTheWorkflow() {
+        create(WAITING, NOW);
+        Workflow claimed = store.claim(NOW, LEASE);
+
+        assertThat(store.sweep(NOW + LEASE_MILLIS).get(FIRST_NODE), is(1));
+        claimed.setNode(NEXT_NODE);
+
+        assertThat(store.activate(claimed, FIRST_NODE, NOW + LEASE_MILLIS + 1), is(false));
+        Workflow stored = store.get(claimed.getId());
+        assertThat(stored.getNode(), is(FIRST_NODE));
+        assertThat(stored.getStatus(), is(WAITING));
+        assertThat(stored.getRetry(), is(1));
+    }
+
+    @Test
+    public void sweepShouldOnlyRecoverExpiredLeases() {
+        create(WAITING, NOW);
+        Workflow other = new Workflow(TEST_WORKFLOW, NEXT_NODE, WAITING, NOW, null);
+        store.create(other);
+        store.claim(new ObjectId(), NOW, 2, LEASE);
+
+        assertThat(store.getNextLeaseExpiry(), is(NOW + LEASE_MILLIS));
+        assertThat(store.sweep(NOW + LEASE_MILLIS), is(singletonMap(FIRST_NODE, 1)));
+        assertThat(store.get(other.getId()).getStatus(), is(PROCESSING));
+        assertThat(store.getNextLeaseExpiry(), is(NOW + 2 * LEASE_MILLIS));
+        assertThat(store.sweep(NOW + 2 * LEASE_MILLIS), is(singletonMap(NEXT_NODE, 1)));
+        assertThat(store.getNextLeaseExpiry(), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void activateShouldMoveWorkflowToItsNextNode() {
+        create(WAITING, NOW);
+        Workflow claimed = store.claim(NOW, LEASE);
+        claimed.setNode(NEXT_NODE);
+
+        assertThat(store.activate(claimed, FIRST_NODE, NOW + 1), is(true));
+        Workflow stored = store.get(claimed.getId());
+        assertThat(stored.getNode(), is(NEXT_NODE));
+        assertThat(stored.getStatus(), is(WAITING));
+        assertThat(stored.getUpdated(), is(NOW + 1));
+    }
+
+    @Test
+    public void activateOnHoldShouldOnlyActivateInitialisingWorkflows() {
+        Workflow onHold = create(INITIALISING, NOW);
+        Workflow waiting = create(WAITING, NOW);
+
+        assertThat(store.activateOnHold(asList(onHold.getId(), waiting.getId()), NOW), is(1));
+        assertThat(store.get(onHold.getId()).getStatus(), is(WAITING));
+    }
+
+    @Test
+    public void removeShouldDropWorkflow() {
+        Workflow workflow = create(WAITING, NOW);
+
+        store.remove(workflow);
+
+        assertThat(store.size(), is(0));
+        assertThat(store.claim(NOW, LEASE), nullValue());
+    }
+
+    @Test
+    public void saveLogsShouldKeepEveryRecord() {
+        Workflow workflow = create(WAITING, NOW);
+
+        store.saveLogs(asList(new WorkflowError(workflow, "classification", "message"), new WorkflowError(workflow, "classification", "message")));
+
+        assertThat(store.getLogs().size(), is(2));
+        assertThat(store.getLogs().get(0), instanceOf(WorkflowError.class));
+    }
+
+    @Test
+    public void getLoadShouldCountWorkflowsByState() {
+        Workflow onHold = create(INITIALISING, NOW);
+        create(WAITING, NOW);
+        create(WAITING, NOW + 10);
+        Workflow blocked = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        blocked.getDependencies().add(onHold.getId());
+        store.create(blocked);
+        create(PROCESSING, NOW);
+        createWithPriority(NOW, 2);
+        createWithPriority(NOW + 10, 2);
+
+        WorkflowLoad load = store.getLoad(NOW);
+
+        assertThat(load.getInitialising(), is(1l));
+        assertThat(load.getWaitingNoDependencies(), is(2l));
+        assertThat(load.getWaitingWithDependencies(), is(1l));
+        assertThat(load.getWaitingFutureStart(), is(2l));
+        assertThat(load.getWaitingByPriority().get(0), is(1l));
+        assertThat(load.getWaitingByPriority().get(2), is(1l));
+        assertThat(load.getProcessing(), is(1l));
+    }
+
+    @Test
+    public void getCountsShouldFollowWorkflowsBetweenStates() {
+        Workflow onHold = create(INITIALISING, NOW);
+        create(WAITING, NOW);
+        create(WAITING, NOW + 10);
+
+        store.activateOnHold(asList(onHold.getId()), NOW);
+        store.complete(store.claim(NOW, LEASE), NOW);
+        store.claim(NOW, LEASE);
+
+        WorkflowLoad counts = store.getCounts(NOW);
+
+        assertThat(counts.getInitialising(), is(0l));
+        assertThat(counts.getWaiting(), is(1l));
+        assertThat(counts.getProcessing(), is(1l));
+        assertThat(counts.getByName().get(TEST_WORKFLOW), is(2l));
+    }
+
+    @Test
+    public void acquireLeaseShouldOnlyPassToAnotherOwnerOnceExpiredOrReleased() {
+        assertThat(store.acquireLease(LEASE_NAME, "first", NOW, NOW + LEASE_MILLIS), is(true));
+        assertThat(store.acquireLease(LEASE_NAME, "second", NOW + 1, NOW + 1 + LEASE_MILLIS), is(false));
+        assertThat(store.acquireLease(LEASE_NAME, "first", NOW + 1, NOW + 1 + LEASE_MILLIS), is(true));
+        assertThat(store.acquireLease(LEASE_NAME, "second", NOW + 1 + LEASE_MILLIS, NOW + 1 + 2 * LEASE_MILLIS), is(true));
+
+        store.releaseLease(LEASE_NAME, "second");
+
+        assertThat(store.acquireLease(LEASE_NAME, "first", NOW + 2, NOW + 2 + LEASE_MILLIS), is(true));
+    }
+
+    @Test
+    public void saveNodeShouldBumpVersion() {
+        assertThat(store.saveNode(new WorkflowNode(FIRST_NODE, NEXT_NODE)), is(1l));
+        assertThat(store.saveNode(new WorkflowNode(NEXT_NODE, null)), is(2l));
+        assertThat(store.getNodeVersion(), is(2l));
+        assertThat(store.getNode(FIRST_NODE).getNext(), is(NEXT_NODE));
+    }
+
+    @Test
+    public void sweepShouldBackOffRetriesAndDeadLetterOnceOutOfAttempts() {
+        WorkflowNode node = new WorkflowNode(FIRST_NODE, null);
+        node.setMaxAttempts(2);
+        node.setRetryBackoff(100);
+        Workflow workflow = create(WAITING, NOW);
+        store.claim(NOW, LEASE);
+
+        assertThat(store.sweep(NOW + LEASE_MILLIS, name -> node), is(singletonMap(FIRST_NODE, 1)));
+        Workflow retried = store.get(workflow.getId());
+        assertThat(retried.getRetry(), is(1));
+        assertThat(retried.getStart(), both(greaterThanOrEqualTo(NOW + LEASE_MILLIS + 50)).and(lessThanOrEqualTo(NOW + LEASE_MILLIS + 100)));
+        assertThat(store.claim(NOW + LEASE_MILLIS, LEASE), nullValue());
+        assertThat(store.getCounts(NOW).getRetrying(), is(1l));
+
+        store.claim(NOW + LEASE_MILLIS + 100, LEASE);
+        assertThat(store.sweep(NOW + 2 * LEASE_MILLIS + 100, name -> node), is(singletonMap(FIRST_NODE, 1)));
+
+        assertThat(store.get(workflow.getId()), nullValue());
+        assertThat(store.getDeadLetters(10).get(0).getId(), is(workflow.getId()));
+        assertThat(store.getDeadLetters(10).get(0).getAttempts(), is(2));
+        assertThat(store.getCounts(NOW).getRetrying(), is(0l));
+        assertThat(store.getCounts(NOW).getDeadLettered(), is(1l));
+    }
+
+    @Test
+    public void sweepShouldRetryAtOnceOnANodeWithoutARetryPolicy() {
+        WorkflowStoreCases.sweepShouldRetryAtOnceOnANodeWithoutARetryPolicy(store, NOW);
+    }
+
+    @Test
+    public void countsShouldFollowRetriesAndDeadLetters() {
+        WorkflowStoreCases.countsShouldFollowRetriesAndDeadLetters(store, NOW);
+    }
+
+    @Test
+    public void getRetryDelayShouldDoubleUpToTheMaximumWithJitter() {
+        WorkflowNode node = new WorkflowNode(FIRST_NODE, null);
+        node.setRetryBackoff(100);
+        node.setRetryBackoffMax(1000);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(node.getRetryDelay(1), both(greaterThanOrEqualTo(50l)).and(lessThanOrEqualTo(100l)));
+            assertThat(node.getRetryDelay(3), both(greaterThanOrEqualTo(200l)).and(lessThanOrEqualTo(400l)));
+            assertThat(node.getRetryDelay(30), both(greaterThanOrEqualTo(500l)).and(lessThanOrEqualTo(1000l)));
+        }
+    }
+
+    @Test
+    public void claimShouldSkipSaturatedNodesAndLeaveThemWaiting() {
+        Workflow skipped = create(WAITING, NOW - 20);
+        Workflow other = new Workflow(TEST_WORKFLOW, NEXT_NODE, WAITING, NOW - 10, null);
+        store.create(other);
+
+        List<Workflow> claimed = store.claim(new ObjectId(), NOW, 10, LEASE, singleton(FIRST_NODE));
+
+        assertThat(claimed.size(), is(1));
+        assertThat(claimed.get(0).getId(), is(other.getId()));
+        assertThat(store.get(skipped.getId()).getStatus(), is(WAITING));
+        assertThat(store.claim(NOW, LEASE).getId(), is(skipped.getId()));
+    }
+
+    @Test
+    public void claimShouldOnlyTakeWorkflowsInTheGivenPartitions() {
+        store = new InMemoryWorkflowStore(AGING, 4);
+        Workflow first = createWithAffinity("order-1", NOW - 20);
+        Workflow related = createWithAffinity("order-1", NOW - 10);
+        Workflow other = null;
+        for (int i = 2; other == null || other.getPartition() == first.getPartition(); i++) {
+            other = createWithAffinity("order-" + i, NOW - 30);
+        }
+
+        assertThat(related.getPartition(), is(first.getPartition()));
+        assertThat(store.claim(new ObjectId(), NOW, 10, LEASE, emptySet(), emptySet()), empty());
+
+        List<Workflow> claimed = store.claim(new ObjectId(), NOW, 10, LEASE, emptySet(), singleton(first.getPartition()));
+
+        assertThat(claimed.size(), is(2));
+        assertThat(claimed.get(0).getId(), is(first.getId()));
+        assertThat(claimed.get(1).getId(), is(related.getId()));
+        assertThat(store.get(other.getId()).getStatus(), is(WAITING));
+        assertThat(store.claim(NOW, LEASE).getId(), is(other.getId()));
+    }
+
+    @Test
+    public void unclaimShouldHandTheWorkflowBackWithoutARetry() {
+        create(WAITING, NOW);
+        Workflow claimed = store.claim(NOW, LEASE);
+
+        assertThat(store.unclaim(claimed, NOW + 1), is(true));
+        assertThat(store.get(claimed.getId()).getStatus(), is(WAITING));
+        assertThat(store.get(claimed.getId()).getRetry(), is(0));
+        assertThat(store.unclaim(claimed, NOW + 1), is(false));
+        assertThat(store.claim(NOW + 1, LEASE).getId(), is(claimed.getId()));
+    }
+
+    @Test
+    public void acquireThrottleShouldHoldTheNodeToItsSlotsAndRate() {
+        WorkflowNode node = new WorkflowNode(FIRST_NODE, null);
+        node.setMaxConcurrency(2);
+        node.setRateLimit(1);
+        node.setRateBurst(2);
+        List<WorkflowNode> nodes = singletonList(node);
+
+        assertThat(store.acquireThrottle(node, NOW), is(true));
+        assertThat(store.acquireThrottle(node, NOW), is(true));
+        assertThat(store.getSaturated(nodes, NOW), contains(FIRST_NODE));
+
+        // a free slot is no use until a token has refilled
+        store.releaseThrottle(FIRST_NODE, 1);
+        assertThat(store.acquireThrottle(node, NOW + 500), is(false));
+        assertThat(store.acquireThrottle(node, NOW + 1000), is(true));
+        assertThat(store.acquireThrottle(node, NOW + 5000), is(false));
+
+        // slots held by workflows no longer processing are given back by the reconcile
+        assertThat(store.reconcileThrottles(nodes), is(singletonMap(FIRST_NODE, 0)));
+        assertThat(store.getSaturated(nodes, NOW + 5000), is(empty()));
+    }
+
+    private Workflow branch(Workflow parent, String key) {
+        Workflow branch = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, NOW, null);
+        branch.setParent(parent.getId());
+        branch.setBranch(key);
+        store.create(branch);
+        return branch;
+    }
+
+    private Workflow createWithAffinity(String affinity, long start) {
+        Workflow workflow = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, start, null);
+        workflow.setAffinity(affinity);
+        store.create(workflow);
+        return workflow;
+    }
+
+    private Workflow createWithPriority(long start, int priority) {
+        Workflow workflow = new Workflow(TEST_WORKFLOW, FIRST_NODE, WAITING, start, null);
+        workflow.setPriority(priority);
+        store.create(workflow);
+        return workflow;
+    }
+
+    private Workflow create(WorkflowStatus status, long start) {
+        Workflow workflow = new Workflow(TEST_WORKFLOW, FIRST_NODE, status, start, null);
+        store.create(workflow);
+        return workflow;
+    }
+}
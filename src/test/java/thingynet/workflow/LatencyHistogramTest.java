@@ -0,0 +1,63 @@
+/*
+ * LatencyHistogramTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsShouldHoldValuesToWithinThreePercent() {
+        for (long value = 0; value < 1000000; value += 7) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            assertThat(highest, greaterThanOrEqualTo(value));
+            assertThat(highest - value, lessThanOrEqualTo(value / 32));
+        }
+    }
+
+    @Test
+    public void getValueAtPercentileShouldFindRankedValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+
+        assertThat(histogram.getCount(), is(10000l));
+        assertThat(histogram.getValueAtPercentile(50), both(greaterThanOrEqualTo(5000l)).and(lessThanOrEqualTo(5000l * 33 / 32)));
+        assertThat(histogram.getValueAtPercentile(99.9), both(greaterThanOrEqualTo(9990l)).and(lessThanOrEqualTo(9990l * 33 / 32)));
+        assertThat(histogram.getMax(), both(greaterThanOrEqualTo(10000l)).and(lessThanOrEqualTo(10000l * 33 / 32)));
+    }
+
+    @Test
+    public void sinceShouldOnlyCountGrowth() {
+        LatencyHistogram earlier = new LatencyHistogram();
+        earlier.record(10);
+        LatencyHistogram later = new LatencyHistogram();
+        later.add(earlier);
+        later.record(20);
+
+        LatencyHistogram interval = later.since(earlier);
+
+        assertThat(interval.getCount(), is(1l));
+        assertThat(interval.getMax(), is(20l));
+    }
+}
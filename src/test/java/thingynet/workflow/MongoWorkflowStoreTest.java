@@ -0,0 +1,210 @@
+/*
+ * MongoWorkflowStoreTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import com.mongodb.MongoException;
+import org.jongo.MongoCollection;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import thingynet.Application;
+import thingynet.value.IntegerValue;
+import thingynet.value.MapValue;
+import thingynet.value.StringValue;
+import thingynet.workflow.commands.WorkflowLoad;
+
+import java.util.HashMap;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static thingynet.workflow.MongoWorkflowStore.NODE_VERSION;
+import static thingynet.workflow.WorkflowStatus.PROCESSING;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Checks that need the Mongo store itself, mostly writes made straight to its collections behind the
+ * store's back.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+public class MongoWorkflowStoreTest {
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
+    private static final String NEXT_WORKFLOW_COMMAND = "nextWorkflowCommand";
+    private static final String CACHED_NODE = "cachedNode";
+    private static final String OTHER_NODE = "otherNode";
+    private static final String RETRYING_NODE = "retryingNode";
+
+    @Autowired
+    private MongoCollection workflowCollection;
+
+    @Autowired
+    private MongoCollection workflowNodeCollection;
+
+    @Autowired
+    private MongoCollection workflowNodeVersionCollection;
+
+    @Autowired
+    private MongoCollection workflowDeadLetterCollection;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowService workflowService;
+
+    @Autowired
+    private WorkflowNodeCache workflowNodeCache;
+
+    @Before
+    public void before() {
+        workflowCollection.remove();
+        workflowNodeCollection.remove();
+        workflowNodeVersionCollection.remove();
+        workflowDeadLetterCollection.remove();
+        workflowStore.reconcileCounts();
+        workflowStore.reconcileCounts();
+
+        workflowNodeCollection.save(new WorkflowNode(FIRST_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND));
+        workflowNodeCollection.save(new WorkflowNode(NEXT_WORKFLOW_COMMAND, null));
+        workflowNodeCache.load();
+    }
+
+    @Test
+    public void activateShouldOnlyWriteContextKeysChangedSinceClaim() {
+        MapValue context = new MapValue(new HashMap<>());
+        context.getValue().put("changed", new IntegerValue(1));
+        context.getValue().put("removed", new IntegerValue(2));
+        context.getValue().put("untouched", new IntegerValue(3));
+        workflowService.createReadyNow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, context);
+        Workflow claimed = workflowService.getWaiting();
+
+        // written behind the worker's back, so a full rewrite of the context would lose it
+        workflowCollection.update("{_id:#}", claimed.getId()).with("{$set:{'context.value.untouched':#}}", new IntegerValue(4));
+        MapValue claimedContext = (MapValue) claimed.getContext();
+        claimedContext.getValue().put("changed", new IntegerValue(5));
+        claimedContext.getValue().remove("removed");
+        workflowService.process(claimed);
+
+        MapValue stored = (MapValue) workflowStore.get(claimed.getId()).getContext();
+        assertThat(((IntegerValue) stored.getValue().get("changed")).getValue(), is(5));
+        assertThat(stored.getValue().containsKey("removed"), is(false));
+        assertThat(((IntegerValue) stored.getValue().get("untouched")).getValue(), is(4));
+    }
+
+    @Test
+    public void reconcileCountsShouldCorrectWritesThatBypassedTheStore() {
+        workflowService.createWorkflow(TEST_WORKFLOW, null, currentTimeMillis(), null, WAITING);
+        workflowCollection.remove();
+
+        assertThat(workflowStore.getCounts(currentTimeMillis()).getWaiting(), is(1l));
+        assertThat(workflowStore.reconcileCounts(), is(0l));
+        assertThat(workflowStore.reconcileCounts(), is(2l));
+
+        WorkflowLoad counts = workflowStore.getCounts(currentTimeMillis());
+        assertThat(counts.getWaiting(), is(0l));
+        assertThat(counts.getByName().isEmpty(), is(true));
+        assertThat(workflowStore.reconcileCounts(), is(0l));
+    }
+
+    @Test
+    public void reconcileCountsShouldCorrectRetryingAndDeadLetteredCounts() {
+        WorkflowNode node = new WorkflowNode(RETRYING_NODE, null);
+        node.setMaxAttempts(1);
+        long now = currentTimeMillis();
+        workflowStore.create(new Workflow(TEST_WORKFLOW, RETRYING_NODE, WAITING, now, null));
+        workflowStore.claim(now, name -> 0);
+        workflowStore.sweep(now, name -> node);
+        Workflow waiting = workflowService.createWorkflow(TEST_WORKFLOW, null, now, null, WAITING);
+
+        // neither write goes through the store, so the kept counts miss both
+        workflowDeadLetterCollection.remove();
+        workflowCollection.update("{_id:#}", waiting.getId()).with("{$set:{retry:3}}");
+        WorkflowLoad counts = workflowStore.getCounts(currentTimeMillis());
+        assertThat(counts.getDeadLettered(), is(1l));
+        assertThat(counts.getRetrying(), is(0l));
+
+        assertThat(workflowStore.reconcileCounts(), is(0l));
+        assertThat(workflowStore.reconcileCounts(), is(2l));
+        counts = workflowStore.getCounts(currentTimeMillis());
+        assertThat(counts.getDeadLettered(), is(0l));
+        assertThat(counts.getRetrying(), is(1l));
+    }
+
+    @Test
+    public void sweepShouldRetryAtOnceOnANodeWithoutARetryPolicy() {
+        WorkflowStoreCases.sweepShouldRetryAtOnceOnANodeWithoutARetryPolicy(workflowStore, currentTimeMillis());
+    }
+
+    @Test
+    public void countsShouldFollowRetriesAndDeadLetters() {
+        WorkflowStoreCases.countsShouldFollowRetriesAndDeadLetters(workflowStore, currentTimeMillis());
+    }
+
+    @Test
+    public void sweepShouldKeepAnExhaustedWorkflowWhenItsDeadLetterCannotBeWritten() {
+        WorkflowNode node = new WorkflowNode(RETRYING_NODE, null);
+        node.setMaxAttempts(1);
+        long now = currentTimeMillis();
+        Workflow workflow = new Workflow(TEST_WORKFLOW, RETRYING_NODE, WAITING, now - 100, new StringValue("context"));
+        workflowStore.create(workflow);
+        workflowStore.claim(now - 100, name -> 50);
+
+        MongoCollection failing = mock(MongoCollection.class);
+        given(failing.save(any())).willThrow(new MongoException("dead letters unavailable"));
+        setField(workflowStore, "workflowDeadLetterCollection", failing);
+        try {
+            workflowStore.sweep(now, name -> node);
+            fail("the failed dead letter write should reach the monitor");
+        } catch (MongoException e) {
+            assertThat(workflowStore.get(workflow.getId()).getStatus(), is(PROCESSING));
+        } finally {
+            setField(workflowStore, "workflowDeadLetterCollection", workflowDeadLetterCollection);
+        }
+
+        assertThat(workflowStore.sweep(now, name -> node), is(singletonMap(RETRYING_NODE, 1)));
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+        assertThat(workflowStore.getDeadLetters(1).get(0).getId(), is(workflow.getId()));
+        assertThat(workflowStore.getCounts(currentTimeMillis()).getProcessing(), is(0l));
+    }
+
+    @Test
+    public void refreshShouldOnlyReloadNodesEditedInTheCollectionOnceTheVersionMoves() {
+        workflowNodeCache.saveNode(new WorkflowNode(CACHED_NODE, NEXT_WORKFLOW_COMMAND));
+
+        workflowNodeCollection.save(new WorkflowNode(CACHED_NODE, OTHER_NODE));
+        workflowNodeCache.refresh();
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(NEXT_WORKFLOW_COMMAND));
+
+        workflowNodeVersionCollection.update("{_id:#}", NODE_VERSION).with("{$inc:{version:1}}");
+        workflowNodeCache.refresh();
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(OTHER_NODE));
+    }
+}
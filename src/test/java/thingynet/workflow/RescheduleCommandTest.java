@@ -21,15 +21,16 @@ package thingynet.workflow;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import thingynet.Application;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = Application.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
 public class RescheduleCommandTest {
     private static final long START = 1l;
     private static final long EXPECTED_DELAY = 1000l;
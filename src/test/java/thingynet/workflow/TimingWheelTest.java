@@ -0,0 +1,107 @@
+/*
+ * TimingWheelTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TimingWheelTest {
+    private static final long TICK = 10;
+    private static final long NOW = 1000;
+
+    @Test
+    public void itemsShouldFireOnTheFirstTickAtOrAfterTheyAreDue() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 3, NOW);
+        wheel.add("soon", NOW + 25);
+        wheel.add("later", NOW + 40);
+        wheel.add("cascaded", NOW + 500);
+        List<String> fired = new ArrayList<>();
+
+        assertThat(wheel.advance(NOW + 29, fired::add), is(0));
+        assertThat(wheel.advance(NOW + 30, fired::add), is(1));
+        assertThat(wheel.advance(NOW + 40, fired::add), is(1));
+        assertThat(wheel.advance(NOW + 499, fired::add), is(0));
+        assertThat(wheel.advance(NOW + 500, fired::add), is(1));
+
+        assertThat(fired, contains("soon", "later", "cascaded"));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void addShouldRejectItemsBeyondTheHorizon() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 3, NOW);
+
+        assertThat(wheel.getHorizon(), is(63 * TICK));
+        assertThat(wheel.add("edge", NOW + wheel.getHorizon()), is(true));
+        assertThat(wheel.add("beyond", NOW + wheel.getHorizon() + TICK), is(false));
+        assertThat(wheel.size(), is(1));
+    }
+
+    @Test
+    public void addShouldFireOverdueItemsOnTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 3, NOW);
+        wheel.add("overdue", NOW - 100);
+        List<String> fired = new ArrayList<>();
+
+        assertThat(wheel.advance(NOW + TICK, fired::add), is(1));
+        assertThat(fired, contains("overdue"));
+    }
+
+    @Test
+    public void advanceShouldFireEverythingDueAcrossAGapInStartOrder() {
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK, 8, 3, NOW);
+        Random random = new Random(42);
+        List<Long> dues = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long due = NOW + TICK * (1 + random.nextInt(500));
+            dues.add(due);
+            wheel.add(due, due);
+        }
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advance(NOW + 250 * TICK, fired::add);
+        wheel.advance(NOW + 1000 * TICK, fired::add);
+
+        dues.sort(null);
+        assertThat(fired, is(dues));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void clearShouldDropEveryItem() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 3, NOW);
+        for (String item : asList("a", "b", "c")) {
+            wheel.add(item, NOW + 300);
+        }
+
+        wheel.clear();
+
+        assertThat(wheel.size(), is(0));
+        assertThat(wheel.advance(NOW + 600, item -> {
+            throw new AssertionError(item);
+        }), is(0));
+    }
+}
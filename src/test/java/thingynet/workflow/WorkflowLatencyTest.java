@@ -18,53 +18,92 @@
 
 package thingynet.workflow;
 
-import org.jongo.MongoCollection;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import thingynet.Application;
-import thingynet.workflow.commands.WorkflowLatency;
 import thingynet.workflow.commands.WorkflowLatencyCommand;
+import thingynet.workflow.commands.WorkflowLatencyInterval;
 
 import static java.lang.System.currentTimeMillis;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.is;
-import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = Application.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
 public class WorkflowLatencyTest {
     private static final long EXPECTED_LATENCY = 1000l;
+    private static final String TEST_WORKFLOW = "Latency Test";
+    private static final String TEST_NODE = "workflowLatencyCommand";
 
     @Autowired
-    private MongoCollection workflowLogCollection;
+    private WorkflowStore workflowStore;
 
     @Autowired
     private WorkflowLatencyCommand command;
 
+    @Autowired
+    private WorkflowLatencyRecorder workflowLatencyRecorder;
+
     @Before
     public void before() {
-        workflowLogCollection.remove();
+        workflowLatencyRecorder.flush(currentTimeMillis());
+        clear(workflowStore);
     }
 
     @Test
     public void excuteShouldRecordCorrectLatency() throws WorkflowException {
-        long count = workflowLogCollection.count();
-        assertThat(count, is(0l));
-
-        Workflow workflow = new Workflow(null, null, null, currentTimeMillis(), null);
+        long start = currentTimeMillis();
+        Workflow workflow = new Workflow(TEST_WORKFLOW, TEST_NODE, null, start, null);
         workflow.setUpdated(workflow.getStart() + EXPECTED_LATENCY);
 
         command.execute(workflow);
+        workflowLatencyRecorder.flush(currentTimeMillis() + 1);
 
-        Iterable<WorkflowLatency> loads = workflowLogCollection.find().as(WorkflowLatency.class);
-        assertThat(loads, notNullValue());
-        WorkflowLatency workflowLatency = loads.iterator().next();
-        assertThat(workflowLatency, notNullValue());
-        assertThat(workflowLatency.getLatency(), is(EXPECTED_LATENCY));
+        WorkflowLatencyInterval latency = workflowLatencyRecorder.getLatency(TEST_WORKFLOW, TEST_NODE, start, currentTimeMillis() + 1);
+        assertThat(latency.getCount(), is(1l));
+        assertThat(latency.getP50(), both(greaterThanOrEqualTo(EXPECTED_LATENCY)).and(lessThan(EXPECTED_LATENCY * 33 / 32)));
+        assertThat(latency.getMax(), is(latency.getP50()));
     }
 
+    @Test
+    public void getLatencyShouldMergeIntervalsInRange() {
+        long start = currentTimeMillis();
+        for (int i = 1; i <= 90; i++) {
+            workflowLatencyRecorder.record(TEST_WORKFLOW, TEST_NODE, 10);
+        }
+        workflowLatencyRecorder.flush(start + 1);
+        for (int i = 1; i <= 10; i++) {
+            workflowLatencyRecorder.record(TEST_WORKFLOW, TEST_NODE, 50);
+        }
+        workflowLatencyRecorder.flush(start + 2);
+
+        assertThat(workflowStore.getLatencies(TEST_WORKFLOW, TEST_NODE, start - 1, start + 2), hasSize(2));
+        WorkflowLatencyInterval latency = workflowLatencyRecorder.getLatency(TEST_WORKFLOW, TEST_NODE, start - 1, start + 2);
+        assertThat(latency.getCount(), is(100l));
+        assertThat(latency.getP90(), is(10l));
+        assertThat(latency.getP99(), is(50l));
+
+        WorkflowLatencyInterval last = workflowLatencyRecorder.getLatency(TEST_WORKFLOW, TEST_NODE, start + 1, start + 2);
+        assertThat(last.getCount(), is(10l));
+    }
+
+    @Test
+    public void recordShouldCountLatenciesFromThreadsThatHaveFinished() throws InterruptedException {
+        long start = currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            Thread thread = new Thread(() -> workflowLatencyRecorder.record(TEST_WORKFLOW, TEST_NODE, 10));
+            thread.start();
+            thread.join();
+        }
+        workflowLatencyRecorder.flush(start + 1);
+
+        WorkflowLatencyInterval latency = workflowLatencyRecorder.getLatency(TEST_WORKFLOW, TEST_NODE, start - 1, start + 1);
+        assertThat(latency.getCount(), is(20l));
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * WorkflowLogWriterTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowLogOverflow.*;
+import static thingynet.workflow.WorkflowLogWriter.DROPPED_GAUGE;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+public class WorkflowLogWriterTest {
+    private static final int BATCH = 5;
+    private static final long FLUSH_MILLIS = 20;
+
+    private final Map<String, Double> gauges = new HashMap<>();
+    private int bulkWrites;
+    private InMemoryWorkflowStore store;
+
+    @Before
+    public void before() {
+        store = new InMemoryWorkflowStore(0) {
+            @Override
+            public synchronized void saveLogs(List<WorkflowLog> records) {
+                bulkWrites++;
+                super.saveLogs(records);
+            }
+        };
+    }
+
+    @Test
+    public void writerShouldSaveAFullBatchInOneBulkWrite() throws InterruptedException {
+        WorkflowLogWriter writer = writer(true, 100, BLOCK, 1);
+        writer.start();
+        for (int i = 0; i < BATCH; i++) {
+            writer.write(record(i));
+        }
+        writer.flush();
+        writer.stop();
+
+        assertThat(store.getLogs().size(), is(BATCH));
+        assertThat(bulkWrites, lessThan(BATCH));
+    }
+
+    @Test
+    public void writerShouldSaveAPartialBatchOnceTheFlushIntervalHasPassed() throws InterruptedException {
+        WorkflowLogWriter writer = writer(true, 100, BLOCK, 1);
+        writer.start();
+        writer.write(record(0));
+
+        Thread.sleep(10 * FLUSH_MILLIS);
+
+        assertThat(store.getLogs().size(), is(1));
+        writer.stop();
+    }
+
+    @Test
+    public void dropOldestShouldKeepTheNewestRecords() throws InterruptedException {
+        WorkflowLogWriter writer = writer(true, 2, DROP_OLDEST, 1);
+        for (int i = 0; i < 3; i++) {
+            writer.write(record(i));
+        }
+        writer.flush();
+
+        assertThat(writer.getDropped(), is(1l));
+        assertThat(gauges.get(DROPPED_GAUGE), is(1d));
+        assertThat(store.getLogs().get(0).getName(), is("1"));
+        assertThat(store.getLogs().get(1).getName(), is("2"));
+    }
+
+    @Test
+    public void sampleShouldKeepOneInEverySampleOverflowingRecords() throws InterruptedException {
+        WorkflowLogWriter writer = writer(true, 1, SAMPLE, 2);
+        for (int i = 0; i < 5; i++) {
+            writer.write(record(i));
+        }
+        writer.flush();
+
+        assertThat(writer.getDropped(), is(4l));
+        assertThat(store.getLogs().size(), is(1));
+        assertThat(store.getLogs().get(0).getName(), is("4"));
+    }
+
+    @Test
+    public void syncWriterShouldSaveOnTheCallingThread() {
+        WorkflowLogWriter writer = writer(false, 1, BLOCK, 1);
+        writer.write(record(0));
+
+        assertThat(store.getLogs().size(), is(1));
+        assertThat(bulkWrites, is(1));
+    }
+
+    private WorkflowLogWriter writer(boolean async, int capacity, WorkflowLogOverflow overflow, int sample) {
+        return new WorkflowLogWriter(store, gauges::put, async, capacity, BATCH, FLUSH_MILLIS, overflow, sample);
+    }
+
+    private static WorkflowLog record(int i) {
+        return new WorkflowError(new Workflow(String.valueOf(i), null, WAITING, 0, null), "classification", "message");
+    }
+}
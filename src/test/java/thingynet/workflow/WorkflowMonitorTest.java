@@ -18,31 +18,44 @@
 
 package thingynet.workflow;
 
-import org.jongo.MongoCollection;
+import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.actuate.metrics.repository.MetricRepository;
+import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import thingynet.Application;
+import thingynet.value.StringValue;
 
 import static java.lang.System.currentTimeMillis;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
+import static thingynet.workflow.WorkflowMonitor.MONITOR_LEASE;
 import static thingynet.workflow.WorkflowStatus.*;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = Application.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
 public class WorkflowMonitorTest {
 
     private static final String TEST_WORKFLOW = "Test Workflow";
     private static final String SHORT_TIMEOUT_WORKFLOW_COMMAND = "shortTimeoutWorkflowCommand";
     private static final String LONG_TIMEOUT_WORKFLOW_COMMAND = "longTimeoutWorkflowCommand";
+    private static final String OTHER_MONITOR = "otherMonitor";
+    private static final String RETRYING_NODE = "retryingNode";
 
     @Autowired
-    private MongoCollection workflowCollection;
+    private WorkflowNodeCache workflowNodeCache;
+
+    @Autowired
+    private WorkflowStore workflowStore;
 
     @Autowired
     private WorkflowService workflowService;
@@ -50,22 +63,35 @@ public class WorkflowMonitorTest {
     @Autowired
     private WorkflowMonitor workflowMonitor;
 
+    @Autowired
+    private MetricRepository metricRepository;
+
+    @Value("${workflow.monitor.sleep}")
+    private long workflowMonitorSleep;
+
+    @Value("${workflow.monitor.sleep.max}")
+    private long workflowMonitorSleepMax;
+
+    @Value("${workflow.monitor.lease}")
+    private long workflowMonitorLease;
+
     private long start;
 
     @Before
     public void before() {
-        workflowCollection.remove();
+        workflowMonitor.resign();
+        clear(workflowStore);
 
         start = currentTimeMillis();
     }
 
     @Test
-    public void timeoutShouldUpdateWorkflowWhenUpdatedLessThanOrEqualToNowMinusTimeout() throws InterruptedException {
+    public void sweepShouldUpdateWorkflowWhenUpdatedLessThanOrEqualToNowMinusTimeout() throws InterruptedException {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
         Thread.sleep(10l);
-        workflowMonitor.timeout(SHORT_TIMEOUT_WORKFLOW_COMMAND);
+        workflowMonitor.sweep();
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(WAITING));
         assertThat(processed.getNode(), is(SHORT_TIMEOUT_WORKFLOW_COMMAND));
@@ -74,12 +100,53 @@ public class WorkflowMonitorTest {
     }
 
     @Test
-    public void timeoutShouldNotUpdateWorkflowWhenUpdatedGreaterThanNowMinusTimeout() {
+    public void sweepShouldBackOffRetriesAndDeadLetterWorkflowsOutOfAttempts() {
+        WorkflowNode node = new WorkflowNode(RETRYING_NODE, null);
+        node.setMaxAttempts(2);
+        node.setRetryBackoff(10000);
+        workflowNodeCache.saveNode(node);
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, RETRYING_NODE, start, new StringValue("context"), PROCESSING);
+        expire(workflow.getId());
+
+        assertThat(workflowMonitor.sweep(), is(1));
+        Workflow retried = workflowStore.get(workflow.getId());
+        assertThat(retried.getStatus(), is(WAITING));
+        assertThat(retried.getRetry(), is(1));
+        assertThat(retried.getStart(), greaterThanOrEqualTo(start + 5000));
+
+        // claimed again and timed out again, with no attempts left
+        expire(workflow.getId());
+        assertThat(workflowMonitor.sweep(), is(1));
+
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+        WorkflowDeadLetter deadLetter = workflowStore.getDeadLetters(1).get(0);
+        assertThat(deadLetter.getId(), is(workflow.getId()));
+        assertThat(deadLetter.getAttempts(), is(2));
+        assertThat(((StringValue) deadLetter.getContext()).getValue(), is("context"));
+        assertThat(workflowStore.getCounts(currentTimeMillis()).getDeadLettered(), is(1l));
+    }
+
+    @Test
+    public void sweepShouldCountTimeoutsByNode() throws InterruptedException {
+        String timeouts = "counter." + WorkflowMetrics.timeout(SHORT_TIMEOUT_WORKFLOW_COMMAND);
+        Metric<?> before = metricRepository.findOne(timeouts);
+        workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
+        workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
+        Thread.sleep(10l);
+
+        assertThat(workflowMonitor.sweep(), is(2));
+
+        long counted = metricRepository.findOne(timeouts).getValue().longValue();
+        assertThat(counted, is((before != null ? before.getValue().longValue() : 0) + 2));
+    }
+
+    @Test
+    public void sweepShouldNotUpdateWorkflowWhenUpdatedGreaterThanNowMinusTimeout() {
         WorkflowNode workflowNode = new WorkflowNode(LONG_TIMEOUT_WORKFLOW_COMMAND, null);
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, LONG_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
-        workflowMonitor.timeout(LONG_TIMEOUT_WORKFLOW_COMMAND);
+        workflowMonitor.sweep();
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(PROCESSING));
         assertThat(processed.getNode(), is(workflowNode.getName()));
@@ -88,12 +155,12 @@ public class WorkflowMonitorTest {
     }
 
     @Test
-    public void timeoutShouldNotUpdateWorkflowWhenStatusIsWaiting() {
+    public void sweepShouldNotUpdateWorkflowWhenStatusIsWaiting() {
         WorkflowNode workflowNode = new WorkflowNode(SHORT_TIMEOUT_WORKFLOW_COMMAND, null);
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, WAITING);
-        workflowMonitor.timeout(SHORT_TIMEOUT_WORKFLOW_COMMAND);
+        workflowMonitor.sweep();
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(WAITING));
         assertThat(processed.getNode(), is(workflowNode.getName()));
@@ -102,16 +169,62 @@ public class WorkflowMonitorTest {
     }
 
     @Test
-    public void timeoutShouldNotUpdateWorkflowWhenStatusIsInitialising() {
+    public void sweepShouldNotUpdateWorkflowWhenStatusIsInitialising() {
         WorkflowNode workflowNode = new WorkflowNode(SHORT_TIMEOUT_WORKFLOW_COMMAND, null);
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, INITIALISING);
-        workflowMonitor.timeout(SHORT_TIMEOUT_WORKFLOW_COMMAND);
+        workflowMonitor.sweep();
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(INITIALISING));
         assertThat(processed.getNode(), is(workflowNode.getName()));
         assertThat(processed.getUpdated(), is(workflow.getUpdated()));
         assertThat(processed.getRetry(), is(0));
     }
+
+    @Test
+    public void getSleepShouldBackOffWhenNoLeaseIsDue() {
+        workflowService.createWorkflow(TEST_WORKFLOW, LONG_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
+
+        assertThat(workflowMonitor.getSleep(currentTimeMillis()), is(workflowMonitorSleepMax));
+    }
+
+    @Test
+    public void getSleepShouldShortenWhenALeaseIsDue() {
+        workflowService.createWorkflow(TEST_WORKFLOW, SHORT_TIMEOUT_WORKFLOW_COMMAND, start, null, PROCESSING);
+
+        assertThat(workflowMonitor.getSleep(currentTimeMillis()), is(workflowMonitorSleep));
+    }
+
+    @Test
+    public void leadShouldTakeFreeLeaseAndHoldItUntilResigning() {
+        assertThat(workflowMonitor.lead(start), is(true));
+        assertThat(workflowMonitor.isLeader(), is(true));
+        assertThat(workflowStore.acquireLease(MONITOR_LEASE, OTHER_MONITOR, start, start + workflowMonitorLease), is(false));
+
+        workflowMonitor.resign();
+
+        assertThat(workflowMonitor.isLeader(), is(false));
+        assertThat(workflowStore.acquireLease(MONITOR_LEASE, OTHER_MONITOR, start, start + workflowMonitorLease), is(true));
+    }
+
+    @Test
+    public void leadShouldStandByUntilOtherLeaseExpires() {
+        assertThat(workflowStore.acquireLease(MONITOR_LEASE, OTHER_MONITOR, start, start + workflowMonitorLease), is(true));
+
+        assertThat(workflowMonitor.lead(start), is(false));
+        assertThat(workflowMonitor.lead(start + workflowMonitorLease), is(true));
+        assertThat(workflowStore.acquireLease(MONITOR_LEASE, OTHER_MONITOR, start + workflowMonitorLease, start + 2 * workflowMonitorLease), is(false));
+    }
+
+    /**
+     * Puts the workflow back in PROCESSING with a lease that ran out at start, as a worker that died
+     * holding it would leave it.
+     */
+    private void expire(ObjectId id) {
+        Workflow workflow = workflowStore.get(id);
+        workflow.setStatus(PROCESSING);
+        workflow.setLeaseUntil(start);
+        workflowStore.save(workflow);
+    }
 }
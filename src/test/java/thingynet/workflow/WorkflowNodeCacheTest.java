@@ -0,0 +1,90 @@
+/*
+ * WorkflowNodeCacheTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowNodeCacheTest {
+    private static final String CACHED_NODE = "cachedNode";
+    private static final String READ_THROUGH_NODE = "readThroughNode";
+    private static final String NEXT_NODE = "nextNode";
+    private static final String OTHER_NODE = "otherNode";
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowNodeCache workflowNodeCache;
+
+    @Before
+    public void before() {
+        workflowNodeCache.load();
+    }
+
+    @Test
+    public void getNodeShouldReturnNullForNullName() {
+        assertThat(workflowNodeCache.getNode(null), nullValue());
+    }
+
+    @Test
+    public void getNodeShouldReadThroughAndServeLaterLookupsFromCache() {
+        workflowStore.saveNode(new WorkflowNode(READ_THROUGH_NODE, NEXT_NODE));
+
+        assertThat(workflowNodeCache.getNode(READ_THROUGH_NODE).getNext(), is(NEXT_NODE));
+
+        workflowStore.saveNode(new WorkflowNode(READ_THROUGH_NODE, OTHER_NODE));
+
+        assertThat(workflowNodeCache.getNode(READ_THROUGH_NODE).getNext(), is(NEXT_NODE));
+    }
+
+    @Test
+    public void saveNodeShouldUpdateCacheAndStore() {
+        workflowNodeCache.saveNode(new WorkflowNode(CACHED_NODE, NEXT_NODE));
+
+        assertThat(workflowStore.getNode(CACHED_NODE).getNext(), is(NEXT_NODE));
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(NEXT_NODE));
+    }
+
+    @Test
+    public void refreshShouldReloadNodesWhenVersionChanges() {
+        workflowNodeCache.saveNode(new WorkflowNode(CACHED_NODE, NEXT_NODE));
+        workflowNodeCache.refresh();
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(NEXT_NODE));
+
+        // saved by another instance, which moves the version on
+        workflowStore.saveNode(new WorkflowNode(CACHED_NODE, OTHER_NODE));
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(NEXT_NODE));
+
+        workflowNodeCache.refresh();
+        assertThat(workflowNodeCache.getNode(CACHED_NODE).getNext(), is(OTHER_NODE));
+    }
+}
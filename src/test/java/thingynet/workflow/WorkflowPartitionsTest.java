@@ -0,0 +1,128 @@
+/*
+ * WorkflowPartitionsTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static thingynet.workflow.WorkflowPartitions.assign;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowPartitionsTest {
+    private static final int PARTITIONS = 64;
+    private static final List<String> MEMBERS = asList("a", "b", "c");
+    private static final String OTHER = "other";
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowPartitions workflowPartitions;
+
+    @Before
+    public void before() {
+        // partitioning is off by default, and the context is shared with tests that expect it off
+        setField(workflowPartitions, "workflowPartitions", PARTITIONS);
+    }
+
+    @After
+    public void after() {
+        workflowPartitions.leave();
+        workflowStore.leaveMembership(OTHER);
+        setField(workflowPartitions, "workflowPartitions", 0);
+    }
+
+    @Test
+    public void assignShouldGiveEveryPartitionToExactlyOneMember() {
+        Set<Integer> assigned = new HashSet<>();
+        int total = 0;
+        for (String member : MEMBERS) {
+            List<Integer> owned = assign(member, MEMBERS, PARTITIONS);
+            assertThat(owned, is(not(empty())));
+            assigned.addAll(owned);
+            total += owned.size();
+        }
+
+        assertThat(total, is(PARTITIONS));
+        assertThat(assigned.size(), is(PARTITIONS));
+    }
+
+    @Test
+    public void assignShouldOnlyMoveTheLeavingMembersPartitions() {
+        List<Integer> leaving = assign("c", MEMBERS, PARTITIONS);
+        List<String> remaining = asList("a", "b");
+
+        for (String member : remaining) {
+            List<Integer> before = assign(member, MEMBERS, PARTITIONS);
+            List<Integer> after = assign(member, remaining, PARTITIONS);
+            assertThat(after.containsAll(before), is(true));
+            List<Integer> gained = new ArrayList<>(after);
+            gained.removeAll(before);
+            assertThat(leaving.containsAll(gained), is(true));
+        }
+    }
+
+    @Test
+    public void getPartitionsShouldStripeTheOwnedPartitionsAcrossWorkers() {
+        assertThat(workflowPartitions.getPartitions(0, 2), nullValue());
+
+        workflowPartitions.refresh(currentTimeMillis());
+
+        assertThat(workflowPartitions.getPartitions(0, 1).size(), is(PARTITIONS));
+        List<Integer> first = workflowPartitions.getPartitions(0, 3);
+        List<Integer> second = workflowPartitions.getPartitions(1, 3);
+        List<Integer> third = workflowPartitions.getPartitions(2, 3);
+        assertThat(first.size() + second.size() + third.size(), is(PARTITIONS));
+        assertThat(first, everyItem(not(isIn(second))));
+        assertThat(first, everyItem(not(isIn(third))));
+        assertThat(workflowPartitions.getPartitions(PARTITIONS + 1, PARTITIONS * 2), hasSize(1));
+    }
+
+    @Test
+    public void refreshShouldShareThePartitionsWithANewMember() {
+        long now = currentTimeMillis();
+        workflowPartitions.refresh(now);
+        workflowStore.renewMembership(OTHER, now, now + 60000);
+
+        workflowPartitions.refresh(now);
+
+        List<Integer> owned = workflowPartitions.getPartitions(0, 1);
+        assertThat(owned, is(assign(workflowPartitions.getMember(),
+                asList(workflowPartitions.getMember(), OTHER), PARTITIONS)));
+        assertThat(owned.size(), is(both(greaterThan(0)).and(lessThan(PARTITIONS))));
+    }
+}
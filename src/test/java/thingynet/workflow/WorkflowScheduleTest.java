@@ -0,0 +1,67 @@
+/*
+ * WorkflowScheduleTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class WorkflowScheduleTest {
+    private static final String SCHEDULE = "schedule";
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String NODE = "node";
+    private static final long FIRST = 100000;
+
+    @Test
+    public void fixedRateShouldStayOnItsGridHoweverLateItIsAsked() {
+        WorkflowSchedule schedule = WorkflowSchedule.fixedRate(SCHEDULE, TEST_WORKFLOW, NODE, null, 1000).startingAt(FIRST);
+
+        assertThat(schedule.next(FIRST - 1), is(FIRST));
+        assertThat(schedule.next(FIRST), is(FIRST + 1000));
+        assertThat(schedule.next(FIRST + 1), is(FIRST + 1000));
+        assertThat(schedule.next(FIRST + 4321), is(FIRST + 5000));
+    }
+
+    @Test
+    public void cronShouldTickAtMatchingTimesInItsTimeZone() {
+        WorkflowSchedule schedule = WorkflowSchedule.cron(SCHEDULE, TEST_WORKFLOW, NODE, null, "0 */15 * * * *")
+                .withTimeZone("UTC");
+
+        assertThat(schedule.next(0), is(15 * 60 * 1000l));
+        assertThat(schedule.next(15 * 60 * 1000l), is(30 * 60 * 1000l));
+    }
+
+    @Test
+    public void intervalShouldCountFromWhenTheLastTickFired() {
+        WorkflowSchedule schedule = WorkflowSchedule.interval(SCHEDULE, TEST_WORKFLOW, NODE, null, 500);
+
+        assertThat(schedule.next(FIRST + 123), is(FIRST + 623));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validateShouldRejectAScheduleWithNoWayOfTicking() {
+        WorkflowSchedule.fixedRate(SCHEDULE, TEST_WORKFLOW, NODE, null, 0).validate();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validateShouldRejectABadCronExpression() {
+        WorkflowSchedule.cron(SCHEDULE, TEST_WORKFLOW, NODE, null, "every minute").validate();
+    }
+}
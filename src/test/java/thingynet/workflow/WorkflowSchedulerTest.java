@@ -0,0 +1,140 @@
+/*
+ * WorkflowSchedulerTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static java.lang.System.currentTimeMillis;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
+import static thingynet.workflow.WorkflowScheduler.SCHEDULER_LEASE;
+import static thingynet.workflow.WorkflowStatus.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowSchedulerTest {
+
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
+    private static final String OTHER_SCHEDULER = "otherScheduler";
+    private static final long SAFETY_NET = 5000;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowService workflowService;
+
+    @Autowired
+    private WorkflowScheduler workflowScheduler;
+
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Value("${workflow.scheduler.window}")
+    private long workflowSchedulerWindow;
+
+    @Value("${workflow.scheduler.lease}")
+    private long workflowSchedulerLease;
+
+    private long start;
+
+    @Before
+    public void before() {
+        workflowScheduler.resign();
+        clear(workflowStore);
+        workflowScheduler.clear();
+
+        start = currentTimeMillis();
+    }
+
+    @After
+    public void after() throws InterruptedException {
+        workflowScheduler.stop();
+        workflowScheduler.resign();
+    }
+
+    @Test
+    public void refillShouldLoadWorkflowsStartingWithinTheWindow() {
+        // created behind the service's back, so only the refill can find them
+        workflowStore.create(new Workflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, WAITING, start + 100, null));
+        workflowStore.create(new Workflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, INITIALISING, start + 200, null));
+        workflowStore.create(new Workflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, WAITING, start + workflowSchedulerWindow + 1000, null));
+        workflowStore.create(new Workflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, WAITING, start - 100, null));
+
+        assertThat(workflowScheduler.lead(start), is(true));
+        assertThat(workflowScheduler.refill(start), is(2));
+        // the window already loaded is not read again
+        assertThat(workflowScheduler.refill(start), is(0));
+        assertThat(workflowScheduler.getScheduled(), is(2));
+    }
+
+    @Test
+    public void fireShouldSignalWorkersOnceWorkflowsAreDue() {
+        workflowService.createReadyScheduled(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, null, start + 100);
+        workflowService.createReadyScheduled(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, null, start + 100);
+        long generation = workflowSignal.getGeneration();
+
+        assertThat(workflowScheduler.fire(start + 50), is(0));
+        assertThat(workflowSignal.getGeneration(), is(generation));
+        assertThat(workflowScheduler.fire(start + 200), is(2));
+        assertThat(workflowSignal.getGeneration(), greaterThan(generation));
+    }
+
+    @Test
+    public void startShouldRefillAndFireUntilStopped() throws InterruptedException {
+        workflowStore.create(new Workflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, WAITING, start + 300, null));
+        long generation = workflowSignal.getGeneration();
+
+        workflowScheduler.start();
+        long deadline = currentTimeMillis() + SAFETY_NET;
+        while (workflowSignal.getGeneration() == generation && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(workflowSignal.getGeneration(), greaterThan(generation));
+        assertThat(currentTimeMillis(), greaterThanOrEqualTo(start + 300));
+        assertThat(workflowScheduler.isLeader(), is(true));
+
+        workflowScheduler.stop();
+        assertThat(workflowScheduler.isLeader(), is(false));
+    }
+
+    @Test
+    public void leadShouldWaitForAnotherSchedulersLeaseToExpire() {
+        assertThat(workflowStore.acquireLease(SCHEDULER_LEASE, OTHER_SCHEDULER, start, start + workflowSchedulerLease), is(true));
+
+        assertThat(workflowScheduler.lead(start), is(false));
+        assertThat(workflowScheduler.lead(start + workflowSchedulerLease), is(true));
+        assertThat(workflowScheduler.isLeader(), is(true));
+
+        workflowScheduler.resign();
+        assertThat(workflowStore.acquireLease(SCHEDULER_LEASE, OTHER_SCHEDULER, start + workflowSchedulerLease, start + 2 * workflowSchedulerLease), is(true));
+    }
+}
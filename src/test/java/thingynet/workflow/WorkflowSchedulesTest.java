@@ -0,0 +1,180 @@
+/*
+ * WorkflowSchedulesTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import thingynet.value.StringValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.currentTimeMillis;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowCatchUp.*;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowSchedulesTest {
+
+    private static final String SCHEDULE = "testSchedule";
+    private static final String TEST_WORKFLOW = "Scheduled Workflow";
+    private static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
+    private static final StringValue CONTEXT = new StringValue("Scheduled");
+    private static final long RATE = 1000;
+    private static final long SAFETY_NET = 5000;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowSchedules workflowSchedules;
+
+    @Autowired
+    private WorkflowScheduler workflowScheduler;
+
+    private long start;
+
+    @Before
+    public void before() {
+        clear(workflowStore);
+        workflowSchedules.clear();
+
+        start = currentTimeMillis();
+    }
+
+    @After
+    public void after() throws InterruptedException {
+        workflowScheduler.stop();
+    }
+
+    @Test
+    public void saveScheduleShouldStartFromTheFirstTickAfterNow() {
+        workflowSchedules.saveSchedule(WorkflowSchedule.fixedRate(SCHEDULE, TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, CONTEXT, RATE));
+
+        WorkflowSchedule saved = workflowSchedules.getSchedule(SCHEDULE);
+        assertThat(saved.getNextRun(), greaterThan(start));
+        assertThat(((StringValue) saved.getContext()).getValue(), is(CONTEXT.getValue()));
+        assertThat(workflowSchedules.size(), is(1));
+    }
+
+    @Test
+    public void fireShouldCreateAWorkflowStartingOnTheTickAndMoveOnWithoutDrift() {
+        long tick = start - 10;
+        workflowSchedules.saveSchedule(schedule(tick, LATEST));
+
+        assertThat(workflowSchedules.fire(start + RATE / 2), is(1));
+
+        assertThat(getStarts(), contains(tick));
+        Workflow created = workflowStore.get(getScheduled().get(0).getId());
+        assertThat(created.getStatus(), is(WAITING));
+        assertThat(created.getNode(), is(FIRST_WORKFLOW_COMMAND));
+        // fired late, but the next tick stays a whole rate after the last one
+        assertThat(workflowSchedules.getSchedule(SCHEDULE).getNextRun(), is(tick + RATE));
+        assertThat(workflowSchedules.getSchedule(SCHEDULE).getLastRun(), is(tick));
+    }
+
+    @Test
+    public void startedSchedulerShouldFireSchedulesAsTheyComeDue() throws InterruptedException {
+        workflowSchedules.saveSchedule(schedule(start + 200, LATEST));
+
+        workflowScheduler.start();
+        long deadline = currentTimeMillis() + SAFETY_NET;
+        while (getStarts().isEmpty() && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertThat(getStarts(), contains(start + 200));
+    }
+
+    @Test
+    public void latestCatchUpShouldCoalesceMissedTicksIntoOne() {
+        long first = start - 5 * RATE;
+        workflowSchedules.saveSchedule(schedule(first, LATEST));
+
+        assertThat(workflowSchedules.run(SCHEDULE, start), is(1));
+
+        assertThat(getStarts(), contains(first + 5 * RATE));
+        assertThat(workflowSchedules.getSchedule(SCHEDULE).getNextRun(), is(first + 6 * RATE));
+    }
+
+    @Test
+    public void allCatchUpShouldCreateEveryMissedTick() {
+        long first = start - 2 * RATE;
+        workflowSchedules.saveSchedule(schedule(first, ALL));
+
+        assertThat(workflowSchedules.run(SCHEDULE, start), is(3));
+
+        assertThat(getStarts(), contains(first, first + RATE, first + 2 * RATE));
+    }
+
+    @Test
+    public void skipCatchUpShouldDropTicksPastTheirGrace() {
+        // the latest tick is half a slow rate ago, well past its grace
+        workflowSchedules.saveSchedule(WorkflowSchedule.fixedRate(SCHEDULE, TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, CONTEXT, 10 * RATE)
+                .startingAt(start - 25 * RATE)
+                .withCatchUp(SKIP));
+
+        assertThat(workflowSchedules.run(SCHEDULE, start), is(0));
+
+        assertThat(getStarts(), is(empty()));
+        assertThat(workflowSchedules.getSchedule(SCHEDULE).getNextRun(), greaterThan(start));
+    }
+
+    @Test
+    public void runShouldNotCreateATickAnotherSchedulerHasTaken() {
+        long tick = start - 10;
+        workflowSchedules.saveSchedule(schedule(tick, LATEST));
+
+        assertThat(workflowSchedules.run(SCHEDULE, start), is(1));
+        // a second scheduler that read the schedule before the first moved it on
+        assertThat(workflowStore.advanceSchedule(SCHEDULE, tick, tick + RATE, tick), is(false));
+
+        assertThat(workflowSchedules.run(SCHEDULE, start), is(0));
+        assertThat(getStarts(), hasSize(1));
+    }
+
+    private WorkflowSchedule schedule(long first, WorkflowCatchUp catchUp) {
+        return WorkflowSchedule.fixedRate(SCHEDULE, TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, CONTEXT, RATE)
+                .startingAt(first)
+                .withCatchUp(catchUp);
+    }
+
+    private List<Workflow> getScheduled() {
+        return workflowStore.getScheduled(0, Long.MAX_VALUE, 100);
+    }
+
+    private List<Long> getStarts() {
+        List<Long> starts = new ArrayList<>();
+        for (Workflow workflow : getScheduled()) {
+            starts.add(workflow.getStart());
+        }
+        return starts;
+    }
+}
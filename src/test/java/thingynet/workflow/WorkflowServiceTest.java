@@ -19,28 +19,44 @@
 package thingynet.workflow;
 
 import org.bson.types.ObjectId;
-import org.jongo.MongoCollection;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.actuate.metrics.repository.MetricRepository;
+import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import thingynet.Application;
+import thingynet.value.MapValue;
 import thingynet.value.StringValue;
+import thingynet.workflow.commands.PendingWorkflowCommand;
+import thingynet.workflow.commands.WorkflowLoad;
 
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static java.lang.System.currentTimeMillis;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
+import static thingynet.workflow.WorkflowEngineTestConfig.getLogs;
 import static thingynet.workflow.WorkflowService.*;
 import static thingynet.workflow.WorkflowStatus.*;
 import static thingynet.workflow.commands.ExceptionWorkflowCommand.ERR_TEST;
 import static thingynet.workflow.commands.ExceptionWorkflowCommand.WORKFLOW_COMMAND_THREW_EXCEPTION;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = Application.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
 public class WorkflowServiceTest {
 
     public static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
@@ -50,44 +66,71 @@ public class WorkflowServiceTest {
     private static final String DIVERT_WORKFLOW_COMMAND = "divertWorkflowCommand";
     private static final String EXCEPTION_WORKFLOW_COMMAND = "exceptionWorkflowCommand";
     private static final String DEPENDENCY_COMMAND = "dependencyCommand";
+    private static final String PENDING_WORKFLOW_COMMAND = "pendingWorkflowCommand";
+    private static final String CHAIN_WORKFLOW_COMMAND = "chainWorkflowCommand";
+    private static final String THROTTLED_WORKFLOW_COMMAND = "throttledWorkflowCommand";
+    private static final String FORK_NODE = "forkNode";
 
     private static final int TEN_SECONDS = 10000;
     private static final StringValue STRING_VALUE = new StringValue("String Value");
 
     @Autowired
-    private MongoCollection workflowNodeCollection;
+    private WorkflowNodeCache workflowNodeCache;
 
     @Autowired
-    private MongoCollection workflowCollection;
+    private WorkflowStore workflowStore;
 
     @Autowired
-    private MongoCollection workflowLogCollection;
+    private WorkflowService workflowService;
 
     @Autowired
-    private WorkflowService workflowService;
+    private PendingWorkflowCommand pendingWorkflowCommand;
+
+    @Autowired
+    private WorkflowLogWriter workflowLogWriter;
+
+    @Autowired
+    private MetricRepository metricRepository;
+
+    @org.springframework.beans.factory.annotation.Value("${workflow.priority.aging}")
+    private long workflowPriorityAging;
+
+    @org.springframework.beans.factory.annotation.Value("${workflow.service.sleep}")
+    private long workflowServiceSleep;
+
+    private Semaphore asyncSteps;
 
     private WorkflowNode nextWorkflowNode;
     private WorkflowNode dependencyWorkflowNode;
     private long start;
 
     @Before
-    public void before() {
-        workflowCollection.remove();
-        workflowNodeCollection.remove();
-        workflowLogCollection.remove();
+    public void before() throws InterruptedException {
+        workflowLogWriter.flush();
+        clear(workflowStore);
+        asyncSteps = (Semaphore) getField(workflowService, "asyncSteps");
 
         WorkflowNode firstWorkflowNode = new WorkflowNode(FIRST_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND);
-        workflowNodeCollection.save(firstWorkflowNode);
+        workflowStore.saveNode(firstWorkflowNode);
 
         nextWorkflowNode = new WorkflowNode(NEXT_WORKFLOW_COMMAND, null);
-        workflowNodeCollection.save(nextWorkflowNode);
+        workflowStore.saveNode(nextWorkflowNode);
 
         dependencyWorkflowNode = new WorkflowNode(DEPENDENCY_COMMAND, null);
-        workflowNodeCollection.save(dependencyWorkflowNode);
+        workflowStore.saveNode(dependencyWorkflowNode);
+
+        workflowStore.saveNode(new WorkflowNode(PENDING_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND));
+        workflowStore.saveNode(new WorkflowNode(CHAIN_WORKFLOW_COMMAND, PENDING_WORKFLOW_COMMAND));
 
         start = currentTimeMillis();
     }
 
+    @After
+    public void after() {
+        setField(workflowService, "asyncSteps", asyncSteps);
+        setField(workflowService, "workflowServiceSleep", workflowServiceSleep);
+    }
+
     @Test
     public void createWorkflowShouldReturnWorkflowWithExpectedValues() {
         Workflow original = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, INITIALISING);
@@ -105,7 +148,7 @@ public class WorkflowServiceTest {
     public void createWorkflowShouldSaveWorkflowWithExpectedValues() {
         Workflow original = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, INITIALISING);
 
-        Workflow inserted = workflowCollection.findOne(original.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(original.getId());
         assertThat(inserted.getNode(), is(FIRST_WORKFLOW_COMMAND));
         assertThat(inserted.getStatus(), is(INITIALISING));
         assertThat(inserted.getUpdated(), greaterThanOrEqualTo(start));
@@ -119,7 +162,7 @@ public class WorkflowServiceTest {
     public void createReadyNowShouldSaveWorkflowWithWaitingStatusAndStartsNow() {
         Workflow original = workflowService.createReadyNow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, STRING_VALUE);
 
-        Workflow inserted = workflowCollection.findOne(original.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(original.getId());
         assertThat(inserted.getNode(), is(FIRST_WORKFLOW_COMMAND));
         assertThat(inserted.getStatus(), is(WAITING));
         assertThat(inserted.getUpdated(), greaterThanOrEqualTo(start));
@@ -133,7 +176,7 @@ public class WorkflowServiceTest {
         long scheduledStart = currentTimeMillis() + TEN_SECONDS;
         Workflow original = workflowService.createReadyScheduled(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, STRING_VALUE, scheduledStart);
 
-        Workflow inserted = workflowCollection.findOne(original.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(original.getId());
         assertThat(inserted.getNode(), is(FIRST_WORKFLOW_COMMAND));
         assertThat(inserted.getStatus(), is(WAITING));
         assertThat(inserted.getUpdated(), greaterThanOrEqualTo(start));
@@ -145,7 +188,7 @@ public class WorkflowServiceTest {
     public void createOnHoldNowShouldSaveWorkflowWithInitialisingStatusAndStartNow() {
         Workflow dependency = workflowService.createOnHoldNow(TEST_WORKFLOW, DEPENDENCY_COMMAND, STRING_VALUE);
 
-        Workflow inserted = workflowCollection.findOne(dependency.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(dependency.getId());
         assertThat(inserted.getNode(), is(dependencyWorkflowNode.getName()));
         assertThat(inserted.getStatus(), is(INITIALISING));
         assertThat(inserted.getUpdated(), greaterThanOrEqualTo(start));
@@ -159,7 +202,7 @@ public class WorkflowServiceTest {
         long scheduledStart = currentTimeMillis() + TEN_SECONDS;
         Workflow dependency = workflowService.createOnHoldScheduled(TEST_WORKFLOW, DEPENDENCY_COMMAND, STRING_VALUE, scheduledStart);
 
-        Workflow inserted = workflowCollection.findOne(dependency.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(dependency.getId());
         assertThat(inserted.getNode(), is(dependencyWorkflowNode.getName()));
         assertThat(inserted.getStatus(), is(INITIALISING));
         assertThat(inserted.getUpdated(), greaterThanOrEqualTo(start));
@@ -193,7 +236,7 @@ public class WorkflowServiceTest {
 
         workflowService.saveChanges(original);
 
-        Workflow inserted = workflowCollection.findOne(original.getId()).as(Workflow.class);
+        Workflow inserted = workflowStore.get(original.getId());
         StringValue stringValue = (StringValue) inserted.getContext();
         assertThat(stringValue.getValue(), is(STRING_VALUE.getValue()));
         assertThat(inserted.getDependencies().contains(original.getId()), is(true));
@@ -204,6 +247,69 @@ public class WorkflowServiceTest {
         assertThat(inserted.getRetry(), is(1));
     }
 
+    @Test
+    public void createWorkflowsShouldCreateFanOutFanInInOneBatch() {
+        WorkflowRequest first = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        WorkflowRequest second = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        WorkflowRequest join = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING)
+                .dependsOn(first)
+                .dependsOn(second);
+
+        List<WorkflowResult> results = workflowService.createWorkflows(asList(join, first, second));
+
+        assertThat(results.size(), is(3));
+        for (WorkflowResult result : results) {
+            assertThat(result.isCreated(), is(true));
+        }
+        assertThat(results.get(0).getRequest(), is(join));
+        Workflow parent = workflowStore.get(results.get(0).getWorkflow().getId());
+        assertThat(parent.getPendingDependencies(), is(2));
+        Workflow child = workflowStore.get(results.get(1).getWorkflow().getId());
+        assertThat(child.getDependents(), contains(parent.getId()));
+
+        workflowService.process(workflowService.getWaiting());
+        workflowService.process(workflowService.getWaiting());
+
+        assertThat(workflowService.getWaiting().getId(), is(parent.getId()));
+    }
+
+    @Test
+    public void createWorkflowsShouldRejectRequestsWaitingOnRequestsOutsideTheBatch() {
+        WorkflowRequest missing = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        WorkflowRequest dependant = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING)
+                .dependsOn(missing);
+        WorkflowRequest other = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+
+        List<WorkflowResult> results = workflowService.createWorkflows(asList(dependant, other));
+
+        assertThat(results.get(0).isCreated(), is(false));
+        assertThat(results.get(0).getError(), is(DEPENDENCY_NOT_IN_BATCH));
+        assertThat(results.get(1).isCreated(), is(true));
+        assertThat(count(), is(1l));
+    }
+
+    @Test
+    public void createWorkflowsShouldLeaseWorkflowsCreatedProcessing() {
+        WorkflowRequest request = new WorkflowRequest(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+
+        Workflow created = workflowService.createWorkflows(asList(request)).get(0).getWorkflow();
+
+        Workflow inserted = workflowStore.get(created.getId());
+        assertThat(inserted.getLeaseUntil(), greaterThan(inserted.getUpdated()));
+    }
+
+    @Test
+    public void createShouldReportEachFailedInsertAndKeepTheRest() {
+        Workflow existing = workflowService.createReadyNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        Workflow fresh = new Workflow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, WAITING, start, STRING_VALUE);
+
+        List<String> errors = workflowStore.create(asList(new Workflow(existing), fresh));
+
+        assertThat(errors.get(0), notNullValue());
+        assertThat(errors.get(1), nullValue());
+        assertThat(count(), is(2l));
+    }
+
     @Test
     public void activateDependenciesShouldChangeStatusOfDependenciesToWaiting() {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
@@ -217,7 +323,7 @@ public class WorkflowServiceTest {
 
         Iterator<ObjectId> ids = workflow.getDependencies().iterator();
         while (ids.hasNext()) {
-            dependency = workflowCollection.findOne(ids.next()).as(Workflow.class);
+            dependency = workflowStore.get(ids.next());
             assertThat(dependency.getStatus(), is(INITIALISING));
         }
 
@@ -226,7 +332,7 @@ public class WorkflowServiceTest {
 
         ids = workflow.getDependencies().iterator();
         while (ids.hasNext()) {
-            dependency = workflowCollection.findOne(ids.next()).as(Workflow.class);
+            dependency = workflowStore.get(ids.next());
             assertThat(dependency.getStatus(), is(WAITING));
             assertThat(dependency.getUpdated(), greaterThanOrEqualTo(updated));
         }
@@ -293,18 +399,54 @@ public class WorkflowServiceTest {
     }
 
     @Test
-    public void processShouldRemoveWorkflowAndLogErrorWhenNodeIsNull() {
+    public void getWaitingShouldClaimHigherPriorityFirstUnlessLowerPriorityHasAged() {
+        Workflow low = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start - 1000, STRING_VALUE, WAITING);
+        Workflow high = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING, 1);
+        Workflow aged = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start - 2 * workflowPriorityAging, STRING_VALUE, WAITING);
+
+        assertThat(workflowService.getWaiting().getId(), is(aged.getId()));
+        assertThat(workflowService.getWaiting().getId(), is(high.getId()));
+        assertThat(workflowService.getWaiting().getId(), is(low.getId()));
+    }
+
+    @Test
+    public void getWaitingBatchShouldClaimUpToBatchWorkflowsWithClaimToken() {
+        for (int i = 0; i < 3; i++) {
+            workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        }
+        ObjectId claim = new ObjectId();
+
+        List<Workflow> claimed = workflowService.getWaiting(claim, 2);
+
+        assertThat(claimed.size(), is(2));
+        for (Workflow workflow : claimed) {
+            assertThat(workflow.getStatus(), is(PROCESSING));
+            assertThat(workflow.getClaim(), is(claim));
+            assertThat(workflow.getUpdated(), greaterThanOrEqualTo(start));
+        }
+        assertThat(workflowStore.getCounts(currentTimeMillis()).getWaiting(), is(1l));
+    }
+
+    @Test
+    public void getWaitingBatchShouldNotReturnWorkflowsClaimedByAnotherWorker() {
+        workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start + TEN_SECONDS, STRING_VALUE, WAITING);
+
+        assertThat(workflowService.getWaiting(new ObjectId(), 10).size(), is(1));
+        assertThat(workflowService.getWaiting(new ObjectId(), 10).size(), is(0));
+    }
+
+    @Test
+    public void processShouldRemoveWorkflowAndLogErrorWhenNodeIsNull() throws InterruptedException {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, null, start, STRING_VALUE, PROCESSING);
 
         workflowService.process(workflow);
 
-        Workflow gone = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow gone = workflowStore.get(workflow.getId());
         assertThat(gone, nullValue());
 
-        Iterable<WorkflowError> errors = workflowLogCollection.find().as(WorkflowError.class);
-        assertThat(errors, notNullValue());
-        WorkflowError error = errors.iterator().next();
-        assertThat(error, notNullValue());
+        WorkflowError error = getError();
 
         assertThat(error.getName(), is(TEST_WORKFLOW));
         assertThat(error.getCommand(), nullValue());
@@ -316,18 +458,15 @@ public class WorkflowServiceTest {
     }
 
     @Test
-    public void processShouldRemoveWorkflowAndLogErrorWhenCurrentIsNull() {
+    public void processShouldRemoveWorkflowAndLogErrorWhenCurrentIsNull() throws InterruptedException {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, null, start, STRING_VALUE, PROCESSING);
 
         workflowService.process(workflow);
 
-        Workflow gone = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow gone = workflowStore.get(workflow.getId());
         assertThat(gone, nullValue());
 
-        Iterable<WorkflowError> errors = workflowLogCollection.find().as(WorkflowError.class);
-        assertThat(errors, notNullValue());
-        WorkflowError error = errors.iterator().next();
-        assertThat(error, notNullValue());
+        WorkflowError error = getError();
 
         assertThat(error.getName(), is(TEST_WORKFLOW));
         assertThat(error.getCommand(), nullValue());
@@ -339,20 +478,17 @@ public class WorkflowServiceTest {
     }
 
     @Test
-    public void processShouldRemoveWorkflowAndLogErrorWhenCommandThrowsCommandException() {
+    public void processShouldRemoveWorkflowAndLogErrorWhenCommandThrowsCommandException() throws InterruptedException {
         WorkflowNode exceptionWorkflowNode = new WorkflowNode(EXCEPTION_WORKFLOW_COMMAND, null);
-        workflowNodeCollection.save(exceptionWorkflowNode);
+        workflowStore.saveNode(exceptionWorkflowNode);
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, EXCEPTION_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
 
         workflowService.process(workflow);
 
-        Workflow gone = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow gone = workflowStore.get(workflow.getId());
         assertThat(gone, nullValue());
 
-        Iterable<WorkflowError> errors = workflowLogCollection.find().as(WorkflowError.class);
-        assertThat(errors, notNullValue());
-        WorkflowError error = errors.iterator().next();
-        assertThat(error, notNullValue());
+        WorkflowError error = getError();
 
         assertThat(error.getName(), is(TEST_WORKFLOW));
         assertThat(error.getCommand(), is(EXCEPTION_WORKFLOW_COMMAND));
@@ -364,20 +500,17 @@ public class WorkflowServiceTest {
     }
 
     @Test
-    public void processShouldRemoveWorkflowAndLogErrorWhenCommandIsNull() {
+    public void processShouldRemoveWorkflowAndLogErrorWhenCommandIsNull() throws InterruptedException {
         WorkflowNode noCommandWorkflowNode = new WorkflowNode(NO_COMMAND, null);
-        workflowNodeCollection.save(noCommandWorkflowNode);
+        workflowStore.saveNode(noCommandWorkflowNode);
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, NO_COMMAND, start, STRING_VALUE, PROCESSING);
 
         workflowService.process(workflow);
 
-        Workflow gone = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow gone = workflowStore.get(workflow.getId());
         assertThat(gone, nullValue());
 
-        Iterable<WorkflowError> errors = workflowLogCollection.find().as(WorkflowError.class);
-        assertThat(errors, notNullValue());
-        WorkflowError error = errors.iterator().next();
-        assertThat(error, notNullValue());
+        WorkflowError error = getError();
         assertThat(error.getName(), is(TEST_WORKFLOW));
         assertThat(error.getCommand(), is(NO_COMMAND));
         assertThat(error.getCreated(), greaterThanOrEqualTo(error.getStart()));
@@ -392,7 +525,7 @@ public class WorkflowServiceTest {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
         workflowService.process(workflow);
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(WAITING));
         assertThat(processed.getNode(), is(nextWorkflowNode.getName()));
@@ -400,12 +533,34 @@ public class WorkflowServiceTest {
         assertThat(processed.getUpdated(), greaterThanOrEqualTo(workflow.getUpdated()));
     }
 
+    @Test
+    public void processShouldPublishExecuteTimeForTheNodeAndCountCompletions() {
+        long executed = getCount("counter." + WorkflowMetrics.execute(NEXT_WORKFLOW_COMMAND));
+        long completed = getCount("counter." + WorkflowMetrics.COMPLETE);
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+
+        workflowService.process(workflow);
+
+        assertThat(getCount("counter." + WorkflowMetrics.execute(NEXT_WORKFLOW_COMMAND)), is(executed + 1));
+        assertThat(getCount("counter." + WorkflowMetrics.COMPLETE), is(completed + 1));
+        assertThat(metricRepository.findOne("timer." + WorkflowMetrics.execute(NEXT_WORKFLOW_COMMAND)), notNullValue());
+    }
+
+    @Test
+    public void getWaitingBatchShouldCountClaimsThatFindNothing() {
+        long empty = getCount("counter." + WorkflowMetrics.CLAIM_EMPTY);
+
+        assertThat(workflowService.getWaiting(new ObjectId(), 2), empty());
+
+        assertThat(getCount("counter." + WorkflowMetrics.CLAIM_EMPTY), is(empty + 1));
+    }
+
     @Test
     public void processShouldDeleteWorkflowWhenWorkflowIsCompleted() {
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
         workflowService.process(workflow);
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed, nullValue());
     }
@@ -427,24 +582,62 @@ public class WorkflowServiceTest {
 
         workflowService.process(dependency);
 
-        Workflow updated = workflowCollection.findOne(workflow1.getId()).as(Workflow.class);
+        Workflow updated = workflowStore.get(workflow1.getId());
         assertThat(updated.getDependencies().size(), is(0));
         assertThat(updated.getUpdated(), greaterThanOrEqualTo(workflow1.getUpdated()));
 
-        updated = workflowCollection.findOne(workflow2.getId()).as(Workflow.class);
+        updated = workflowStore.get(workflow2.getId());
         assertThat(updated.getDependencies().size(), is(0));
         assertThat(updated.getUpdated(), greaterThanOrEqualTo(workflow2.getUpdated()));
     }
 
+    @Test
+    public void processShouldOnlyReleaseFanInWorkflowWhenLastDependencyCompletes() {
+        Workflow parent = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        Workflow first = workflowService.createOnHoldNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        Workflow second = workflowService.createOnHoldNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        parent.getDependencies().add(first.getId());
+        parent.getDependencies().add(second.getId());
+        workflowService.saveChanges(parent);
+
+        workflowService.process(first);
+
+        Workflow waiting = workflowStore.get(parent.getId());
+        assertThat(waiting.getPendingDependencies(), is(1));
+        assertThat(waiting.getDependencies(), contains(second.getId()));
+        assertThat(workflowService.getWaiting(), nullValue());
+
+        workflowService.process(second);
+
+        waiting = workflowService.getWaiting();
+        assertThat(waiting.getId(), is(parent.getId()));
+        assertThat(waiting.getPendingDependencies(), is(0));
+    }
+
+    @Test
+    public void saveChangesShouldNotWaitOnDependenciesThatHaveAlreadyCompleted() {
+        Workflow dependency = workflowService.createOnHoldNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        workflowService.process(dependency);
+
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, WAITING);
+        workflow.getDependencies().add(dependency.getId());
+        workflowService.saveChanges(workflow);
+
+        Workflow saved = workflowStore.get(workflow.getId());
+        assertThat(saved.getPendingDependencies(), is(0));
+        assertThat(saved.getDependencies().size(), is(0));
+        assertThat(workflowService.getWaiting().getId(), is(workflow.getId()));
+    }
+
     @Test
     public void processShouldExecuteNodeReturnedFromCommandExecution() {
         WorkflowNode divertWorkflowNode = new WorkflowNode(DIVERT_WORKFLOW_COMMAND, null);
-        workflowNodeCollection.save(divertWorkflowNode);
+        workflowStore.saveNode(divertWorkflowNode);
 
         Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, DIVERT_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
         workflowService.process(workflow);
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(WAITING));
         assertThat(processed.getNode(), is(FIRST_WORKFLOW_COMMAND));
@@ -458,7 +651,7 @@ public class WorkflowServiceTest {
         workflow.setRetry(1);
         workflowService.process(workflow);
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(PROCESSING));
         assertThat(processed.getNode(), is(FIRST_WORKFLOW_COMMAND));
@@ -472,11 +665,280 @@ public class WorkflowServiceTest {
         workflow.setNode(FIRST_WORKFLOW_COMMAND);
         workflowService.process(workflow);
 
-        Workflow processed = workflowCollection.findOne(workflow.getId()).as(Workflow.class);
+        Workflow processed = workflowStore.get(workflow.getId());
 
         assertThat(processed.getStatus(), is(PROCESSING));
         assertThat(processed.getNode(), is(nextWorkflowNode.getName()));
         assertThat(processed.getUpdated(), equalTo(workflow.getUpdated()));
     }
 
+    @Test
+    public void processShouldReturnBeforeAsyncCommandCompletesAndMoveOnWhenItDoes() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, PENDING_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        workflowService.process(workflow);
+
+        Workflow inFlight = workflowStore.get(workflow.getId());
+        assertThat(inFlight.getStatus(), is(PROCESSING));
+        assertThat(inFlight.getNode(), is(PENDING_WORKFLOW_COMMAND));
+        assertThat(workflowService.getAsyncInFlight(), is(1));
+
+        pendingWorkflowCommand.getPending().complete(null);
+
+        Workflow processed = workflowStore.get(workflow.getId());
+        assertThat(processed.getStatus(), is(WAITING));
+        assertThat(processed.getNode(), is(NEXT_WORKFLOW_COMMAND));
+        assertThat(workflowService.getAsyncInFlight(), is(0));
+    }
+
+    @Test
+    public void processShouldRemoveWorkflowAndLogErrorWhenAsyncCommandFails() throws InterruptedException {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, PENDING_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        workflowService.process(workflow);
+
+        pendingWorkflowCommand.getPending().completeExceptionally(new WorkflowException(ERR_TEST, WORKFLOW_COMMAND_THREW_EXCEPTION));
+
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+        WorkflowError error = getError();
+        assertThat(error.getCommand(), is(PENDING_WORKFLOW_COMMAND));
+        assertThat(error.getClassification(), is(ERR_TEST));
+        assertThat(error.getMessage(), is(WORKFLOW_COMMAND_THREW_EXCEPTION));
+        assertThat(workflowService.getAsyncInFlight(), is(0));
+    }
+
+    @Test
+    public void processShouldHandBackAnAsyncStepWhenNoPermitFreesUp() {
+        setField(workflowService, "asyncSteps", new Semaphore(0));
+        setField(workflowService, "workflowServiceSleep", 10);
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, PENDING_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+
+        workflowService.process(workflow);
+
+        Workflow handedBack = workflowStore.get(workflow.getId());
+        assertThat(handedBack.getStatus(), is(WAITING));
+        assertThat(handedBack.getNode(), is(PENDING_WORKFLOW_COMMAND));
+        assertThat(handedBack.getRetry(), is(0));
+    }
+
+    @Test
+    public void processShouldHandBackAnAsyncStepWhenInterruptedAndKeepTheInterrupt() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, PENDING_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+
+        Thread.currentThread().interrupt();
+        workflowService.process(workflow);
+
+        assertThat(Thread.interrupted(), is(true));
+        assertThat(workflowStore.get(workflow.getId()).getStatus(), is(WAITING));
+        assertThat(workflowService.getAsyncInFlight(), is(0));
+    }
+
+    @Test
+    public void processWithChainingShouldSaveChainedNodesBeforeHandingBackAnAsyncStep() {
+        setField(workflowService, "asyncSteps", new Semaphore(0));
+        setField(workflowService, "workflowServiceSleep", 10);
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, CHAIN_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+
+        workflowService.process(workflow, 10, TEN_SECONDS);
+
+        Workflow handedBack = workflowStore.get(workflow.getId());
+        assertThat(handedBack.getStatus(), is(WAITING));
+        assertThat(handedBack.getNode(), is(PENDING_WORKFLOW_COMMAND));
+    }
+
+    @Test
+    public void processWithChainingShouldRunReadyNodesWithoutWritingBack() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        workflowService.process(workflow, 10, TEN_SECONDS);
+
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+    }
+
+    @Test
+    public void processWithChainingShouldCheckpointAndExtendLease() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, CHAIN_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        long leaseUntil = workflow.getLeaseUntil();
+        workflowService.process(workflow, 1, TEN_SECONDS);
+
+        Workflow checkpointed = workflowStore.get(workflow.getId());
+        assertThat(checkpointed.getStatus(), is(PROCESSING));
+        assertThat(checkpointed.getNode(), is(PENDING_WORKFLOW_COMMAND));
+        assertThat(checkpointed.getLeaseUntil(), greaterThan(leaseUntil));
+
+        pendingWorkflowCommand.getPending().complete(null);
+
+        Workflow processed = workflowStore.get(workflow.getId());
+        assertThat(processed.getStatus(), is(WAITING));
+        assertThat(processed.getNode(), is(NEXT_WORKFLOW_COMMAND));
+    }
+
+    @Test
+    public void renewShouldExtendBufferedLeasesRunningOutAndDropLostClaims() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        long leaseUntil = workflow.getLeaseUntil();
+
+        assertThat(workflowService.renew(workflow, workflow.getUpdated()), is(true));
+        assertThat(workflowStore.get(workflow.getId()).getLeaseUntil(), is(leaseUntil));
+
+        assertThat(workflowService.renew(workflow, leaseUntil - 1), is(true));
+        assertThat(workflowStore.get(workflow.getId()).getLeaseUntil(), greaterThan(leaseUntil));
+
+        workflow.setRetry(1);
+        assertThat(workflowService.renew(workflow, workflow.getLeaseUntil()), is(false));
+    }
+
+    @Test
+    public void workShouldCarryOnAfterACycleFails() {
+        Workflow workflow = workflowService.createReadyNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        AtomicInteger cycles = new AtomicInteger();
+
+        workflowService.work(() -> cycles.get() > 1, () -> {
+            if (cycles.getAndIncrement() == 0) {
+                throw new IllegalStateException("first cycle fails");
+            }
+            return null;
+        });
+
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+    }
+
+    @Test
+    public void workShouldClaimOutsideItsPartitionsWhenTheyHaveNothingReady() {
+        Workflow workflow = workflowService.createReadyNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        AtomicInteger cycles = new AtomicInteger();
+
+        workflowService.work(() -> cycles.get() > 1, () -> {
+            cycles.incrementAndGet();
+            return singletonList(workflow.getPartition() + 1);
+        });
+
+        assertThat(workflowStore.get(workflow.getId()), nullValue());
+    }
+
+    @Test
+    public void processWithChainingShouldStopWhenCheckpointFindsClaimLost() {
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, start, STRING_VALUE, PROCESSING);
+        workflow.setRetry(1);
+        workflowService.process(workflow, 1, TEN_SECONDS);
+
+        Workflow processed = workflowStore.get(workflow.getId());
+        assertThat(processed.getStatus(), is(PROCESSING));
+        assertThat(processed.getNode(), is(FIRST_WORKFLOW_COMMAND));
+        assertThat(processed.getUpdated(), equalTo(workflow.getUpdated()));
+    }
+
+    @Test
+    public void processShouldForkBranchesAndResumeAtTheJoinWithTheirResults() {
+        WorkflowNode fork = new WorkflowNode(FORK_NODE, NEXT_WORKFLOW_COMMAND);
+        fork.setBranches(asList(FIRST_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND));
+        workflowNodeCache.saveNode(fork);
+        MapValue context = new MapValue(new HashMap<>());
+        context.getValue().put("input", STRING_VALUE);
+        Workflow parent = workflowService.createReadyNow(TEST_WORKFLOW, FORK_NODE, context);
+
+        workflowService.process(workflowService.getWaiting());
+
+        // only the branches are ready, each claimable on its own
+        List<Workflow> branches = workflowService.getWaiting(new ObjectId(), 10);
+        assertThat(branches, hasSize(2));
+        assertThat(branches.stream().anyMatch(branch -> branch.getId().equals(parent.getId())), is(false));
+        for (Workflow branch : branches) {
+            assertThat(((MapValue) branch.getContext()).getValue().get("input").getValue(), is(STRING_VALUE.getValue()));
+            ((MapValue) branch.getContext()).getValue().put("result", new StringValue(branch.getNode()));
+            workflowService.process(branch, 10, TEN_SECONDS);
+        }
+
+        Workflow joined = workflowService.getWaiting();
+        assertThat(joined.getId(), is(parent.getId()));
+        assertThat(joined.getNode(), is(NEXT_WORKFLOW_COMMAND));
+        MapValue merged = (MapValue) joined.getContext();
+        assertThat(merged.getValue().get("input").getValue(), is(STRING_VALUE.getValue()));
+        for (String branch : asList(FIRST_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND)) {
+            MapValue result = (MapValue) merged.getValue().get(branch);
+            assertThat(result.getValue().get("result").getValue(), is(branch));
+        }
+
+        workflowService.process(joined);
+        assertThat(count(), is(0l));
+    }
+
+    @Test
+    public void processShouldResumeAtTheJoinOnceAQuorumOfBranchesFinish() {
+        WorkflowNode fork = new WorkflowNode(FORK_NODE, NEXT_WORKFLOW_COMMAND);
+        fork.setBranches(asList(NEXT_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND));
+        fork.setQuorum(1);
+        workflowNodeCache.saveNode(fork);
+        Workflow parent = workflowService.createReadyNow(TEST_WORKFLOW, FORK_NODE, null);
+
+        workflowService.process(workflowService.getWaiting());
+        List<Workflow> branches = workflowService.getWaiting(new ObjectId(), 10);
+        assertThat(branches, hasSize(2));
+        workflowService.process(branches.get(0));
+
+        Workflow joined = workflowService.getWaiting();
+        assertThat(joined.getId(), is(parent.getId()));
+        assertThat(((MapValue) joined.getContext()).getValue().keySet(),
+                anyOf(contains(NEXT_WORKFLOW_COMMAND), contains(branchKey(NEXT_WORKFLOW_COMMAND, 1))));
+
+        // the straggler is cancelled when the workflow resumes, and finishing it later changes nothing
+        workflowService.process(joined);
+        workflowService.process(branches.get(1));
+        assertThat(count(), is(0l));
+    }
+
+    @Test
+    public void getWaitingShouldSkipNodesAtTheirConcurrencyLimit() {
+        WorkflowNode throttled = new WorkflowNode(THROTTLED_WORKFLOW_COMMAND, null);
+        throttled.setMaxConcurrency(1);
+        workflowNodeCache.saveNode(throttled);
+        Workflow first = workflowService.createReadyNow(TEST_WORKFLOW, THROTTLED_WORKFLOW_COMMAND, STRING_VALUE);
+        Workflow second = workflowService.createReadyNow(TEST_WORKFLOW, THROTTLED_WORKFLOW_COMMAND, STRING_VALUE);
+        Workflow other = workflowService.createReadyNow(TEST_WORKFLOW, NEXT_WORKFLOW_COMMAND, STRING_VALUE);
+        long before = getCount("counter." + WorkflowMetrics.throttled(THROTTLED_WORKFLOW_COMMAND));
+
+        // both throttled workflows are claimed together, and the one that finds no slot is handed back
+        List<Workflow> claimed = workflowService.getWaiting(new ObjectId(), 10);
+        assertThat(claimed, hasSize(2));
+        assertThat(claimed.stream().filter(workflow -> workflow.getId().equals(other.getId())).count(), is(1l));
+        Workflow running = claimed.stream().filter(workflow -> !workflow.getId().equals(other.getId())).findFirst().get();
+        ObjectId handedBack = running.getId().equals(first.getId()) ? second.getId() : first.getId();
+        Workflow waiting = workflowStore.get(handedBack);
+        assertThat(waiting.getStatus(), is(WAITING));
+        assertThat(waiting.getRetry(), is(0));
+
+        // saturated, so the next claim skips the node altogether
+        assertThat(workflowService.getWaiting(new ObjectId(), 10), is(empty()));
+        assertThat(getCount("counter." + WorkflowMetrics.throttled(THROTTLED_WORKFLOW_COMMAND)), is(before + 2));
+
+        workflowService.process(running);
+        assertThat(workflowService.getWaiting(new ObjectId(), 10).get(0).getId(), is(handedBack));
+    }
+
+    @Test
+    public void getWaitingShouldHoldNodesToTheirRateLimit() {
+        WorkflowNode throttled = new WorkflowNode(THROTTLED_WORKFLOW_COMMAND, null);
+        throttled.setRateLimit(0.001);
+        workflowNodeCache.saveNode(throttled);
+        workflowService.createReadyNow(TEST_WORKFLOW, THROTTLED_WORKFLOW_COMMAND, STRING_VALUE);
+        workflowService.createReadyNow(TEST_WORKFLOW, THROTTLED_WORKFLOW_COMMAND, STRING_VALUE);
+
+        workflowService.process(workflowService.getWaiting());
+
+        // the slot is free again, but the next token is a thousand seconds away
+        assertThat(workflowService.getWaiting(), is(nullValue()));
+        assertThat(workflowStore.getCounts(currentTimeMillis()).getWaiting(), is(1l));
+    }
+
+    private long getCount(String name) {
+        Metric<?> metric = metricRepository.findOne(name);
+        return metric != null ? metric.getValue().longValue() : 0;
+    }
+
+    private long count() {
+        WorkflowLoad counts = workflowStore.getCounts(currentTimeMillis());
+        return counts.getInitialising() + counts.getWaiting() + counts.getProcessing();
+    }
+
+    private WorkflowError getError() throws InterruptedException {
+        workflowLogWriter.flush();
+        return (WorkflowError) getLogs(workflowStore).get(0);
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * WorkflowSignalTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.CountDownLatch;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowSignalTest {
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
+    private static final long SAFETY_NET = 5000l;
+    private static final long REMOTE_INTERVAL = 50l;
+
+    @Autowired
+    private WorkflowService workflowService;
+
+    @Autowired
+    private WorkflowSignal workflowSignal;
+
+    @Test
+    public void awaitShouldReturnImmediatelyWhenSignalledAfterGenerationWasRead() throws InterruptedException {
+        long seen = workflowSignal.getGeneration();
+        workflowSignal.signal();
+
+        long start = currentTimeMillis();
+        workflowSignal.await(seen, SAFETY_NET);
+
+        assertThat(currentTimeMillis() - start, lessThan(SAFETY_NET));
+    }
+
+    @Test
+    public void awaitShouldReturnAfterTimeoutWhenNotSignalled() throws InterruptedException {
+        long start = currentTimeMillis();
+        workflowSignal.await(workflowSignal.getGeneration(), 50l);
+
+        assertThat(currentTimeMillis() - start, greaterThanOrEqualTo(50l));
+    }
+
+    @Test
+    public void publishShouldCoalesceSignalsWithinTheInterval() {
+        long now = currentTimeMillis() + SAFETY_NET;
+
+        assertThat(workflowSignal.publish(now), is(true));
+        assertThat(workflowSignal.publish(now + 1), is(false));
+        assertThat(workflowSignal.publish(now + REMOTE_INTERVAL), is(true));
+    }
+
+    @Test
+    public void createReadyNowShouldWakeIdleWorker() throws InterruptedException {
+        CountDownLatch parked = new CountDownLatch(1);
+        CountDownLatch woken = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            try {
+                long seen = workflowSignal.getGeneration();
+                parked.countDown();
+                workflowSignal.await(seen, SAFETY_NET);
+                woken.countDown();
+            } catch (InterruptedException e) {
+                // ignored
+            }
+        });
+        worker.start();
+        parked.await();
+
+        workflowService.createReadyNow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, null);
+
+        assertThat(woken.await(1, SECONDS), is(true));
+    }
+}
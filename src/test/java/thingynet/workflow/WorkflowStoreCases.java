@@ -0,0 +1,113 @@
+/*
+ * WorkflowStoreCases.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import thingynet.workflow.commands.WorkflowLoad;
+
+import java.util.function.Function;
+
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static thingynet.workflow.WorkflowStatus.WAITING;
+
+/**
+ * Cases run against every store from its own test, so the stores are held to the same behaviour.
+ */
+final class WorkflowStoreCases {
+    private static final String TEST_WORKFLOW = "Store Case";
+    private static final String PLAIN_NODE = "plainNode";
+    private static final String RETRYING_NODE = "retryingNode";
+    private static final long LEASE_MILLIS = 50;
+
+    private WorkflowStoreCases() {
+    }
+
+    /**
+     * A node with no attempts or backoff set has no retry policy, so its expired leases go straight
+     * back to WAITING on their old start.
+     */
+    static void sweepShouldRetryAtOnceOnANodeWithoutARetryPolicy(WorkflowStore store, long now) {
+        WorkflowNode node = new WorkflowNode(PLAIN_NODE, null);
+        Workflow workflow = new Workflow(TEST_WORKFLOW, PLAIN_NODE, WAITING, now - 2 * LEASE_MILLIS, null);
+        store.create(workflow);
+        assertThat(store.claim(now - 2 * LEASE_MILLIS, name -> LEASE_MILLIS).getId(), is(workflow.getId()));
+
+        assertThat(store.sweep(now, name -> node), is(singletonMap(PLAIN_NODE, 1)));
+
+        Workflow retried = store.get(workflow.getId());
+        assertThat(retried.getStatus(), is(WAITING));
+        assertThat(retried.getRetry(), is(1));
+        assertThat(retried.getStart(), is(now - 2 * LEASE_MILLIS));
+    }
+
+    /**
+     * The retrying count follows workflows onto a retry and off it again as they finish, move on or
+     * are dead lettered, and the dead letter count follows the dead letters.
+     */
+    static void countsShouldFollowRetriesAndDeadLetters(WorkflowStore store, long now) {
+        WorkflowNode plain = new WorkflowNode(PLAIN_NODE, null);
+        WorkflowNode retrying = new WorkflowNode(RETRYING_NODE, null);
+        retrying.setMaxAttempts(2);
+        Function<String, WorkflowNode> nodes = name -> RETRYING_NODE.equals(name) ? retrying : plain;
+        WorkflowLoad before = store.getCounts(now);
+
+        Workflow finished = expire(store, PLAIN_NODE, now, nodes);
+        assertCounts(store, now, before, 1, 0);
+        store.complete(claim(store, now), now);
+        assertThat(store.get(finished.getId()), is(nullValue()));
+        assertCounts(store, now, before, 0, 0);
+
+        Workflow exhausted = expire(store, RETRYING_NODE, now, nodes);
+        assertCounts(store, now, before, 1, 0);
+        claim(store, now);
+        store.sweep(now, nodes);
+        assertThat(store.get(exhausted.getId()), is(nullValue()));
+        assertCounts(store, now, before, 0, 1);
+
+        expire(store, RETRYING_NODE, now, nodes);
+        assertCounts(store, now, before, 1, 1);
+        Workflow moved = claim(store, now);
+        moved.setNode(PLAIN_NODE);
+        assertThat(store.activate(moved, RETRYING_NODE, now), is(true));
+        assertCounts(store, now, before, 0, 1);
+    }
+
+    /**
+     * Creates a workflow on the node, claims it with a lease that has already run out and sweeps it.
+     */
+    private static Workflow expire(WorkflowStore store, String node, long now, Function<String, WorkflowNode> nodes) {
+        Workflow workflow = new Workflow(TEST_WORKFLOW, node, WAITING, now, null);
+        store.create(workflow);
+        assertThat(claim(store, now).getId(), is(workflow.getId()));
+        assertThat(store.sweep(now, nodes), is(singletonMap(node, 1)));
+        return workflow;
+    }
+
+    private static Workflow claim(WorkflowStore store, long now) {
+        return store.claim(now, name -> 0);
+    }
+
+    private static void assertCounts(WorkflowStore store, long now, WorkflowLoad before, long retrying, long deadLettered) {
+        WorkflowLoad counts = store.getCounts(now);
+        assertThat(counts.getRetrying() - before.getRetrying(), is(retrying));
+        assertThat(counts.getDeadLettered() - before.getDeadLettered(), is(deadLettered));
+    }
+}
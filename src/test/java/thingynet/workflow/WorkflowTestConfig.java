@@ -38,6 +38,16 @@ class WorkflowTestConfig {
         return new DoNothingWorkflowCommand();
     }
 
+    @Bean
+    WorkflowCommand chainWorkflowCommand() throws Exception {
+        return new DoNothingWorkflowCommand();
+    }
+
+    @Bean
+    WorkflowCommand throttledWorkflowCommand() throws Exception {
+        return new DoNothingWorkflowCommand();
+    }
+
     @Bean
     WorkflowCommand rescheduleCommand() throws Exception {
         return new RescheduleCommand(1000l, "firstWorkflowCommand");
@@ -0,0 +1,131 @@
+/*
+ * WorkflowWorkerPoolTest.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import thingynet.value.StringValue;
+
+import static java.lang.System.currentTimeMillis;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
+import static thingynet.workflow.WorkflowWorkerPool.size;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
+public class WorkflowWorkerPoolTest {
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String FIRST_WORKFLOW_COMMAND = "firstWorkflowCommand";
+    private static final String NEXT_WORKFLOW_COMMAND = "nextWorkflowCommand";
+    private static final String FAILING_WORKFLOW = "Failing Workflow";
+    private static final String ERROR_WORKFLOW_COMMAND = "errorWorkflowCommand";
+    private static final long INTERVAL = 1000;
+    private static final long SAFETY_NET = 5000;
+
+    @Autowired
+    private WorkflowStore workflowStore;
+
+    @Autowired
+    private WorkflowService workflowService;
+
+    @Autowired
+    private WorkflowWorkerPool workflowWorkerPool;
+
+    @Before
+    public void before() {
+        clear(workflowStore);
+        workflowStore.saveNode(new WorkflowNode(FIRST_WORKFLOW_COMMAND, NEXT_WORKFLOW_COMMAND));
+        workflowStore.saveNode(new WorkflowNode(NEXT_WORKFLOW_COMMAND, null));
+    }
+
+    @After
+    public void after() throws InterruptedException {
+        workflowWorkerPool.stop();
+    }
+
+    @Test
+    public void sizeShouldGrowToClearTheBacklogWithinAnInterval() {
+        // 100 ready at 50 millis a step is 5 seconds of work, so 5 more workers for a 1 second interval
+        assertThat(size(10, 100, 1, 50, INTERVAL, 1, 100), is(15));
+    }
+
+    @Test
+    public void sizeShouldAtMostDoubleAtOnceAndStayWithinBounds() {
+        assertThat(size(4, 10000, 1, 50, INTERVAL, 1, 100), is(8));
+        assertThat(size(80, 10000, 1, 50, INTERVAL, 1, 100), is(100));
+        assertThat(size(0, 10, 1, 0, INTERVAL, 0, 100), is(1));
+    }
+
+    @Test
+    public void sizeShouldHoldWhileClaimsMissWorkOrThereIsNoBacklog() {
+        assertThat(size(10, 100, 0.7, 50, INTERVAL, 1, 100), is(10));
+        assertThat(size(10, 0, 1, 50, INTERVAL, 1, 100), is(10));
+    }
+
+    @Test
+    public void sizeShouldShrinkByAQuarterWhileMostClaimsComeBackEmpty() {
+        assertThat(size(20, 0, 0.2, 50, INTERVAL, 1, 100), is(15));
+        assertThat(size(2, 0, 0, 0, INTERVAL, 1, 100), is(1));
+        assertThat(size(1, 0, 0, 0, INTERVAL, 1, 100), is(1));
+    }
+
+    @Test
+    public void startShouldRunWorkersUntilStopped() throws InterruptedException {
+        workflowWorkerPool.start();
+        assertThat(workflowWorkerPool.getWorkers(), is(1));
+
+        workflowService.createReadyNow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, new StringValue("context"));
+        long deadline = currentTimeMillis() + SAFETY_NET;
+        while (running() && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(running(), is(false));
+
+        workflowWorkerPool.stop();
+        assertThat(workflowWorkerPool.getWorkers(), is(0));
+    }
+
+    @Test
+    public void workersThatStopWithoutBeingRetiredShouldBeReplaced() throws InterruptedException {
+        workflowStore.saveNode(new WorkflowNode(ERROR_WORKFLOW_COMMAND, null));
+        workflowWorkerPool.start();
+
+        // the error escapes the worker, which has to be replaced before anything else runs
+        workflowService.createReadyNow(FAILING_WORKFLOW, ERROR_WORKFLOW_COMMAND, null);
+        workflowService.createReadyNow(TEST_WORKFLOW, FIRST_WORKFLOW_COMMAND, new StringValue("context"));
+        long deadline = currentTimeMillis() + SAFETY_NET;
+        while (running() && currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(running(), is(false));
+        assertThat(workflowWorkerPool.getWorkers(), is(1));
+    }
+
+    private boolean running() {
+        return workflowStore.getCounts(currentTimeMillis()).getByName().containsKey(TEST_WORKFLOW);
+    }
+}
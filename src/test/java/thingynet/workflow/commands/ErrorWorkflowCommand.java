@@ -1,5 +1,5 @@
 /*
- * WorkflowLatency.java
+ * ErrorWorkflowCommand.java
  *
  * Copyright 2014 Jason Crossley
  *
@@ -18,25 +18,24 @@
 
 package thingynet.workflow.commands;
 
+import org.springframework.stereotype.Component;
 import thingynet.workflow.Workflow;
-import thingynet.workflow.WorkflowLog;
+import thingynet.workflow.WorkflowCommand;
 
-public class WorkflowLatency extends WorkflowLog {
-    private long latency;
-
-    public WorkflowLatency() {
-    }
+/**
+ * Throws an Error, which no worker catches, so the worker running it stops.
+ */
+@Component
+public class ErrorWorkflowCommand implements WorkflowCommand {
 
-    public WorkflowLatency(Workflow workflow) {
-        super(workflow);
-        latency = workflow.getUpdated() - workflow.getStart();
+    @Override
+    public void execute(Workflow workflow) {
+        throw new AssertionError("Workflow command threw error");
     }
 
-    public long getLatency() {
-        return latency;
+    @Override
+    public long getTimeout() {
+        return 0;
     }
 
-    public void setLatency(long latency) {
-        this.latency = latency;
-    }
 }
@@ -0,0 +1,50 @@
+/*
+ * PendingWorkflowCommand.java
+ *
+ * Copyright 2014 Jason Crossley
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package thingynet.workflow.commands;
+
+import org.springframework.stereotype.Component;
+import thingynet.workflow.AsyncWorkflowCommand;
+import thingynet.workflow.Workflow;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Async command whose step stays in flight until the test completes the future it handed out.
+ */
+@Component
+public class PendingWorkflowCommand implements AsyncWorkflowCommand {
+
+    private volatile CompletableFuture<Void> pending;
+
+    @Override
+    public CompletableFuture<Void> executeAsync(Workflow workflow) {
+        pending = new CompletableFuture<>();
+        return pending;
+    }
+
+    public CompletableFuture<Void> getPending() {
+        return pending;
+    }
+
+    @Override
+    public long getTimeout() {
+        return 0;
+    }
+
+}
@@ -18,76 +18,117 @@
 
 package thingynet.workflow.commands;
 
-import org.jongo.MongoCollection;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
-import thingynet.Application;
 import thingynet.workflow.Workflow;
+import thingynet.workflow.WorkflowEngineTestConfig;
 import thingynet.workflow.WorkflowException;
 import thingynet.workflow.WorkflowService;
+import thingynet.workflow.WorkflowStore;
+
+import java.util.List;
 
 import static java.lang.System.currentTimeMillis;
+import static java.util.Arrays.asList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static thingynet.workflow.WorkflowEngineTestConfig.clear;
 import static thingynet.workflow.WorkflowStatus.PROCESSING;
 import static thingynet.workflow.WorkflowStatus.WAITING;
 
 @RunWith(SpringJUnit4ClassRunner.class)
-@SpringApplicationConfiguration(classes = Application.class)
+@SpringApplicationConfiguration(classes = WorkflowEngineTestConfig.class)
+@IntegrationTest("workflow.store=memory")
 public class WorkflowLoadTest {
     private static final int TEN_SECONDS = 10000;
+    private static final String TEST_WORKFLOW = "Test Workflow";
+    private static final String OTHER_WORKFLOW = "Other Workflow";
 
     @Autowired
-    private MongoCollection workflowLoadCollection;
-
-    @Autowired
-    private MongoCollection workflowCollection;
+    private WorkflowService workflowService;
 
     @Autowired
-    private WorkflowService workflowService;
+    private WorkflowStore workflowStore;
 
     @Autowired
     private WorkflowLoadCommand command;
 
     @Before
     public void before() {
-        workflowCollection.remove();
-        workflowLoadCollection.remove();
+        clear(workflowStore);
     }
 
     @Test
-    public void monitorLoadShouldRecordCorrectWorkflowCounts() throws WorkflowException {
+    public void getLoadShouldCountWorkflowsByReadiness() throws WorkflowException {
         long start = currentTimeMillis();
+        createWorkflows(start);
 
-        long count = workflowLoadCollection.count();
-        assertThat(count, is(0l));
+        WorkflowLoad workflowLoad = workflowStore.getLoad(currentTimeMillis());
 
-        Workflow dependency = workflowService.createOnHoldNow(null, null, null);
-        Workflow workflow = workflowService.createWorkflow(null, null, start, null, WAITING);
-        workflow.getDependencies().add(dependency.getId());
-        workflowService.saveChanges(workflow);
-        workflowService.createWorkflow(null, null, start, null, WAITING);
-        workflowService.createWorkflow(null, null, start + TEN_SECONDS, null, WAITING);
-        workflowService.createWorkflow(null, null, start, null, PROCESSING);
+        assertThat(workflowLoad.getInitialising(), is(1l));
+        assertThat(workflowLoad.getProcessing(), is(1l));
+        assertThat(workflowLoad.getWaiting(), is(5l));
+        assertThat(workflowLoad.getWaitingFutureStart(), is(2l));
+        assertThat(workflowLoad.getWaitingNoDependencies(), is(2l));
+        assertThat(workflowLoad.getWaitingByPriority().get(0), is(1l));
+        assertThat(workflowLoad.getWaitingByPriority().get(2), is(1l));
+        assertThat(workflowLoad.getWaitingWithDependencies(), is(1l));
+    }
+
+    @Test
+    public void monitorLoadShouldRecordCountsByStatusAndName() throws WorkflowException {
+        long start = currentTimeMillis();
+
+        assertThat(workflowStore.getLoads(0, Long.MAX_VALUE), is(empty()));
+
+        createWorkflows(start);
 
         command.execute(null);
 
-        Iterable<WorkflowLoad> loads = workflowLoadCollection.find().as(WorkflowLoad.class);
-        assertThat(loads, notNullValue());
-        WorkflowLoad workflowLoad = loads.iterator().next();
-        assertThat(workflowLoad, notNullValue());
+        List<WorkflowLoad> loads = workflowStore.getLoads(0, Long.MAX_VALUE);
+        assertThat(loads, hasSize(1));
+        WorkflowLoad workflowLoad = loads.get(0);
 
         assertThat(workflowLoad.getCreated(), greaterThanOrEqualTo(start));
         assertThat(workflowLoad.getCreated(), lessThanOrEqualTo(currentTimeMillis()));
         assertThat(workflowLoad.getInitialising(), is(1l));
+        assertThat(workflowLoad.getWaiting(), is(5l));
         assertThat(workflowLoad.getProcessing(), is(1l));
-        assertThat(workflowLoad.getWaitingFutureStart(), is(1l));
-        assertThat(workflowLoad.getWaitingNoDependencies(), is(1l));
-        assertThat(workflowLoad.getWaitingWithDependencies(), is(1l));
+        assertThat(workflowLoad.getByName().get(TEST_WORKFLOW), is(6l));
+        assertThat(workflowLoad.getByName().get(OTHER_WORKFLOW), is(1l));
     }
 
+    @Test
+    public void countsShouldFollowWorkflowsThroughTheirTransitions() {
+        long now = currentTimeMillis();
+        Workflow onHold = workflowService.createOnHoldNow(TEST_WORKFLOW, null, null);
+        workflowService.createWorkflow(TEST_WORKFLOW, null, now, null, WAITING);
+
+        workflowStore.activateOnHold(asList(onHold.getId()), now);
+        Workflow claimed = workflowStore.claim(now, node -> TEN_SECONDS);
+        workflowStore.complete(claimed, now);
+
+        WorkflowLoad counts = workflowStore.getCounts(now);
+        assertThat(counts.getInitialising(), is(0l));
+        assertThat(counts.getWaiting(), is(1l));
+        assertThat(counts.getProcessing(), is(0l));
+        assertThat(counts.getByName().get(TEST_WORKFLOW), is(1l));
+    }
+
+    private void createWorkflows(long start) {
+        Workflow dependency = workflowService.createOnHoldNow(TEST_WORKFLOW, null, null);
+        Workflow workflow = workflowService.createWorkflow(TEST_WORKFLOW, null, start, null, WAITING);
+        workflow.getDependencies().add(dependency.getId());
+        workflowService.saveChanges(workflow);
+        workflowService.createWorkflow(TEST_WORKFLOW, null, start, null, WAITING);
+        workflowService.createWorkflow(TEST_WORKFLOW, null, start + TEN_SECONDS, null, WAITING);
+        workflowService.createWorkflow(TEST_WORKFLOW, null, start, null, PROCESSING);
+        workflowService.createWorkflow(TEST_WORKFLOW, null, start, null, WAITING, 2);
+        workflowService.createWorkflow(OTHER_WORKFLOW, null, start + TEN_SECONDS, null, WAITING);
+    }
 }